@@ -0,0 +1,237 @@
+package http.keycloak.userstorage.benchmark;
+
+import http.keycloak.userstorage.HTTPUserStorageProvider;
+import http.keycloak.userstorage.HTTPUserStorageProviderFactory;
+import http.keycloak.userstorage.stub.StubBackend;
+import http.keycloak.userstorage.stub.Stubs;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Measures how logins degrade, when the backend is sick instead of down. For every fault of the
+ * {@link StubBackend} logins arrive at a fixed rate and run on a fixed pool of worker threads, like
+ * the request threads of Keycloak. A login that finds no free thread is shed. The report shows per
+ * fault the login success rate, the shed logins, the login latency and the occupancy of the worker
+ * threads: average and maximum busy threads and the busy share of the thread time.
+ *
+ * <p>Arguments are {@code key=value} pairs, all optional:
+ *
+ * <ul>
+ *   <li>{@code rate} logins per second, default 100
+ *   <li>{@code threads} worker threads, default 32
+ *   <li>{@code warmup} seconds before measuring each fault, default 3
+ *   <li>{@code duration} seconds measured per fault, default 20
+ *   <li>{@code faults} the faults, one after the other, separated by commas, default {@code
+ *       tail:0.05:2000,reset:0.05,trickle:0.05:64:20,burst:10000:2000,truncated:0.05}, see {@link
+ *       StubBackend.Fault#parse(String)}; a run without fault is always measured first
+ *   <li>{@code users} and {@code latency} of the stub, see {@link LoadTest}
+ * </ul>
+ *
+ * All other pairs are passed to the provider as config, e.g. {@code loginTimeout=2000}, see {@link
+ * LoadTest}.
+ */
+public final class DegradationTest {
+
+  private static final String REALM = "degradation";
+
+  private static final String DEFAULT_FAULTS =
+      "tail:0.05:2000,reset:0.05,trickle:0.05:64:20,burst:10000:2000,truncated:0.05";
+
+  private final HTTPUserStorageProviderFactory factory = new HTTPUserStorageProviderFactory();
+
+  private final ComponentModel component;
+
+  private final RealmModel realm = Stubs.realm(REALM);
+
+  private final int users;
+
+  private final LongAdder succeeded = new LongAdder();
+
+  private final LongAdder failed = new LongAdder();
+
+  private final AtomicInteger busy = new AtomicInteger();
+
+  private final LongAdder busyNanos = new LongAdder();
+
+  private final Latencies latencies = new Latencies();
+
+  /** logins without free worker thread, only used by the dispatching thread */
+  private long shed;
+
+  /** maximum of the busy worker threads, only used by the dispatching thread */
+  private int maxBusy;
+
+  private DegradationTest(StubBackend backend, int users, Map<String, String> config) {
+    this.users = users;
+    final Map<String, String> componentConfig = new HashMap<>(config);
+    componentConfig.put("url", backend.getUrl());
+    componentConfig.putIfAbsent("username", "degradation");
+    componentConfig.putIfAbsent("password", "degradation");
+    this.component = Stubs.component(componentConfig);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (equals < 1) throw new IllegalArgumentException("expected key=value: " + arg);
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    final double rate = Double.parseDouble(take(options, "rate", "100"));
+    final int threads = Integer.parseInt(take(options, "threads", "32"));
+    final int warmup = Integer.parseInt(take(options, "warmup", "3"));
+    final int duration = Integer.parseInt(take(options, "duration", "20"));
+    final int users = Integer.parseInt(take(options, "users", "10000"));
+    final String latency = take(options, "latency", "lognormal:5:50");
+    final List<String> faults = new ArrayList<>();
+    faults.add("none");
+    for (String fault : take(options, "faults", DEFAULT_FAULTS).split(",")) {
+      if (!fault.trim().isEmpty()) faults.add(fault.trim());
+    }
+    LoadTest.checkConfig(options);
+
+    System.out.printf(
+        "rate=%s/s threads=%d duration=%ds users=%d latency=%s config=%s%n",
+        rate, threads, duration, users, latency, options);
+    System.out.printf(
+        "%-22s %8s %9s %8s %9s %9s %9s %9s %9s %10s%n",
+        "fault",
+        "logins",
+        "success",
+        "shed",
+        "p50 ms",
+        "p99 ms",
+        "max ms",
+        "busy avg",
+        "busy max",
+        "occupancy");
+    for (String fault : faults) {
+      final StubBackend backend =
+          new StubBackend().users(users).latency(StubBackend.Latency.parse(latency));
+      if (!"none".equals(fault)) backend.fault(StubBackend.Fault.parse(fault));
+      backend.start();
+      try {
+        final DegradationTest test = new DegradationTest(backend, users, options);
+        try {
+          test.run(rate, threads, warmup);
+          test.reset();
+          test.run(rate, threads, duration);
+          test.report(fault, threads, duration);
+        } finally {
+          test.factory.close();
+        }
+      } finally {
+        backend.stop();
+      }
+    }
+  }
+
+  private static String take(Map<String, String> options, String key, String defaultValue) {
+    final String value = options.remove(key);
+    return value == null ? defaultValue : value;
+  }
+
+  /** Starts logins at the rate on the worker threads and waits for the last one. */
+  private void run(double rate, int threads, int seconds) throws InterruptedException {
+    final ThreadPoolExecutor workers =
+        new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new SynchronousQueue<>());
+    workers.prestartAllCoreThreads();
+    final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    final long begin = System.nanoTime();
+    final long end = begin + TimeUnit.SECONDS.toNanos(seconds);
+    for (long due = begin; due < end; due += interval) {
+      for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+        LockSupport.parkNanos(wait);
+      }
+      maxBusy = Math.max(maxBusy, busy.get());
+      try {
+        workers.execute(this::login);
+      } catch (RejectedExecutionException e) {
+        shed++;
+      }
+    }
+    workers.shutdown();
+    workers.awaitTermination(5, TimeUnit.MINUTES);
+  }
+
+  private void reset() {
+    succeeded.reset();
+    failed.reset();
+    busyNanos.reset();
+    shed = 0;
+    maxBusy = 0;
+    synchronized (latencies) {
+      latencies.clear();
+    }
+  }
+
+  /** a login in a new session: lookup by username and password validation */
+  private void login() {
+    busy.incrementAndGet();
+    final long start = System.nanoTime();
+    boolean success = false;
+    try {
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      final String clientAddress = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+      final HTTPUserStorageProvider provider =
+          factory.create(
+              Stubs.session("/realms/" + REALM + "/login-actions/authenticate", clientAddress),
+              component);
+      try {
+        final UserModel user = provider.getUserByUsername("user" + random.nextInt(users), realm);
+        success =
+            user != null
+                && provider.isValid(
+                    realm, user, UserCredentialModel.password(StubBackend.PASSWORD));
+      } finally {
+        provider.close();
+      }
+    } catch (RuntimeException e) {
+      success = false;
+    } finally {
+      final long nanos = System.nanoTime() - start;
+      busyNanos.add(nanos);
+      busy.decrementAndGet();
+      (success ? succeeded : failed).increment();
+      synchronized (latencies) {
+        latencies.record(nanos, success);
+      }
+    }
+  }
+
+  private void report(String fault, int threads, int seconds) {
+    final long logins = succeeded.sum() + failed.sum() + shed;
+    final double[] percentiles;
+    synchronized (latencies) {
+      percentiles = latencies.percentiles(0.5, 0.99, 1.0);
+    }
+    final double busyAverage = busyNanos.sum() / (double) TimeUnit.SECONDS.toNanos(seconds);
+    System.out.printf(
+        "%-22s %8d %8.1f%% %8d %9.1f %9.1f %9.1f %9.1f %9d %9.1f%%%n",
+        fault,
+        logins,
+        logins == 0 ? 0 : 100.0 * succeeded.sum() / logins,
+        shed,
+        percentiles[0],
+        percentiles[1],
+        percentiles[2],
+        busyAverage,
+        maxBusy,
+        100.0 * busyAverage / threads);
+  }
+}
@@ -0,0 +1,124 @@
+package http.keycloak.userstorage.benchmark;
+
+import http.keycloak.userstorage.HTTPCompactUser;
+import http.keycloak.userstorage.HTTPCompactUserDeserializer;
+import http.keycloak.userstorage.HTTPHierarchy;
+import http.keycloak.userstorage.HTTPRoleDictionary;
+import http.keycloak.userstorage.HTTPUserModel;
+import http.keycloak.userstorage.HTTPUserModelDelegate;
+import http.keycloak.userstorage.stub.Stubs;
+import http.keycloak.userstorage.stub.Users;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wrapping users in {@link HTTPUserModelDelegate} and the calls Keycloak makes on every login and
+ * token refresh: role mappings, groups, role checks and attributes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DelegateBenchmark {
+
+  private static final String REALM = "delegate";
+
+  private KeycloakSession session;
+
+  private RealmModel realm;
+
+  private ComponentModel component;
+
+  private HTTPCompactUser compact;
+
+  private HTTPHierarchy hierarchy;
+
+  private HTTPUserModelDelegate delegate;
+
+  /** a role the user has through a composite role */
+  private RoleModel inheritedRole;
+
+  /** a role the user does not have */
+  private RoleModel missingRole;
+
+  @Setup
+  public void setUp() throws IOException {
+    session = Stubs.session();
+    realm = Stubs.realm(REALM);
+    component = Stubs.component();
+    hierarchy =
+        HTTPHierarchy.forComponent(component.getId(), Long.MAX_VALUE / 2, Users::hierarchy);
+    compact =
+        Users.MAPPER
+            .readerFor(HTTPCompactUser.class)
+            .withAttribute(
+                HTTPCompactUserDeserializer.DICTIONARY,
+                HTTPRoleDictionary.forComponent(component.getId()))
+            .readValue(Users.user(0));
+    delegate = wrap(compact.toModel(hierarchy));
+    inheritedRole = Stubs.role("role1", realm);
+    missingRole = Stubs.role("role59", realm);
+    if (!delegate.hasRole(inheritedRole) || delegate.hasRole(missingRole)) {
+      throw new IllegalStateException("unexpected roles " + delegate.getRoleMappings());
+    }
+  }
+
+  private HTTPUserModelDelegate wrap(HTTPUserModel model) {
+    return HTTPUserModelDelegate.createForExistingUser(session, realm, component, model, null);
+  }
+
+  /** a cached user turned into the delegate of a session, as done for every lookup */
+  @Benchmark
+  public HTTPUserModelDelegate wrapCachedUser() {
+    return wrap(compact.toModel(hierarchy));
+  }
+
+  @Benchmark
+  public Set<RoleModel> getRoleMappings() {
+    return delegate.getRoleMappings();
+  }
+
+  @Benchmark
+  public Set<GroupModel> getGroups() {
+    return delegate.getGroups();
+  }
+
+  @Benchmark
+  public boolean hasInheritedRole() {
+    return delegate.hasRole(inheritedRole);
+  }
+
+  @Benchmark
+  public boolean hasMissingRole() {
+    return delegate.hasRole(missingRole);
+  }
+
+  @Benchmark
+  public String getFirstAttribute() {
+    return delegate.getFirstAttribute("department");
+  }
+
+  @Benchmark
+  public List<String> getAttribute() {
+    return delegate.getAttribute("aliases");
+  }
+}
@@ -0,0 +1,108 @@
+package http.keycloak.userstorage.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import http.keycloak.userstorage.HTTPCompactUser;
+import http.keycloak.userstorage.HTTPCompactUserDeserializer;
+import http.keycloak.userstorage.HTTPHierarchy;
+import http.keycloak.userstorage.HTTPRoleDictionary;
+import http.keycloak.userstorage.HTTPUserModel;
+import http.keycloak.userstorage.stub.Users;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading backend responses: a single user into the compact cache representation and into a
+ * {@link HTTPUserModel}, and a page of users as read for lists and searches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeserializationBenchmark {
+
+  private static final String COMPONENT = "deserialization";
+
+  private static final TypeReference<List<HTTPUserModel>> USER_LIST =
+      new TypeReference<List<HTTPUserModel>>() {};
+
+  private byte[] user;
+
+  private HTTPRoleDictionary dictionary;
+
+  private HTTPHierarchy hierarchy;
+
+  private ObjectReader compactReader;
+
+  @Setup
+  public void setUp() {
+    user = Users.user(7).getBytes(StandardCharsets.UTF_8);
+    dictionary = HTTPRoleDictionary.forComponent(COMPONENT);
+    hierarchy = HTTPHierarchy.forComponent(COMPONENT, Long.MAX_VALUE / 2, Users::hierarchy);
+    compactReader =
+        Users.MAPPER
+            .readerFor(HTTPCompactUser.class)
+            .withAttribute(HTTPCompactUserDeserializer.DICTIONARY, dictionary);
+  }
+
+  /** GET /user/{username} as read by the connector into the user cache */
+  @Benchmark
+  public HTTPCompactUser readCompactUser() throws IOException {
+    return compactReader.readValue(user);
+  }
+
+  /** GET /user/{username} including the conversion into the model of the session */
+  @Benchmark
+  public HTTPUserModel readCompactUserToModel() throws IOException {
+    final HTTPCompactUser compact = compactReader.readValue(user);
+    return compact.toModel(hierarchy);
+  }
+
+  /** a single user read directly into the model with indexed roles */
+  @Benchmark
+  public HTTPUserModel readUserModel() throws IOException {
+    final HTTPUserModel model = Users.MAPPER.readValue(user, HTTPUserModel.class);
+    model.indexRoles(dictionary, hierarchy);
+    return model;
+  }
+
+  /** a page of GET /user */
+  @State(Scope.Benchmark)
+  public static class Page {
+
+    @Param({"20", "100"})
+    public int pageSize;
+
+    private byte[] json;
+
+    @Setup
+    public void setUp() {
+      json = Users.list(pageSize).getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /** GET /user as read for lists and searches, with indexed roles */
+  @Benchmark
+  public List<HTTPUserModel> readUserList(Page page) throws IOException {
+    final List<HTTPUserModel> users = Users.MAPPER.readValue(page.json, USER_LIST);
+    for (HTTPUserModel model : users) {
+      model.indexRoles(dictionary, hierarchy);
+    }
+    return users;
+  }
+}
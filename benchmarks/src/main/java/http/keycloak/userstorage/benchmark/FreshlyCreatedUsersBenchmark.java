@@ -0,0 +1,72 @@
+package http.keycloak.userstorage.benchmark;
+
+import http.keycloak.userstorage.FreshlyCreatedUsers;
+import http.keycloak.userstorage.HTTPUserModel;
+import http.keycloak.userstorage.HTTPUserModelDelegate;
+import http.keycloak.userstorage.stub.Stubs;
+import http.keycloak.userstorage.stub.Users;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in {@link FreshlyCreatedUsers}, that precede every lookup of the provider. Most lookups
+ * miss, because users are rarely created in the same session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FreshlyCreatedUsersBenchmark {
+
+  private FreshlyCreatedUsers freshlyCreatedUsers;
+
+  private String username;
+
+  private String missingUsername;
+
+  private String id;
+
+  @Setup
+  public void setUp() {
+    final KeycloakSession session = Stubs.session();
+    freshlyCreatedUsers = new FreshlyCreatedUsers(session);
+    final HTTPUserModel model = new HTTPUserModel(Users.id(1));
+    model.setUsername("created");
+    model.setEmail("created@example.com");
+    freshlyCreatedUsers.saveInSession(
+        HTTPUserModelDelegate.createForExistingUser(
+            session, Stubs.realm("fresh"), Stubs.component(), model, null));
+    // new strings, like the parameters of real lookups
+    username = new String("created");
+    missingUsername = new String("user42");
+    id = new String(Users.id(1));
+  }
+
+  @Benchmark
+  public Optional<HTTPUserModelDelegate> hitByUsername() {
+    return freshlyCreatedUsers.getFreshlyCreatedUserByUsername(username);
+  }
+
+  @Benchmark
+  public Optional<HTTPUserModelDelegate> missByUsername() {
+    return freshlyCreatedUsers.getFreshlyCreatedUserByUsername(missingUsername);
+  }
+
+  @Benchmark
+  public Optional<HTTPUserModelDelegate> hitById() {
+    return freshlyCreatedUsers.getFreshlyCreatedUserById(id);
+  }
+}
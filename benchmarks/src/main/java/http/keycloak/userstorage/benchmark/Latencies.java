@@ -0,0 +1,56 @@
+package http.keycloak.userstorage.benchmark;
+
+import java.util.Arrays;
+
+/** The latencies of one kind of operation, written by one thread and merged for the report. */
+final class Latencies {
+
+  private long[] nanos = new long[1024];
+
+  private int count;
+
+  private long errors;
+
+  void record(long latency, boolean success) {
+    if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+    nanos[count++] = latency;
+    if (!success) errors++;
+  }
+
+  void addAll(Latencies other) {
+    if (count + other.count > nanos.length) {
+      nanos = Arrays.copyOf(nanos, Math.max(count + other.count, nanos.length * 2));
+    }
+    System.arraycopy(other.nanos, 0, nanos, count, other.count);
+    count += other.count;
+    errors += other.errors;
+  }
+
+  void clear() {
+    count = 0;
+    errors = 0;
+  }
+
+  int count() {
+    return count;
+  }
+
+  long errors() {
+    return errors;
+  }
+
+  /**
+   * @param quantiles the quantiles, e.g. 0.5 for the median
+   * @return the latencies of the quantiles in milliseconds, 1.0 is the maximum
+   */
+  double[] percentiles(double... quantiles) {
+    final long[] sorted = Arrays.copyOf(nanos, count);
+    Arrays.sort(sorted);
+    final double[] millis = new double[quantiles.length];
+    for (int i = 0; i < quantiles.length && count > 0; i++) {
+      final int index = (int) Math.min(count - 1, Math.ceil(quantiles[i] * count) - 1);
+      millis[i] = sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+    return millis;
+  }
+}
@@ -0,0 +1,264 @@
+package http.keycloak.userstorage.benchmark;
+
+import http.keycloak.userstorage.HTTPConstants;
+import http.keycloak.userstorage.HTTPUserStorageProvider;
+import http.keycloak.userstorage.HTTPUserStorageProviderFactory;
+import http.keycloak.userstorage.stub.StubBackend;
+import http.keycloak.userstorage.stub.Stubs;
+import http.keycloak.userstorage.stub.Users;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Drives the provider end to end against an embedded {@link StubBackend}: concurrent sessions run
+ * a mix of logins, lookups by id and admin list pages, each with a new Keycloak session and
+ * provider like a real request. Reports throughput, latency percentiles and errors per operation
+ * and the requests the backend received.
+ *
+ * <p>Arguments are {@code key=value} pairs, all optional:
+ *
+ * <ul>
+ *   <li>{@code users} size of the directory, default 10000
+ *   <li>{@code sessions} concurrent sessions, default 16
+ *   <li>{@code warmup} seconds before measuring, default 5
+ *   <li>{@code duration} seconds measured, default 30
+ *   <li>{@code latency} latency of the backend, {@code fixed:<ms>}, {@code uniform:<min>:<max>}
+ *       or {@code lognormal:<median>:<p99>}, default lognormal:5:50
+ *   <li>{@code errors} share of backend requests answered with 503, default 0
+ *   <li>{@code mix} weights of the operations, default login:70,lookup:25,admin:5
+ * </ul>
+ *
+ * All other pairs are passed to the provider as config, e.g. {@code loginConcurrency=50}, and must
+ * be one of {@link HTTPConstants#CONFIG_KEYS}.
+ */
+public final class LoadTest {
+
+  private static final String REALM = "load";
+
+  private static final int PAGE_SIZE = 20;
+
+  /** the operations of a session */
+  enum Operation {
+    /** lookup by username and password validation, as in a login */
+    LOGIN("/realms/" + REALM + "/login-actions/authenticate"),
+    /** lookup by id, as in a token refresh */
+    LOOKUP("/realms/" + REALM + "/protocol/openid-connect/token"),
+    /** a page of the user list of the admin console */
+    ADMIN("/admin/realms/" + REALM + "/users");
+
+    /** path of the Keycloak request, decides the connection pool */
+    final String path;
+
+    Operation(String path) {
+      this.path = path;
+    }
+  }
+
+  private final HTTPUserStorageProviderFactory factory = new HTTPUserStorageProviderFactory();
+
+  private final ComponentModel component;
+
+  private final RealmModel realm = Stubs.realm(REALM);
+
+  private final int users;
+
+  private final Operation[] mix;
+
+  private LoadTest(StubBackend backend, int users, Operation[] mix, Map<String, String> config) {
+    this.users = users;
+    this.mix = mix;
+    final Map<String, String> componentConfig = new HashMap<>(config);
+    componentConfig.put("url", backend.getUrl());
+    componentConfig.putIfAbsent("username", "load");
+    componentConfig.putIfAbsent("password", "load");
+    this.component = Stubs.component(componentConfig);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (equals < 1) throw new IllegalArgumentException("expected key=value: " + arg);
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    final int users = Integer.parseInt(take(options, "users", "10000"));
+    final int sessions = Integer.parseInt(take(options, "sessions", "16"));
+    final int warmup = Integer.parseInt(take(options, "warmup", "5"));
+    final int duration = Integer.parseInt(take(options, "duration", "30"));
+    final String latency = take(options, "latency", "lognormal:5:50");
+    final double errors = Double.parseDouble(take(options, "errors", "0"));
+    final Operation[] mix = mix(take(options, "mix", "login:70,lookup:25,admin:5"));
+    checkConfig(options);
+
+    final StubBackend backend =
+        new StubBackend()
+            .users(users)
+            .latency(StubBackend.Latency.parse(latency))
+            .errorRate(errors)
+            .start();
+    final LoadTest test = new LoadTest(backend, users, mix, options);
+    try {
+      System.out.printf(
+          "users=%d sessions=%d latency=%s errors=%s config=%s%n",
+          users, sessions, latency, errors, options);
+      test.run(sessions, warmup);
+      backend.resetRequests();
+      final List<Map<Operation, Latencies>> latencies = test.run(sessions, duration);
+      report(latencies, duration);
+      System.out.println();
+      for (StubBackend.Endpoint endpoint : StubBackend.Endpoint.values()) {
+        final long requests = backend.getRequests(endpoint);
+        System.out.printf(
+            "backend %-13s %10d requests %10.1f/s%n",
+            endpoint, requests, requests / (double) duration);
+      }
+    } finally {
+      test.factory.close();
+      backend.stop();
+    }
+  }
+
+  private static String take(Map<String, String> options, String key, String defaultValue) {
+    final String value = options.remove(key);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Rejects the pairs, that are no config of the provider, so a misspelled key does not silently
+   * run the test with the default.
+   *
+   * @param config the pairs left after taking the options of the test
+   */
+  static void checkConfig(Map<String, String> config) {
+    for (String key : config.keySet()) {
+      if (!HTTPConstants.CONFIG_KEYS.contains(key)) {
+        throw new IllegalArgumentException(
+            "unknown option or config key: " + key + ", config keys: " + HTTPConstants.CONFIG_KEYS);
+      }
+    }
+  }
+
+  /** @return 100 operations in the proportions of the weights, e.g. login:70,lookup:30 */
+  private static Operation[] mix(String weights) {
+    final Map<Operation, Integer> parsed = new EnumMap<>(Operation.class);
+    int sum = 0;
+    for (String weight : weights.split(",")) {
+      final String[] parts = weight.split(":");
+      final int value = Integer.parseInt(parts[1]);
+      parsed.put(Operation.valueOf(parts[0].trim().toUpperCase()), value);
+      sum += value;
+    }
+    final List<Operation> operations = new ArrayList<>();
+    for (Map.Entry<Operation, Integer> entry : parsed.entrySet()) {
+      for (int i = 0; i < Math.round(entry.getValue() * 100.0 / sum); i++) {
+        operations.add(entry.getKey());
+      }
+    }
+    return operations.toArray(new Operation[0]);
+  }
+
+  private List<Map<Operation, Latencies>> run(int sessions, int seconds) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(sessions);
+    final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final List<Future<Map<Operation, Latencies>>> futures = new ArrayList<>();
+    for (int i = 0; i < sessions; i++) {
+      futures.add(executor.submit(() -> session(end)));
+    }
+    try {
+      final List<Map<Operation, Latencies>> latencies = new ArrayList<>();
+      for (Future<Map<Operation, Latencies>> future : futures) {
+        latencies.add(future.get());
+      }
+      return latencies;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs operations one after the other until the end. Every operation comes from another client
+   * address, like the traffic of many users, so the throttle per IP address does not kick in.
+   */
+  private Map<Operation, Latencies> session(long end) {
+    final Map<Operation, Latencies> latencies = new EnumMap<>(Operation.class);
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (System.nanoTime() < end) {
+      final Operation operation = mix[random.nextInt(mix.length)];
+      final int user = random.nextInt(users);
+      final String clientAddress = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+      final long start = System.nanoTime();
+      boolean success;
+      try {
+        success = execute(operation, user, clientAddress);
+      } catch (RuntimeException e) {
+        success = false;
+      }
+      latencies
+          .computeIfAbsent(operation, o -> new Latencies())
+          .record(System.nanoTime() - start, success);
+    }
+    return latencies;
+  }
+
+  private boolean execute(Operation operation, int user, String clientAddress) {
+    final KeycloakSession session = Stubs.session(operation.path, clientAddress);
+    final HTTPUserStorageProvider provider = factory.create(session, component);
+    try {
+      switch (operation) {
+        case LOGIN:
+          final UserModel model = provider.getUserByUsername("user" + user, realm);
+          return model != null
+              && provider.isValid(
+                  realm, model, UserCredentialModel.password(StubBackend.PASSWORD));
+        case LOOKUP:
+          final String id = "f:" + component.getId() + ":" + Users.id(user);
+          return provider.getUserById(id, realm) != null;
+        case ADMIN:
+          final int offset = user / PAGE_SIZE * PAGE_SIZE;
+          return !provider.getUsers(realm, offset, PAGE_SIZE).isEmpty();
+        default:
+          throw new IllegalArgumentException(operation.name());
+      }
+    } finally {
+      provider.close();
+    }
+  }
+
+  private static void report(List<Map<Operation, Latencies>> sessions, int seconds) {
+    System.out.printf(
+        "%-8s %10s %10s %10s %10s %10s %10s %10s%n",
+        "op", "count", "ops/s", "errors", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    for (Operation operation : Operation.values()) {
+      final Latencies latencies = new Latencies();
+      for (Map<Operation, Latencies> session : sessions) {
+        if (session.containsKey(operation)) latencies.addAll(session.get(operation));
+      }
+      if (latencies.count() == 0) continue;
+      final double[] percentiles = latencies.percentiles(0.5, 0.9, 0.99, 1.0);
+      System.out.printf(
+          "%-8s %10d %10.1f %10d %10.2f %10.2f %10.2f %10.2f%n",
+          operation.name().toLowerCase(),
+          latencies.count(),
+          latencies.count() / (double) seconds,
+          latencies.errors(),
+          percentiles[0],
+          percentiles[1],
+          percentiles[2],
+          percentiles[3]);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package http.keycloak.userstorage.benchmark;
+
+import http.keycloak.userstorage.HTTPCompactUser;
+import http.keycloak.userstorage.HTTPCompactUserDeserializer;
+import http.keycloak.userstorage.HTTPHierarchy;
+import http.keycloak.userstorage.HTTPRoleDictionary;
+import http.keycloak.userstorage.HTTPRoleModel;
+import http.keycloak.userstorage.HTTPUserModel;
+import http.keycloak.userstorage.stub.Stubs;
+import http.keycloak.userstorage.stub.Users;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Role mappings and role checks of a user on the role bitsets against the baseline, the former
+ * implementation, that streamed the role name lists of all groups into a new set of role models
+ * for every call. The baseline runs on the same groups and roles, so the results compare directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoleMappingBenchmark {
+
+  private static final String REALM = "roles";
+
+  private static final String COMPONENT = "roles";
+
+  private RealmModel realm;
+
+  private HTTPUserModel user;
+
+  /** groups and roles of the user, as the baseline kept them */
+  private Map<String, List<String>> groupsAndRoles;
+
+  /** a role mapped to one of the groups of the user */
+  private RoleModel grantedRole;
+
+  /** a role the user does not have */
+  private RoleModel missingRole;
+
+  @Setup
+  public void setUp() throws IOException {
+    realm = Stubs.realm(REALM);
+    final HTTPHierarchy hierarchy =
+        HTTPHierarchy.forComponent(COMPONENT, Long.MAX_VALUE / 2, Users::hierarchy);
+    final HTTPCompactUser compact =
+        Users.MAPPER
+            .readerFor(HTTPCompactUser.class)
+            .withAttribute(
+                HTTPCompactUserDeserializer.DICTIONARY, HTTPRoleDictionary.forComponent(COMPONENT))
+            .readValue(Users.user(0));
+    user = compact.toModel(hierarchy);
+    user.setRealm(realm);
+    groupsAndRoles = user.getGroupsAndRoles();
+    grantedRole = new HTTPRoleModel(groupsAndRoles.values().iterator().next().get(0), realm);
+    missingRole = Stubs.role("role59", realm);
+    if (!baselineHasRole(grantedRole) || baselineHasRole(missingRole)) {
+      throw new IllegalStateException("unexpected roles " + groupsAndRoles);
+    }
+    if (!user.hasRole(grantedRole) || user.hasRole(missingRole)) {
+      throw new IllegalStateException("unexpected roles " + user.getRoleMappings());
+    }
+  }
+
+  /** getRoleMappings of the baseline */
+  private Set<RoleModel> baselineRoleMappings() {
+    return groupsAndRoles.values().stream()
+        .flatMap(List::stream)
+        .map(role -> new HTTPRoleModel(role, realm))
+        .distinct()
+        .collect(Collectors.toSet());
+  }
+
+  /** hasRole of the baseline */
+  private boolean baselineHasRole(RoleModel role) {
+    return baselineRoleMappings().contains(role);
+  }
+
+  @Benchmark
+  public Set<RoleModel> baselineGetRoleMappings() {
+    return baselineRoleMappings();
+  }
+
+  @Benchmark
+  public boolean baselineHasGrantedRole() {
+    return baselineHasRole(grantedRole);
+  }
+
+  @Benchmark
+  public boolean baselineHasMissingRole() {
+    return baselineHasRole(missingRole);
+  }
+
+  @Benchmark
+  public Set<RoleModel> getRoleMappings() {
+    return user.getRoleMappings();
+  }
+
+  @Benchmark
+  public boolean hasGrantedRole() {
+    return user.hasRole(grantedRole);
+  }
+
+  @Benchmark
+  public boolean hasMissingRole() {
+    return user.hasRole(missingRole);
+  }
+}
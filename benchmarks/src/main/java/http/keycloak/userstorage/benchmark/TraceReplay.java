@@ -0,0 +1,306 @@
+package http.keycloak.userstorage.benchmark;
+
+import http.keycloak.userstorage.HTTPClientPools;
+import http.keycloak.userstorage.HTTPTrace;
+import http.keycloak.userstorage.HTTPUserStorageProvider;
+import http.keycloak.userstorage.HTTPUserStorageProviderFactory;
+import http.keycloak.userstorage.stub.StubBackend;
+import http.keycloak.userstorage.stub.Stubs;
+import http.keycloak.userstorage.stub.Users;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Replays a trace recorded by {@link HTTPTrace} against the provider with an embedded {@link
+ * StubBackend}, to reproduce a production load offline. Every call runs in a new Keycloak session
+ * with the priority of the recorded session. Keys are mapped to users of the stub by their hash, so
+ * a key that was repeated in production hits the same stub user again, and calls that found no
+ * user or failed look up a user that does not exist. Lists and searches request as many users as
+ * they returned.
+ *
+ * <p>Arguments are {@code key=value} pairs:
+ *
+ * <ul>
+ *   <li>{@code trace} the trace file, required
+ *   <li>{@code speed} 1 for the recorded timing, 10 for ten times faster, max to send the next call
+ *       as soon as a session is free, default 1
+ *   <li>{@code sessions} maximum concurrent calls, default 64
+ *   <li>{@code warmup} seconds of replay at max speed before the measured replay, default 5
+ *   <li>{@code users} size of the directory of the stub, default 10000
+ *   <li>{@code latency} and {@code errors} of the stub, see {@link LoadTest}
+ * </ul>
+ *
+ * All other pairs are passed to the provider as config. The latency of a replayed call is measured
+ * from the time it was due, so calls waiting for a free session count as slow.
+ */
+public final class TraceReplay {
+
+  private static final String REALM = "replay";
+
+  private final HTTPUserStorageProviderFactory factory = new HTTPUserStorageProviderFactory();
+
+  private final ComponentModel component;
+
+  private final RealmModel realm = Stubs.realm(REALM);
+
+  private final int users;
+
+  /** the latencies of the replayed calls of every thread */
+  private final Queue<Map<HTTPTrace.Method, Latencies>> replayed = new ConcurrentLinkedQueue<>();
+
+  private final ThreadLocal<Map<HTTPTrace.Method, Latencies>> threadLatencies =
+      ThreadLocal.withInitial(
+          () -> {
+            final Map<HTTPTrace.Method, Latencies> latencies =
+                new EnumMap<>(HTTPTrace.Method.class);
+            replayed.add(latencies);
+            return latencies;
+          });
+
+  private TraceReplay(StubBackend backend, int users, Map<String, String> config) {
+    this.users = users;
+    final Map<String, String> componentConfig = new HashMap<>(config);
+    componentConfig.put("url", backend.getUrl());
+    componentConfig.putIfAbsent("username", "replay");
+    componentConfig.putIfAbsent("password", "replay");
+    this.component = Stubs.component(componentConfig);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (equals < 1) throw new IllegalArgumentException("expected key=value: " + arg);
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    final String trace = options.remove("trace");
+    if (trace == null) throw new IllegalArgumentException("trace=<file> is required");
+    final String speed = take(options, "speed", "1");
+    final int sessions = Integer.parseInt(take(options, "sessions", "64"));
+    final int warmup = Integer.parseInt(take(options, "warmup", "5"));
+    final int users = Integer.parseInt(take(options, "users", "10000"));
+    final String latency = take(options, "latency", "lognormal:5:50");
+    final double errors = Double.parseDouble(take(options, "errors", "0"));
+
+    final StubBackend backend =
+        new StubBackend()
+            .users(users)
+            .latency(StubBackend.Latency.parse(latency))
+            .errorRate(errors)
+            .start();
+    final TraceReplay replay = new TraceReplay(backend, users, options);
+    try {
+      System.out.printf(
+          "trace=%s speed=%s sessions=%d users=%d latency=%s errors=%s config=%s%n",
+          trace, speed, sessions, users, latency, errors, options);
+      if (warmup > 0) {
+        // a cold provider falls behind the recorded timing and never catches up
+        try (InputStream in = Files.newInputStream(Paths.get(trace))) {
+          replay.run(new HTTPTrace.Reader(in), 0, sessions, TimeUnit.SECONDS.toNanos(warmup));
+        }
+        replay.replayed.clear();
+        backend.resetRequests();
+      }
+      try (InputStream in = Files.newInputStream(Paths.get(trace))) {
+        final double factor =
+            "max".equals(speed) ? 0 : Double.parseDouble(speed.replace("x", ""));
+        replay.run(new HTTPTrace.Reader(in), factor, sessions, 0);
+      }
+      System.out.println();
+      for (StubBackend.Endpoint endpoint : StubBackend.Endpoint.values()) {
+        System.out.printf("backend %-13s %10d requests%n", endpoint, backend.getRequests(endpoint));
+      }
+    } finally {
+      replay.factory.close();
+      backend.stop();
+    }
+  }
+
+  private static String take(Map<String, String> options, String key, String defaultValue) {
+    final String value = options.remove(key);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Sends the calls of the trace at their time divided by the speed and reports the latencies.
+   *
+   * @param reader the trace
+   * @param speed the speed, 0 for as fast as possible
+   * @param sessions maximum concurrent calls
+   * @param warmup nanoseconds to warm up the provider without report, 0 for the whole trace
+   */
+  private void run(HTTPTrace.Reader reader, double speed, int sessions, long warmup)
+      throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(sessions);
+    final Semaphore free = new Semaphore(sessions);
+    final Map<HTTPTrace.Method, Latencies> recorded = new EnumMap<>(HTTPTrace.Method.class);
+    final long begin = System.nanoTime();
+    long lag = 0;
+    try {
+      HTTPTrace.Call call;
+      while ((call = reader.next()) != null
+          && (warmup == 0 || System.nanoTime() - begin < warmup)) {
+        recorded
+            .computeIfAbsent(call.getMethod(), m -> new Latencies())
+            .record(TimeUnit.MICROSECONDS.toNanos(call.getDurationMicros()), !call.isFailed());
+        final long due =
+            speed > 0
+                ? begin + (long) (TimeUnit.MICROSECONDS.toNanos(call.getStartMicros()) / speed)
+                : System.nanoTime();
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+          LockSupport.parkNanos(wait);
+        }
+        free.acquire();
+        lag = Math.max(lag, System.nanoTime() - due);
+        final HTTPTrace.Call next = call;
+        executor.execute(
+            () -> {
+              try {
+                boolean success;
+                try {
+                  replay(next);
+                  success = true;
+                } catch (RuntimeException e) {
+                  success = false;
+                }
+                threadLatencies
+                    .get()
+                    .computeIfAbsent(next.getMethod(), m -> new Latencies())
+                    .record(System.nanoTime() - due, success);
+              } finally {
+                free.release();
+              }
+            });
+      }
+      free.acquire(sessions);
+    } finally {
+      executor.shutdownNow();
+    }
+    if (warmup == 0) report(recorded, (System.nanoTime() - begin) / 1e9, lag / 1e6);
+  }
+
+  private void replay(HTTPTrace.Call call) {
+    final int user = (int) Long.remainderUnsigned(call.getKeyHash(), users);
+    final boolean found = !call.isFailed() && call.getSize() > 0;
+    final String username = found ? "user" + user : "missing" + user;
+    final String id = found ? Users.id(user) : "missing" + user;
+    final int limit = (int) Math.max(1, Math.min(call.getSize(), Integer.MAX_VALUE));
+    final KeycloakSession session = session(call.getPriority());
+    final HTTPUserStorageProvider provider = factory.create(session, component);
+    try {
+      switch (call.getMethod()) {
+        case GET_BY_USERNAME:
+          provider.getUserByUsername(username, realm);
+          break;
+        case GET_BY_ID:
+          provider.getUserById(storageId(id), realm);
+          break;
+        case GET_BY_EMAIL:
+          provider.getUserByEmail(username + "@example.com", realm);
+          break;
+        case VALIDATE_PASSWORD:
+          final Map<String, Object> answers = new HashMap<>();
+          answers.put("getUsername", "user" + user);
+          answers.put("getId", storageId(Users.id(user)));
+          provider.isValid(
+              realm,
+              Stubs.stub(UserModel.class, answers),
+              UserCredentialModel.password(found ? StubBackend.PASSWORD : "wrong"));
+          break;
+        case COUNT:
+          provider.getUsersCount(realm);
+          break;
+        case LIST:
+          provider.getUsers(realm, 0, limit);
+          break;
+        case SEARCH:
+          provider.searchForUser("user" + user, realm, 0, limit);
+          break;
+        case SEARCH_BY_PARAMS:
+          provider.searchForUser(
+              Collections.singletonMap("username", "user" + user), realm, 0, limit);
+          break;
+        default:
+          throw new IllegalArgumentException(call.getMethod().name());
+      }
+    } finally {
+      provider.close();
+    }
+  }
+
+  private String storageId(String externalId) {
+    return "f:" + component.getId() + ":" + externalId;
+  }
+
+  /** @return a session, whose request has the priority */
+  private static KeycloakSession session(HTTPClientPools.Priority priority) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final String clientAddress = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+    switch (priority) {
+      case LOGIN:
+        return Stubs.session("/realms/" + REALM + "/login-actions/authenticate", clientAddress);
+      case ADMIN:
+        return Stubs.session("/admin/realms/" + REALM + "/users", clientAddress);
+      default:
+        return Stubs.session();
+    }
+  }
+
+  private void report(Map<HTTPTrace.Method, Latencies> recorded, double seconds, double lagMillis) {
+    System.out.printf(
+        "replayed in %.1fs, the calls started at most %.1fms late%n", seconds, lagMillis);
+    System.out.printf("%-37s | %-29s | %s%n", "", "recorded", "replayed");
+    System.out.printf(
+        "%-17s %9s %9s | %9s %9s %9s | %9s %9s %9s %9s%n",
+        "method",
+        "count",
+        "ops/s",
+        "errors",
+        "p50 ms",
+        "p99 ms",
+        "errors",
+        "p50 ms",
+        "p99 ms",
+        "max ms");
+    for (HTTPTrace.Method method : HTTPTrace.Method.values()) {
+      final Latencies replayedLatencies = new Latencies();
+      for (Map<HTTPTrace.Method, Latencies> thread : replayed) {
+        if (thread.containsKey(method)) replayedLatencies.addAll(thread.get(method));
+      }
+      if (replayedLatencies.count() == 0) continue;
+      final double[] original = recorded.get(method).percentiles(0.5, 0.99);
+      final double[] replay = replayedLatencies.percentiles(0.5, 0.99, 1.0);
+      System.out.printf(
+          "%-17s %9d %9.1f | %9d %9.2f %9.2f | %9d %9.2f %9.2f %9.2f%n",
+          method.name().toLowerCase(),
+          replayedLatencies.count(),
+          replayedLatencies.count() / seconds,
+          recorded.get(method).errors(),
+          original[0],
+          original[1],
+          replayedLatencies.errors(),
+          replay[0],
+          replay[1],
+          replay[2]);
+    }
+  }
+}
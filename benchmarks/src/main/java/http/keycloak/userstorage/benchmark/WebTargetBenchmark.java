@@ -0,0 +1,73 @@
+package http.keycloak.userstorage.benchmark;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the request of a lookup: from the base URL on every call, as the connector did before
+ * the targets were prebuilt, and from a prebuilt template target, as the connector does now.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebTargetBenchmark {
+
+  private static final String URL = "http://localhost:8080/api";
+
+  private static final String AUTH = "Basic dXNlcjpwYXNzd29yZA==";
+
+  private Client client;
+
+  private WebTarget userByNameTarget;
+
+  @Setup
+  public void setUp() {
+    client = ResteasyClientBuilder.newBuilder().build();
+    userByNameTarget = client.target(URL).path("/user").path("{username}");
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.close();
+  }
+
+  @Benchmark
+  public URI perCallTarget() {
+    return client.target(URL).path("/user").path("user42").getUri();
+  }
+
+  @Benchmark
+  public URI prebuiltTarget() {
+    return userByNameTarget.resolveTemplate("username", "user42").getUri();
+  }
+
+  /** the prebuilt target and the request with the headers of the connector */
+  @Benchmark
+  public Invocation.Builder prebuiltRequest() {
+    return userByNameTarget
+        .resolveTemplate("username", "user42")
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .header(HttpHeaders.AUTHORIZATION, AUTH)
+        .header("X-Request-ID", "4f1c2a9e-7d3b-4e8a-9c61-0b5d2f7e8a13");
+  }
+}
@@ -0,0 +1,91 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * One entry of a bulk update (POST /user/bulk). The backend answers with a list of {@link Result}
+ * in any order, matched to the entries by their id. An entry without a result has failed.
+ *
+ * <pre>
+ * [{ "id": "jdoe", "idempotencyKey": "...", "patch": { "firstName": "John" } }]
+ * </pre>
+ */
+public class HTTPBulkUpdate {
+
+  private final String id;
+
+  private final String idempotencyKey;
+
+  private final ObjectNode patch;
+
+  public HTTPBulkUpdate(String id, String idempotencyKey, ObjectNode patch) {
+    this.id = id;
+    this.idempotencyKey = idempotencyKey;
+    this.patch = patch;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getIdempotencyKey() {
+    return idempotencyKey;
+  }
+
+  public ObjectNode getPatch() {
+    return patch;
+  }
+
+  /** Result of one entry of a bulk update */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static class Result {
+
+    private String id;
+
+    private int status;
+
+    private String error;
+
+    public Result() {}
+
+    public Result(String id, int status, String error) {
+      this.id = id;
+      this.status = status;
+      this.error = error;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public void setId(String id) {
+      this.id = id;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public void setStatus(int status) {
+      this.status = status;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public void setError(String error) {
+      this.error = error;
+    }
+
+    public boolean isSuccessful() {
+      return status >= 200 && status < 300;
+    }
+
+    @Override
+    public String toString() {
+      return error == null ? id + " (" + status + ")" : id + " (" + status + " " + error + ")";
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of the users changed since a watermark as returned by the backend
+ * (GET /user?modifiedSince=...&cursor=...).
+ *
+ * <pre>
+ * {
+ *   "users": [{ "id": "jdoe", ... }],
+ *   "deleted": ["jroe"],
+ *   "cursor": "next page or null",
+ *   "watermark": "1589288400000"
+ * }
+ * </pre>
+ *
+ * users contains the complete changed or new users, deleted the ids of removed users. cursor is
+ * null on the last page. The watermark of the last page is sent as modifiedSince with the next
+ * synchronization, it is opaque to Keycloak.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HTTPChangedUsers {
+
+  private List<HTTPUserModel> users = new ArrayList<>();
+
+  private List<String> deleted = new ArrayList<>();
+
+  private String cursor;
+
+  private String watermark;
+
+  public List<HTTPUserModel> getUsers() {
+    return users;
+  }
+
+  public void setUsers(List<HTTPUserModel> users) {
+    this.users = users == null ? new ArrayList<>() : users;
+  }
+
+  public List<String> getDeleted() {
+    return deleted;
+  }
+
+  public void setDeleted(List<String> deleted) {
+    this.deleted = deleted == null ? new ArrayList<>() : deleted;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+
+  public String getWatermark() {
+    return watermark;
+  }
+
+  public void setWatermark(String watermark) {
+    this.watermark = watermark;
+  }
+}
@@ -0,0 +1,130 @@
+package http.keycloak.userstorage;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.WebTarget;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+/**
+ * A pool of http connections to the backend with its own concurrency limit and timeouts. The
+ * pools of a component are isolated, so e.g. an administrator paging through all users never takes
+ * a connection a login needs. A slot is held until the response is closed, because the connection
+ * returns to the pool only then.
+ *
+ * A request waits at most the timeout of the pool for a free slot, otherwise it is rejected with a
+ * {@link ModelException}. A pool with a prior pool does not start requests, while requests are
+ * waiting in the prior pool or its prior pools, so logins are always served first.
+ */
+public class HTTPClientPool {
+
+  private static final Logger logger = Logger.getLogger(HTTPClientPool.class);
+
+  /** pause of a request, that gives way to the prior pool */
+  private static final long YIELD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final String name;
+
+  private final Client client;
+
+  private final WebTarget target;
+
+  private final int concurrency;
+
+  private final Semaphore slots;
+
+  private final long timeout;
+
+  /** null for the pool with the highest priority */
+  private final HTTPClientPool prior;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  /**
+   * @param name name of the pool for log messages
+   * @param client the client, that is closed with the pool
+   * @param url base url of the backend
+   * @param concurrency maximum number of requests at the same time
+   * @param timeout milliseconds a request waits for a slot
+   * @param prior pool, whose waiting requests are served first, or null
+   */
+  public HTTPClientPool(
+      String name, Client client, String url, int concurrency, int timeout, HTTPClientPool prior) {
+    this.name = name;
+    this.client = client;
+    this.target = client.target(url);
+    this.concurrency = Math.max(1, concurrency);
+    this.slots = new Semaphore(this.concurrency, true);
+    this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    this.prior = prior;
+  }
+
+  /**
+   * @return the base target of the backend, requests must be sent while holding a slot of {@link
+   *     #acquire}
+   */
+  public WebTarget target() {
+    return target;
+  }
+
+  /**
+   * Takes a slot for a request. The slot must be released with {@link #release}, after the
+   * response was closed.
+   *
+   * @throws ModelException if no slot got free within the timeout
+   */
+  public void acquire() {
+    if (!tryAcquire()) {
+      logger.warnf("request rejected, %s", this);
+      throw new ModelException("Too many requests to the http storage, please try again later");
+    }
+  }
+
+  /** Releases a slot taken with {@link #acquire}. */
+  public void release() {
+    slots.release();
+  }
+
+  private boolean tryAcquire() {
+    final long deadline = System.nanoTime() + timeout;
+    waiting.incrementAndGet();
+    try {
+      while (isPriorWaiting()) {
+        if (deadline - System.nanoTime() <= 0) return false;
+        LockSupport.parkNanos(YIELD_NANOS);
+      }
+      return slots.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  private boolean isPriorWaiting() {
+    return prior != null && (prior.getWaiting() > 0 || prior.isPriorWaiting());
+  }
+
+  /** @return number of requests waiting for a slot right now */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /** @return number of requests running right now */
+  public int getActive() {
+    return concurrency - slots.availablePermits();
+  }
+
+  public void close() {
+    client.close();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("pool %s: active=%d, waiting=%d", name, getActive(), getWaiting());
+  }
+}
@@ -0,0 +1,90 @@
+package http.keycloak.userstorage;
+
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * The isolated http connection pools of a component: logins, admin console and lists, and
+ * background work like synchronization and the write journal. Logins have the highest priority,
+ * background work the lowest.
+ */
+public class HTTPClientPools {
+
+  public enum Priority {
+    /** lookups and password verifications of logins */
+    LOGIN,
+    /** requests of the admin console and all lists and searches */
+    ADMIN,
+    /** synchronization, the write journal and other work without a waiting user */
+    BACKGROUND
+  }
+
+  private final HTTPClientPool login;
+
+  private final HTTPClientPool admin;
+
+  private final HTTPClientPool background;
+
+  public HTTPClientPools(HTTPConfig cfg) {
+    this.login =
+        new HTTPClientPool(
+            "login",
+            HTTPConnector.newClient(cfg.getLoginConcurrency(), cfg.getLoginTimeout()),
+            cfg.getUrl(),
+            cfg.getLoginConcurrency(),
+            cfg.getLoginTimeout(),
+            null);
+    this.admin =
+        new HTTPClientPool(
+            "admin",
+            HTTPConnector.newClient(cfg.getAdminConcurrency(), cfg.getAdminTimeout()),
+            cfg.getUrl(),
+            cfg.getAdminConcurrency(),
+            cfg.getAdminTimeout(),
+            login);
+    this.background =
+        new HTTPClientPool(
+            "background",
+            HTTPConnector.newClient(cfg.getBackgroundConcurrency(), cfg.getBackgroundTimeout()),
+            cfg.getUrl(),
+            cfg.getBackgroundConcurrency(),
+            cfg.getBackgroundTimeout(),
+            admin);
+  }
+
+  /**
+   * @param priority priority of the requests
+   * @return the pool of the priority
+   */
+  public HTTPClientPool get(Priority priority) {
+    switch (priority) {
+      case LOGIN:
+        return login;
+      case ADMIN:
+        return admin;
+      default:
+        return background;
+    }
+  }
+
+  /**
+   * Returns the priority of the requests of a session: requests to the admin REST API are admin
+   * requests, sessions without a http request are background work, all others are logins.
+   *
+   * @param session the session
+   * @return the priority of its lookups
+   */
+  public static Priority priorityOf(KeycloakSession session) {
+    final KeycloakContext context = session.getContext();
+    if (context == null || context.getConnection() == null) return Priority.BACKGROUND;
+    return context.getUri().getDelegate().getPath().startsWith("/admin/realms/")
+        ? Priority.ADMIN
+        : Priority.LOGIN;
+  }
+
+  public void close() {
+    login.close();
+    admin.close();
+    background.close();
+  }
+}
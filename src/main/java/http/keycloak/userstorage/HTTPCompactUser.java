@@ -0,0 +1,193 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact and immutable representation of a user, that is kept in the {@link HTTPUserCache}.
+ *
+ * Attribute names, required actions and group names are interned, single valued attributes are
+ * stored without a list and all maps are stored as parallel arrays. Roles are stored as bitsets of
+ * the {@link HTTPRoleDictionary} of the component. A {@link HTTPUserModel} is only created, when a
+ * session needs the user.
+ */
+@JsonDeserialize(using = HTTPCompactUserDeserializer.class)
+public final class HTTPCompactUser {
+
+  private static final String[] NO_STRINGS = new String[0];
+  private static final Object[] NO_VALUES = new Object[0];
+  private static final long[][] NO_ROLES = new long[0][];
+
+  private static final int ENABLED = 1;
+  private static final int EMAIL_VERIFIED = 2;
+  private static final int CREATED_TIMESTAMP = 4;
+  private static final int REQUIRED_ACTIONS = 8;
+
+  /** upper bound for the shared strings, further strings are not interned */
+  private static final int MAX_INTERNED = 100_000;
+
+  private static final Map<String, String> INTERNED = new ConcurrentHashMap<>();
+
+  private final String id;
+  private final String username;
+  private final String email;
+  private final String firstName;
+  private final String lastName;
+  private final long createdTimestamp;
+  private final byte flags;
+
+  private final String[] attributeNames;
+
+  /** either a String for single values or a String[] */
+  private final Object[] attributeValues;
+
+  private final String[] requiredActions;
+
+  private final String[] groupNames;
+  private final long[][] groupRoles;
+  private final HTTPRoleDictionary dictionary;
+
+  /** ETag of the response, the user was read from, or null */
+  private final String etag;
+
+  HTTPCompactUser(
+      String id,
+      String username,
+      String email,
+      String firstName,
+      String lastName,
+      Long createdTimestamp,
+      boolean enabled,
+      boolean emailVerified,
+      String[] attributeNames,
+      Object[] attributeValues,
+      String[] requiredActions,
+      String[] groupNames,
+      long[][] groupRoles,
+      HTTPRoleDictionary dictionary) {
+    this.id = id;
+    this.username = username;
+    this.email = email;
+    this.firstName = firstName;
+    this.lastName = lastName;
+    this.createdTimestamp = createdTimestamp == null ? 0 : createdTimestamp;
+    this.flags =
+        (byte)
+            ((enabled ? ENABLED : 0)
+                | (emailVerified ? EMAIL_VERIFIED : 0)
+                | (createdTimestamp != null ? CREATED_TIMESTAMP : 0)
+                | (requiredActions != null ? REQUIRED_ACTIONS : 0));
+    this.attributeNames = attributeNames.length == 0 ? NO_STRINGS : attributeNames;
+    this.attributeValues = attributeValues.length == 0 ? NO_VALUES : attributeValues;
+    this.requiredActions = requiredActions == null ? NO_STRINGS : requiredActions;
+    this.groupNames = groupNames.length == 0 ? NO_STRINGS : groupNames;
+    this.groupRoles = groupRoles.length == 0 ? NO_ROLES : groupRoles;
+    this.dictionary = dictionary;
+    this.etag = null;
+  }
+
+  private HTTPCompactUser(HTTPCompactUser user, String etag) {
+    this.id = user.id;
+    this.username = user.username;
+    this.email = user.email;
+    this.firstName = user.firstName;
+    this.lastName = user.lastName;
+    this.createdTimestamp = user.createdTimestamp;
+    this.flags = user.flags;
+    this.attributeNames = user.attributeNames;
+    this.attributeValues = user.attributeValues;
+    this.requiredActions = user.requiredActions;
+    this.groupNames = user.groupNames;
+    this.groupRoles = user.groupRoles;
+    this.dictionary = user.dictionary;
+    this.etag = etag;
+  }
+
+  /**
+   * @param etag ETag of the response, the user was read from
+   * @return this user with the ETag, the arrays are shared
+   */
+  HTTPCompactUser withEtag(String etag) {
+    return etag == null || etag.equals(this.etag) ? this : new HTTPCompactUser(this, etag);
+  }
+
+  /**
+   * Returns a shared instance of the given string. Only used for strings with a small number of
+   * distinct values like attribute names, role and group names.
+   *
+   * @param value string, may be null
+   * @return the shared instance
+   */
+  static String intern(String value) {
+    if (value == null) return null;
+    String interned = INTERNED.get(value);
+    if (interned != null) return interned;
+    if (INTERNED.size() >= MAX_INTERNED) return value;
+    interned = INTERNED.putIfAbsent(value, value);
+    return interned == null ? value : interned;
+  }
+
+  static Object compactValue(Collection<String> values) {
+    if (values == null || values.isEmpty()) return NO_STRINGS;
+    if (values.size() == 1) return values.iterator().next();
+    return values.toArray(NO_STRINGS);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("HTTPCompactUser(id=%s, username=%s)", id, username);
+  }
+
+  /**
+   * Creates a changeable user model from this compact user.
+   *
+   * @param hierarchy role and group hierarchy of the component
+   * @return a new user model
+   */
+  public HTTPUserModel toModel(HTTPHierarchy hierarchy) {
+    HTTPUserModel user = new HTTPUserModel(id);
+    user.setUsername(username);
+    user.setEmail(email);
+    user.setFirstName(firstName);
+    user.setLastName(lastName);
+    user.setCreatedTimestamp((flags & CREATED_TIMESTAMP) != 0 ? createdTimestamp : null);
+    user.setEnabled((flags & ENABLED) != 0);
+    user.setEmailVerified((flags & EMAIL_VERIFIED) != 0);
+    user.setEtag(etag);
+
+    Map<String, List<String>> attributes = new HashMap<>();
+    for (int i = 0; i < attributeNames.length; i++) {
+      Object value = attributeValues[i];
+      attributes.put(
+          attributeNames[i],
+          value instanceof String
+              ? new ArrayList<>(Collections.singletonList((String) value))
+              : new ArrayList<>(Arrays.asList((String[]) value)));
+    }
+    user.setAttributes(attributes);
+
+    if ((flags & REQUIRED_ACTIONS) != 0) {
+      user.setRequiredActions(new HashSet<>(Arrays.asList(requiredActions)));
+    }
+
+    Map<String, long[]> groups = new LinkedHashMap<>();
+    for (int i = 0; i < groupNames.length; i++) {
+      groups.put(groupNames[i], groupRoles[i]);
+    }
+    user.setRoles(dictionary, hierarchy, groups);
+    return user;
+  }
+}
@@ -0,0 +1,150 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a HTTPUserModel JSON directly into a {@link HTTPCompactUser}, without creating the maps
+ * and lists of a {@link HTTPUserModel}.
+ *
+ * The role dictionary of the component must be passed as reader attribute {@link #DICTIONARY}.
+ */
+public class HTTPCompactUserDeserializer extends StdDeserializer<HTTPCompactUser> {
+
+  private static final long serialVersionUID = 1L;
+
+  /** reader attribute that contains the {@link HTTPRoleDictionary} of the component */
+  public static final String DICTIONARY = HTTPRoleDictionary.class.getName();
+
+  public HTTPCompactUserDeserializer() {
+    super(HTTPCompactUser.class);
+  }
+
+  @Override
+  public HTTPCompactUser deserialize(JsonParser p, DeserializationContext ctxt)
+      throws IOException {
+    HTTPRoleDictionary dictionary = (HTTPRoleDictionary) ctxt.getAttribute(DICTIONARY);
+    if (dictionary == null) {
+      throw new IllegalStateException("no role dictionary given for " + HTTPCompactUser.class);
+    }
+
+    String id = null;
+    String username = null;
+    String email = null;
+    String firstName = null;
+    String lastName = null;
+    Long createdTimestamp = null;
+    boolean enabled = false;
+    boolean emailVerified = false;
+    List<String> attributeNames = new ArrayList<>();
+    List<Object> attributeValues = new ArrayList<>();
+    String[] requiredActions = null;
+    List<String> groupNames = new ArrayList<>();
+    List<long[]> groupRoles = new ArrayList<>();
+
+    JsonToken token = p.currentToken();
+    if (token == JsonToken.START_OBJECT) token = p.nextToken();
+    for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+      String field = p.getCurrentName();
+      JsonToken value = p.nextToken();
+      switch (field) {
+        case "id":
+          id = text(p);
+          break;
+        case "username":
+          username = text(p);
+          break;
+        case "email":
+          email = text(p);
+          break;
+        case "firstName":
+          firstName = text(p);
+          break;
+        case "lastName":
+          lastName = text(p);
+          break;
+        case "createdTimestamp":
+          createdTimestamp = value == JsonToken.VALUE_NULL ? null : p.getValueAsLong();
+          break;
+        case "enabled":
+          enabled = p.getValueAsBoolean();
+          break;
+        case "emailVerified":
+          emailVerified = p.getValueAsBoolean();
+          break;
+        case "attributes":
+          for (JsonToken t = objectStart(p); t == JsonToken.FIELD_NAME; t = p.nextToken()) {
+            attributeNames.add(HTTPCompactUser.intern(p.getCurrentName()));
+            p.nextToken();
+            attributeValues.add(HTTPCompactUser.compactValue(strings(p, false)));
+          }
+          break;
+        case "requiredActions":
+          requiredActions =
+              value == JsonToken.VALUE_NULL ? null : strings(p, true).toArray(new String[0]);
+          break;
+        case "groupsAndRoles":
+          for (JsonToken t = objectStart(p); t == JsonToken.FIELD_NAME; t = p.nextToken()) {
+            groupNames.add(HTTPCompactUser.intern(p.getCurrentName()));
+            p.nextToken();
+            groupRoles.add(dictionary.encode(strings(p, false)));
+          }
+          break;
+        default:
+          p.skipChildren();
+      }
+    }
+
+    return new HTTPCompactUser(
+        id,
+        username,
+        email,
+        firstName,
+        lastName,
+        createdTimestamp,
+        enabled,
+        emailVerified,
+        attributeNames.toArray(new String[0]),
+        attributeValues.toArray(),
+        requiredActions,
+        groupNames.toArray(new String[0]),
+        groupRoles.toArray(new long[0][]),
+        dictionary);
+  }
+
+  private static String text(JsonParser p) throws IOException {
+    return p.currentToken() == JsonToken.VALUE_NULL ? null : p.getValueAsString();
+  }
+
+  /** @return the first field name of an object or END_OBJECT, also for null values */
+  private static JsonToken objectStart(JsonParser p) throws IOException {
+    if (p.currentToken() != JsonToken.START_OBJECT) {
+      p.skipChildren();
+      return JsonToken.END_OBJECT;
+    }
+    return p.nextToken();
+  }
+
+  /** reads an array of strings, a single string or null */
+  private static List<String> strings(JsonParser p, boolean intern) throws IOException {
+    List<String> values = new ArrayList<>(1);
+    JsonToken token = p.currentToken();
+    if (token == JsonToken.START_ARRAY) {
+      for (token = p.nextToken(); token != JsonToken.END_ARRAY; token = p.nextToken()) {
+        if (token != JsonToken.VALUE_NULL) values.add(string(p, intern));
+      }
+    } else if (token != JsonToken.VALUE_NULL) {
+      values.add(string(p, intern));
+    }
+    return values;
+  }
+
+  private static String string(JsonParser p, boolean intern) throws IOException {
+    return intern ? HTTPCompactUser.intern(p.getValueAsString()) : p.getValueAsString();
+  }
+}
@@ -0,0 +1,307 @@
+package http.keycloak.userstorage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+
+/**
+ * Resources of one storage provider component, that are shared by all sessions: the connection
+ * pools and connectors, the user cache, the optional write-behind journal, the password
+ * verification lane, throttles and verifier cache, the optional trace and health probe and the
+ * validation times of imported users.
+ *
+ * <p>The factory replaces the component, when its config changes. Sessions and syncs acquire the
+ * component and release it, when they are done, so a replaced component is only retired and
+ * closed, when the last of them has released it. The write journal is handed over to the new
+ * component, if both use the same journal directory, because a journal file must only be written
+ * by one journal.
+ */
+public class HTTPComponent implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(HTTPComponent.class);
+
+  /** upper bound of the validation times, expired times are evicted when it is reached */
+  private static final int MAX_VALIDATED = 100_000;
+
+  private final HTTPConfig cfg;
+
+  private final HTTPUserCache userCache;
+
+  private final HTTPClientPools pools;
+
+  private final HTTPMetrics metrics;
+
+  /** sends the chunks of bulk updates in parallel, shared by the connectors */
+  private final ExecutorService writeExecutor;
+
+  private final Map<HTTPClientPools.Priority, HTTPConnector> connectors =
+      new EnumMap<>(HTTPClientPools.Priority.class);
+
+  private final HTTPWriteJournal writeJournal;
+
+  /** true, if the write journal was handed over to the next component, guarded by this */
+  private boolean journalHandedOver;
+
+  /** sessions and syncs using the component, guarded by this */
+  private int users;
+
+  /** true, if the component was replaced or removed, guarded by this */
+  private boolean retired;
+
+  /** guarded by this */
+  private boolean closed;
+
+  private final HTTPVerificationLane verificationLane;
+
+  private final HTTPThrottle userThrottle;
+
+  private final HTTPThrottle ipThrottle;
+
+  private final HTTPVerifierCache verifierCache;
+
+  private final HTTPTrace trace;
+
+  private final HTTPHealth health;
+
+  private final long validationInterval;
+
+  /** realm and id of imported users to the last time they were compared with the backend */
+  private final Map<String, Long> validated = new ConcurrentHashMap<>();
+
+  /**
+   * @param componentId id of the storage provider component
+   * @param cfg config of the component
+   * @param previous the component replaced by this one or null, its write journal is taken over
+   */
+  public HTTPComponent(String componentId, HTTPConfig cfg, HTTPComponent previous) {
+    this.cfg = cfg;
+    this.userCache = new HTTPUserCache(cfg);
+    this.verificationLane = new HTTPVerificationLane(cfg);
+    this.userThrottle = new HTTPThrottle(cfg.getThrottleUser());
+    this.ipThrottle = new HTTPThrottle(cfg.getThrottleIp());
+    this.verifierCache = new HTTPVerifierCache(cfg);
+    if (verifierCache.isEnabled()) userCache.setInvalidationListener(verifierCache::invalidate);
+    this.validationInterval = TimeUnit.SECONDS.toMillis(cfg.getImportValidationInterval());
+    this.pools = new HTTPClientPools(cfg);
+    this.metrics = new HTTPMetrics(componentId, cfg.getLogSummaryInterval());
+    this.trace = cfg.isTrace() ? openTrace(componentId, cfg) : null;
+    this.health = cfg.getHealthInterval() > 0 ? new HTTPHealth(componentId, cfg) : null;
+    this.writeExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(1, cfg.getWriteParallelism()),
+            runnable -> {
+              final Thread thread = new Thread(runnable, "http-write-" + componentId);
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    // background work sends updates directly, also the updates of the journal itself, and keeps
+    // trying while the backend is unavailable
+    final HTTPConnector background =
+        newConnector(componentId, cfg, null, null, HTTPClientPools.Priority.BACKGROUND);
+    connectors.put(HTTPClientPools.Priority.BACKGROUND, background);
+    this.writeJournal =
+        cfg.isWriteBehind() ? openJournal(componentId, cfg, background, previous) : null;
+    connectors.put(
+        HTTPClientPools.Priority.LOGIN,
+        newConnector(componentId, cfg, health, writeJournal, HTTPClientPools.Priority.LOGIN));
+    connectors.put(
+        HTTPClientPools.Priority.ADMIN,
+        newConnector(componentId, cfg, health, writeJournal, HTTPClientPools.Priority.ADMIN));
+  }
+
+  private HTTPConnector newConnector(
+      String componentId,
+      HTTPConfig cfg,
+      HTTPHealth health,
+      HTTPWriteJournal writeJournal,
+      HTTPClientPools.Priority priority) {
+    return new HTTPConnector(
+        componentId, cfg, userCache, metrics, health, writeJournal, writeExecutor, pools, priority);
+  }
+
+  private static HTTPWriteJournal openJournal(
+      String componentId, HTTPConfig cfg, HTTPConnector httpConnector, HTTPComponent previous) {
+    final HTTPWriteJournal handedOver =
+        previous == null ? null : previous.handOverJournal(cfg.getJournalDirectory());
+    if (handedOver != null) {
+      handedOver.reconnect(cfg, httpConnector);
+      return handedOver;
+    }
+    try {
+      return new HTTPWriteJournal(componentId, cfg, httpConnector);
+    } catch (IOException e) {
+      throw new RuntimeException("Opening the write journal has failed", e);
+    }
+  }
+
+  private static HTTPTrace openTrace(String componentId, HTTPConfig cfg) {
+    try {
+      return new HTTPTrace(componentId, cfg);
+    } catch (IOException e) {
+      // the trace is a diagnostic aid, the component works without it
+      logger.warnf(e, "creating the trace of %s has failed", componentId);
+      return null;
+    }
+  }
+
+  public HTTPConfig getConfig() {
+    return cfg;
+  }
+
+  public HTTPUserCache getUserCache() {
+    return userCache;
+  }
+
+  /** @return the request metrics */
+  public HTTPMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** @return the connection pools */
+  public HTTPClientPools getPools() {
+    return pools;
+  }
+
+  /**
+   * @param priority priority of the requests
+   * @return the connector, that sends lookups, password verifications and updates with the
+   *     priority
+   */
+  public HTTPConnector getConnector(HTTPClientPools.Priority priority) {
+    return connectors.get(priority);
+  }
+
+  /**
+   * Hands the write journal over to the next component, that uses the same journal directory. The
+   * sessions of this component keep appending to it.
+   *
+   * @param journalDirectory journal directory of the next component
+   * @return the journal or null, if this component has no journal in the directory
+   */
+  private synchronized HTTPWriteJournal handOverJournal(String journalDirectory) {
+    if (writeJournal == null
+        || journalHandedOver
+        || closed
+        || !cfg.getJournalDirectory().equals(journalDirectory)) {
+      return null;
+    }
+    journalHandedOver = true;
+    return writeJournal;
+  }
+
+  /**
+   * @return the write journal, if write-behind is enabled
+   */
+  public Optional<HTTPWriteJournal> getWriteJournal() {
+    return Optional.ofNullable(writeJournal);
+  }
+
+  /**
+   * @return the trace of the calls, if tracing is enabled
+   */
+  public Optional<HTTPTrace> getTrace() {
+    return Optional.ofNullable(trace);
+  }
+
+  /**
+   * @return the health probe of the backend, if enabled
+   */
+  public Optional<HTTPHealth> getHealth() {
+    return Optional.ofNullable(health);
+  }
+
+  public HTTPVerificationLane getVerificationLane() {
+    return verificationLane;
+  }
+
+  /** @return the password verification throttle keyed by realm and username */
+  public HTTPThrottle getUserThrottle() {
+    return userThrottle;
+  }
+
+  /** @return the password verification throttle keyed by client IP */
+  public HTTPThrottle getIpThrottle() {
+    return ipThrottle;
+  }
+
+  /** @return the cache of successful password verifications */
+  public HTTPVerifierCache getVerifierCache() {
+    return verifierCache;
+  }
+
+  /**
+   * @param realmId realm of the imported user
+   * @param externalId id of the user in the backend
+   * @return true, if the imported user was compared with the backend within the validation
+   *     interval
+   */
+  public boolean isValidated(String realmId, String externalId) {
+    Long validatedAt = validated.get(realmId + "/" + externalId);
+    return validatedAt != null && System.currentTimeMillis() - validatedAt < validationInterval;
+  }
+
+  /**
+   * Remembers, that an imported user was compared with the backend right now.
+   *
+   * @param realmId realm of the imported user
+   * @param externalId id of the user in the backend
+   */
+  public void setValidated(String realmId, String externalId) {
+    final long now = System.currentTimeMillis();
+    if (validated.size() >= MAX_VALIDATED) {
+      HTTPEviction.evict(validated, MAX_VALIDATED, at -> now - at >= validationInterval);
+    }
+    validated.put(realmId + "/" + externalId, now);
+  }
+
+  /**
+   * Acquires the component for a session or a sync, it must be released afterwards.
+   *
+   * @return false, if the component is retired and must not be used
+   */
+  public synchronized boolean acquire() {
+    if (retired) return false;
+    users++;
+    return true;
+  }
+
+  /** Releases the component, a retired component is closed by its last user. */
+  public synchronized void release() {
+    users--;
+    if (retired && users == 0) close();
+  }
+
+  /**
+   * Retires a replaced or removed component. It is closed right away or by its last user, so
+   * running requests and appends to the write journal are not cut off.
+   */
+  public synchronized void retire() {
+    retired = true;
+    if (users == 0) close();
+  }
+
+  /** Closes the component, also if it is still in use, e.g. at shutdown. */
+  @Override
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    if (health != null) health.close();
+    if (writeJournal != null && !journalHandedOver) {
+      if (!writeJournal.isDrained()) {
+        logger.warn("closing write journal with pending updates, they are sent after a restart");
+      }
+      writeJournal.close();
+    }
+    writeExecutor.shutdownNow();
+    if (trace != null) trace.close();
+    pools.close();
+  }
+}
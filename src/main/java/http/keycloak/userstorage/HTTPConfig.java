@@ -1,5 +1,6 @@
 package http.keycloak.userstorage;
 
+import java.util.Objects;
 import org.keycloak.common.util.MultivaluedHashMap;
 
 /**
@@ -24,16 +25,270 @@ public class HTTPConfig {
     return config.getFirst(HTTPConstants.CONFIG_PASSWORD);
   }
 
+  /**
+   * @return seconds a loaded role and group hierarchy is cached, 0 disables the hierarchy
+   */
+  public int getHierarchyTtl() {
+    return getInt(HTTPConstants.CONFIG_HIERARCHY_TTL, HTTPConstants.DEFAULT_HIERARCHY_TTL);
+  }
+
+  /**
+   * @return seconds a complete user is cached, 0 disables the cache
+   */
+  public int getCacheTtl() {
+    return getInt(HTTPConstants.CONFIG_CACHE_TTL, HTTPConstants.DEFAULT_CACHE_TTL);
+  }
+
+  /**
+   * @return maximum number of cached users
+   */
+  public int getCacheSize() {
+    return getInt(HTTPConstants.CONFIG_CACHE_SIZE, HTTPConstants.DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @return true, if list calls only request the fields shown in lists
+   */
+  public boolean isProjection() {
+    return Boolean.parseBoolean(config.getFirst(HTTPConstants.CONFIG_PROJECTION));
+  }
+
+  /**
+   * @return maximum number of user updates sent in one bulk request
+   */
+  public int getWriteBatchSize() {
+    return getInt(HTTPConstants.CONFIG_WRITE_BATCH_SIZE, HTTPConstants.DEFAULT_WRITE_BATCH_SIZE);
+  }
+
+  /**
+   * @return maximum number of bulk requests sent in parallel
+   */
+  public int getWriteParallelism() {
+    return getInt(HTTPConstants.CONFIG_WRITE_PARALLELISM, HTTPConstants.DEFAULT_WRITE_PARALLELISM);
+  }
+
+  /**
+   * @return maximum number of password verifications sent to the backend at the same time
+   */
+  public int getVerifyConcurrency() {
+    return getInt(HTTPConstants.CONFIG_VERIFY_CONCURRENCY, HTTPConstants.DEFAULT_VERIFY_CONCURRENCY);
+  }
+
+  /**
+   * @return maximum number of password verifications waiting for a free slot
+   */
+  public int getVerifyQueueSize() {
+    return getInt(HTTPConstants.CONFIG_VERIFY_QUEUE_SIZE, HTTPConstants.DEFAULT_VERIFY_QUEUE_SIZE);
+  }
+
+  /**
+   * @return milliseconds a password verification waits for a free slot
+   */
+  public int getVerifyQueueTimeout() {
+    return getInt(
+        HTTPConstants.CONFIG_VERIFY_QUEUE_TIMEOUT, HTTPConstants.DEFAULT_VERIFY_QUEUE_TIMEOUT);
+  }
+
+  /**
+   * @return maximum number of concurrent login lookups and password verifications
+   */
+  public int getLoginConcurrency() {
+    return getInt(HTTPConstants.CONFIG_LOGIN_CONCURRENCY, HTTPConstants.DEFAULT_LOGIN_CONCURRENCY);
+  }
+
+  /**
+   * @return milliseconds login lookups and password verifications wait for a slot, a connection and a response
+   */
+  public int getLoginTimeout() {
+    return getInt(HTTPConstants.CONFIG_LOGIN_TIMEOUT, HTTPConstants.DEFAULT_LOGIN_TIMEOUT);
+  }
+
+  /**
+   * @return maximum number of concurrent admin console requests and lists
+   */
+  public int getAdminConcurrency() {
+    return getInt(HTTPConstants.CONFIG_ADMIN_CONCURRENCY, HTTPConstants.DEFAULT_ADMIN_CONCURRENCY);
+  }
+
+  /**
+   * @return milliseconds admin console requests and lists wait for a slot, a connection and a response
+   */
+  public int getAdminTimeout() {
+    return getInt(HTTPConstants.CONFIG_ADMIN_TIMEOUT, HTTPConstants.DEFAULT_ADMIN_TIMEOUT);
+  }
+
+  /**
+   * @return maximum number of concurrent synchronization and write journal requests
+   */
+  public int getBackgroundConcurrency() {
+    return getInt(HTTPConstants.CONFIG_BACKGROUND_CONCURRENCY, HTTPConstants.DEFAULT_BACKGROUND_CONCURRENCY);
+  }
+
+  /**
+   * @return milliseconds synchronization and write journal requests wait for a slot, a connection and a response
+   */
+  public int getBackgroundTimeout() {
+    return getInt(HTTPConstants.CONFIG_BACKGROUND_TIMEOUT, HTTPConstants.DEFAULT_BACKGROUND_TIMEOUT);
+  }
+
+  /**
+   * @return name of the header, that carries the correlation id of a request to the backend
+   */
+  public String getCorrelationHeader() {
+    String value = config.getFirst(HTTPConstants.CONFIG_CORRELATION_HEADER);
+    if (value == null || value.trim().isEmpty())
+      return HTTPConstants.DEFAULT_CORRELATION_HEADER;
+    return value.trim();
+  }
+
+  /**
+   * @return milliseconds after which a request to the backend is logged as slow, 0 disables the log
+   */
+  public int getSlowCallThreshold() {
+    return getInt(HTTPConstants.CONFIG_SLOW_CALL_THRESHOLD, HTTPConstants.DEFAULT_SLOW_CALL_THRESHOLD);
+  }
+
+  /**
+   * @return seconds between two request summaries in the log, 0 disables them
+   */
+  public int getLogSummaryInterval() {
+    return getInt(HTTPConstants.CONFIG_LOG_SUMMARY_INTERVAL, HTTPConstants.DEFAULT_LOG_SUMMARY_INTERVAL);
+  }
+
+  /**
+   * @return true, if the calls of Keycloak are recorded in an anonymized trace
+   */
+  public boolean isTrace() {
+    return Boolean.parseBoolean(config.getFirst(HTTPConstants.CONFIG_TRACE));
+  }
+
+  /**
+   * @return directory of the traces
+   */
+  public String getTraceDirectory() {
+    String value = config.getFirst(HTTPConstants.CONFIG_TRACE_DIRECTORY);
+    if (value == null || value.trim().isEmpty())
+      return HTTPConstants.DEFAULT_TRACE_DIRECTORY;
+    return value.trim();
+  }
+
+  /**
+   * @return seconds between two health probes of the backend, 0 disables the probes
+   */
+  public int getHealthInterval() {
+    return getInt(HTTPConstants.CONFIG_HEALTH_INTERVAL, HTTPConstants.DEFAULT_HEALTH_INTERVAL);
+  }
+
+  /**
+   * @return failed health probes in a row, after which the backend is unavailable
+   */
+  public int getHealthFailures() {
+    return getInt(HTTPConstants.CONFIG_HEALTH_FAILURES, HTTPConstants.DEFAULT_HEALTH_FAILURES);
+  }
+
+  /**
+   * @return true, if passwords are verified with POST /user/authenticate, that returns the user
+   */
+  public boolean isAuthenticate() {
+    return Boolean.parseBoolean(config.getFirst(HTTPConstants.CONFIG_AUTHENTICATE));
+  }
+
+  /**
+   * @return password verifications per minute and username, 0 disables the limit
+   */
+  public int getThrottleUser() {
+    return getInt(HTTPConstants.CONFIG_THROTTLE_USER, HTTPConstants.DEFAULT_THROTTLE_USER);
+  }
+
+  /**
+   * @return password verifications per minute and client IP, 0 disables the limit
+   */
+  public int getThrottleIp() {
+    return getInt(HTTPConstants.CONFIG_THROTTLE_IP, HTTPConstants.DEFAULT_THROTTLE_IP);
+  }
+
+  /**
+   * @return seconds a successful password verification is cached locally, 0 disables the cache
+   */
+  public int getVerifierCacheTtl() {
+    return getInt(
+        HTTPConstants.CONFIG_VERIFIER_CACHE_TTL, HTTPConstants.DEFAULT_VERIFIER_CACHE_TTL);
+  }
+
+  /**
+   * @return scrypt cost of the cached verifiers as power of two
+   */
+  public int getVerifierCacheCost() {
+    return getInt(
+        HTTPConstants.CONFIG_VERIFIER_CACHE_COST, HTTPConstants.DEFAULT_VERIFIER_CACHE_COST);
+  }
+
+  /**
+   * @return true, if users are imported into the local Keycloak store
+   */
+  public boolean isImport() {
+    return Boolean.parseBoolean(config.getFirst(HTTPConstants.CONFIG_IMPORT));
+  }
+
+  /**
+   * @return seconds an imported user is used without asking the backend for changes
+   */
+  public int getImportValidationInterval() {
+    return getInt(
+        HTTPConstants.CONFIG_IMPORT_VALIDATION_INTERVAL,
+        HTTPConstants.DEFAULT_IMPORT_VALIDATION_INTERVAL);
+  }
+
+  /**
+   * @return true, if committed changes are written to a local journal and sent in the background
+   */
+  public boolean isWriteBehind() {
+    return Boolean.parseBoolean(config.getFirst(HTTPConstants.CONFIG_WRITE_BEHIND));
+  }
+
+  /**
+   * @return directory of the write-behind journal
+   */
+  public String getJournalDirectory() {
+    String value = config.getFirst(HTTPConstants.CONFIG_JOURNAL_DIRECTORY);
+    if (value == null || value.trim().isEmpty())
+      return HTTPConstants.DEFAULT_JOURNAL_DIRECTORY;
+    return value.trim();
+  }
+
+  private int getInt(String key, int defaultValue) {
+    String value = config.getFirst(key);
+    if (value == null || value.trim().isEmpty())
+      return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException nfe) {
+      return defaultValue;
+    }
+  }
+
   public boolean isPagination() {
     // for later - can be configurable
     return false;
   }
 
+  /**
+   * @return number of users read in one page and imported in one transaction by the sync
+   */
   public int getBatchSizeForSync() {
-    // for later - can be configurable, if isPagination is true
-    return 100;
+    return getInt(HTTPConstants.CONFIG_SYNC_BATCH_SIZE, HTTPConstants.DEFAULT_SYNC_BATCH_SIZE);
+  }
+
+  /**
+   * @return number of pages fetched in parallel by the sync
+   */
+  public int getSyncParallelism() {
+    return getInt(HTTPConstants.CONFIG_SYNC_PARALLELISM, HTTPConstants.DEFAULT_SYNC_PARALLELISM);
   }
 
+  /**
+   * Compares the config of this provider, the keys of Keycloak like lastSync are ignored.
+   */
   @Override
   public boolean equals(Object obj) {
     if (obj == this)
@@ -43,14 +298,20 @@ public class HTTPConfig {
 
     HTTPConfig that = (HTTPConfig) obj;
 
-    if (!config.equals(that.config))
-      return false;
+    for (String key : HTTPConstants.CONFIG_KEYS) {
+      if (!Objects.equals(config.get(key), that.config.get(key)))
+        return false;
+    }
     return true;
   }
 
   @Override
   public int hashCode() {
-    return config.hashCode() * 13;
+    int hash = 0;
+    for (String key : HTTPConstants.CONFIG_KEYS) {
+      hash = hash * 31 + Objects.hashCode(config.get(key));
+    }
+    return hash * 13;
   }
 
   @Override
@@ -1,13 +1,29 @@
 package http.keycloak.userstorage;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.HttpHeaders;
@@ -16,6 +32,7 @@ import javax.ws.rs.core.Response;
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.jboss.resteasy.plugins.providers.jackson.ResteasyJackson2Provider;
+import org.keycloak.models.ModelException;
 import org.keycloak.util.BasicAuthHelper;
 
 /** 
@@ -23,17 +40,31 @@ import org.keycloak.util.BasicAuthHelper;
  * 
  * The Connector wants the following URLs for the backend
  * 
- * - GET /user - returns a list of users (offset, limit, search and group)
+ * - GET /user - returns a list of users (offset, limit, search, group and optional fields)
+ * - GET /user?modifiedSince=...&cursor=... - returns the changed and deleted users (optional)
  * - GET /user/{username} - returns a user with the given username
  * - GET /user/mail/{mail} - returns a user with the given mail address
  * - POST /user/validate/{username} - with password as body returns 200 OK, if password is valid
+ * - POST /user/authenticate/{username} - with password as body returns the user, if password is
+ *   valid (optional)
+ * - PATCH /user/{username} - with a JSON Merge Patch of the changed fields as body
+ * - POST /user/bulk - with a list of merge patches as body, returns one result per patch (optional)
+ * - GET /hierarchy - returns the role and group hierarchy of the realm (optional)
  * 
- * All writing or deleting operations are yet not supported.
+ * Creating and deleting users is yet not supported.
  */
 public class HTTPConnector {
 
   private static final Logger logger = Logger.getLogger(HTTPConnector.class);
 
+  /** content type of a JSON Merge Patch (RFC 7396) */
+  private static final String MERGE_PATCH_TYPE = "application/merge-patch+json";
+
+  private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+  private static final GenericType<List<HTTPUserModel>> USER_LIST =
+      new GenericType<List<HTTPUserModel>>() {};
+
   private static final ObjectMapper OBJECT_MAPPER;
   private static final ResteasyJackson2Provider JACKSON_PROVIDER;
 
@@ -46,23 +77,390 @@ public class HTTPConnector {
 
   private final String auth;
 
+  private final long hierarchyTtl;
+
+  private final boolean projection;
+
+  private final HTTPUserCache userCache;
+
+  private final HTTPMetrics metrics;
+
+  /** id of the component, that owns the role dictionary and hierarchy */
+  private final String componentId;
+
+  /** null, if requests are also sent to an unavailable backend */
+  private final HTTPHealth health;
+
+  /** null, if write-behind is disabled */
+  private final HTTPWriteJournal writeJournal;
+
+  private final int writeBatchSize;
+
+  /** executor of the component, that sends the chunks of bulk updates in parallel */
+  private final ExecutorService writeExecutor;
+
+  /** pool of lookups, password verifications and updates */
+  private final HTTPClientPool pool;
+
+  /** pool of lists and searches */
+  private final HTTPClientPool listPool;
+
+  /** pool of the synchronization */
+  private final HTTPClientPool syncPool;
+
+  private final WebTarget hierarchyTarget;
   private final WebTarget usersTarget;
+  private final WebTarget syncUsersTarget;
+  private final WebTarget bulkTarget;
   private final WebTarget userByNameTarget;
   private final WebTarget userByMailTarget;
   private final WebTarget userValidateTarget;
+  private final WebTarget userAuthenticateTarget;
 
-  public HTTPConnector(HTTPConfig cfg) {
+  /** name of the correlation id header */
+  private final String correlationHeader;
+
+  /** correlation id sent with every request or null */
+  private final String correlationId;
+
+  /** calls slower than this are logged, 0 disables the log */
+  private final long slowCallThreshold;
+
+  /**
+   * @param componentId id of the storage provider component
+   * @param cfg config of the component
+   * @param userCache cache of the component
+   * @param metrics request metrics of the component
+   * @param health health probe of the component or null, to send requests also to an unavailable
+   *     backend
+   * @param writeJournal journal of the component or null, to send updates directly
+   * @param writeExecutor executor of the component for the chunks of bulk updates, its threads
+   *     limit the write parallelism
+   * @param pools connection pools of the component
+   * @param priority priority of the lookups, password verifications and updates
+   */
+  public HTTPConnector(
+      String componentId,
+      HTTPConfig cfg,
+      HTTPUserCache userCache,
+      HTTPMetrics metrics,
+      HTTPHealth health,
+      HTTPWriteJournal writeJournal,
+      ExecutorService writeExecutor,
+      HTTPClientPools pools,
+      HTTPClientPools.Priority priority) {
     auth = BasicAuthHelper.createHeader(cfg.getUsername(), cfg.getPassword());
+    hierarchyTtl = TimeUnit.SECONDS.toMillis(cfg.getHierarchyTtl());
+    projection = cfg.isProjection();
+    writeBatchSize = Math.max(1, cfg.getWriteBatchSize());
+    this.writeExecutor = writeExecutor;
+    this.userCache = userCache;
+    this.metrics = metrics;
+    this.componentId = componentId;
+    this.health = health;
+    this.writeJournal = writeJournal;
+
+    pool = pools.get(priority);
+    listPool =
+        pools.get(
+            priority == HTTPClientPools.Priority.BACKGROUND
+                ? HTTPClientPools.Priority.BACKGROUND
+                : HTTPClientPools.Priority.ADMIN);
+    syncPool = pools.get(HTTPClientPools.Priority.BACKGROUND);
+
+    final WebTarget baseTarget = pool.target();
+    final WebTarget userTarget = baseTarget.path("/user");
+    hierarchyTarget = baseTarget.path("/hierarchy");
+    usersTarget = listPool.target().path("/user");
+    syncUsersTarget = syncPool.target().path("/user");
+    bulkTarget = userTarget.path("bulk");
+    userByNameTarget = userTarget.path("{username}");
+    userByMailTarget = userTarget.path("mail/{mail}");
+    userValidateTarget = userTarget.path("validate/{username}");
+    userAuthenticateTarget = userTarget.path("authenticate/{username}");
+    correlationHeader = cfg.getCorrelationHeader();
+    correlationId = null;
+    slowCallThreshold = TimeUnit.MILLISECONDS.toNanos(cfg.getSlowCallThreshold());
+  }
+
+  /** Copies a connector and sets the correlation id */
+  private HTTPConnector(HTTPConnector connector, String correlationId) {
+    this.auth = connector.auth;
+    this.hierarchyTtl = connector.hierarchyTtl;
+    this.projection = connector.projection;
+    this.userCache = connector.userCache;
+    this.metrics = connector.metrics;
+    this.componentId = connector.componentId;
+    this.health = connector.health;
+    this.writeJournal = connector.writeJournal;
+    this.writeBatchSize = connector.writeBatchSize;
+    this.writeExecutor = connector.writeExecutor;
+    this.pool = connector.pool;
+    this.listPool = connector.listPool;
+    this.syncPool = connector.syncPool;
+    this.hierarchyTarget = connector.hierarchyTarget;
+    this.usersTarget = connector.usersTarget;
+    this.syncUsersTarget = connector.syncUsersTarget;
+    this.bulkTarget = connector.bulkTarget;
+    this.userByNameTarget = connector.userByNameTarget;
+    this.userByMailTarget = connector.userByMailTarget;
+    this.userValidateTarget = connector.userValidateTarget;
+    this.userAuthenticateTarget = connector.userAuthenticateTarget;
+    this.correlationHeader = connector.correlationHeader;
+    this.correlationId = correlationId;
+    this.slowCallThreshold = connector.slowCallThreshold;
+  }
+
+  /**
+   * Returns a connector, that sends the correlation id with every request. The connectors share
+   * their pools and caches.
+   *
+   * @param correlationId id of the Keycloak request, e.g. the id of its session
+   * @return the connector
+   */
+  public HTTPConnector withCorrelationId(String correlationId) {
+    return new HTTPConnector(this, correlationId);
+  }
 
-    usersTarget =
-        ResteasyClientBuilder.newBuilder()
-            .register(JACKSON_PROVIDER, 100)
-            .build()
-            .target(cfg.getUrl())
-            .path("/user");
-    userByNameTarget = usersTarget.path("{username}");
-    userByMailTarget = usersTarget.path("mail/{mail}");
-    userValidateTarget = usersTarget.path("validate/{username}");
+  /** @return name of the header, that carries the correlation id */
+  public String getCorrelationHeader() {
+    return correlationHeader;
+  }
+
+  /**
+   * Creates the http client of a connection pool.
+   *
+   * @param poolSize number of connections
+   * @param timeout milliseconds to wait for a connection and a response
+   * @return the client
+   */
+  static Client newClient(int poolSize, int timeout) {
+    return ((ResteasyClientBuilder) ResteasyClientBuilder.newBuilder())
+        .connectionPoolSize(Math.max(1, poolSize))
+        .maxPooledPerRoute(Math.max(1, poolSize))
+        .connectionCheckoutTimeout(timeout, TimeUnit.MILLISECONDS)
+        .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+        .readTimeout(timeout, TimeUnit.MILLISECONDS)
+        .register(JACKSON_PROVIDER, 100)
+        .build();
+  }
+
+  /**
+   * Starts a JSON request with the credentials and the correlation id.
+   *
+   * @param target the target of the request
+   * @return request builder
+   */
+  private Invocation.Builder request(WebTarget target) {
+    final Invocation.Builder request =
+        target.request(MediaType.APPLICATION_JSON_TYPE).header(HttpHeaders.AUTHORIZATION, auth);
+    return correlationId == null ? request : request.header(correlationHeader, correlationId);
+  }
+
+  /**
+   * Sends a request through a connection pool. The returned call must be closed, it releases the
+   * slot of the pool, records the duration of the request in the metrics, logs slow calls and emits
+   * a JFR event.
+   *
+   * @param pool the connection pool
+   * @param endpoint the endpoint for the metrics
+   * @param realmId realm of the request
+   * @param request sends the request
+   * @return the call with the response
+   * @throws ModelException if the request was rejected by the pool or the backend is unavailable
+   */
+  private Call send(
+      HTTPClientPool pool,
+      HTTPMetrics.Endpoint endpoint,
+      String realmId,
+      Supplier<Response> request) {
+    final HTTPEvents.Call event = HTTPEvents.CALL.isEnabled() ? new HTTPEvents.Call() : null;
+    if (event != null) event.begin();
+    final long start = System.nanoTime();
+    if (health != null && !health.isAvailable()) {
+      finish(endpoint, realmId, event, HTTPMetrics.REJECTED, null, -1, 0, 0, 0);
+      throw new ModelException("The http storage is unavailable, please try again later");
+    }
+    try {
+      pool.acquire();
+    } catch (ModelException e) {
+      finish(
+          endpoint,
+          realmId,
+          event,
+          HTTPMetrics.REJECTED,
+          null,
+          -1,
+          System.nanoTime() - start,
+          0,
+          0);
+      throw e;
+    }
+    final long acquired = System.nanoTime();
+    final Response response;
+    try {
+      response = request.get();
+    } catch (RuntimeException e) {
+      pool.release();
+      finish(
+          endpoint,
+          realmId,
+          event,
+          HTTPMetrics.ERROR,
+          null,
+          -1,
+          acquired - start,
+          System.nanoTime() - acquired,
+          0);
+      throw e;
+    }
+    return new Call(
+        pool, endpoint, realmId, event, response, acquired - start, System.nanoTime() - acquired);
+  }
+
+  /**
+   * Records a finished call, logs it, if it was slow, and commits its event.
+   *
+   * @param endpoint the endpoint
+   * @param realmId realm of the request
+   * @param event the JFR event or null, if not recording
+   * @param statusClass index of the status class
+   * @param response the response, null if the request failed or was rejected
+   * @param users number of returned users of a list request, otherwise -1
+   * @param queueNanos time waiting for the connection pool
+   * @param responseNanos time until the response headers were received, including connect
+   * @param readNanos time reading and deserializing the body
+   */
+  private void finish(
+      HTTPMetrics.Endpoint endpoint,
+      String realmId,
+      HTTPEvents.Call event,
+      int statusClass,
+      Response response,
+      int users,
+      long queueNanos,
+      long responseNanos,
+      long readNanos) {
+    final long total = queueNanos + responseNanos + readNanos;
+    metrics.record(endpoint, statusClass, total);
+    if (slowCallThreshold > 0 && total >= slowCallThreshold) {
+      logger.warnf(
+          "slow call endpoint=%s status=%s correlationId=%s totalMs=%d queueMs=%d responseMs=%d"
+              + " readMs=%d",
+          endpoint.getLabel(),
+          HTTPMetrics.STATUS[statusClass],
+          correlationId,
+          TimeUnit.NANOSECONDS.toMillis(total),
+          TimeUnit.NANOSECONDS.toMillis(queueNanos),
+          TimeUnit.NANOSECONDS.toMillis(responseNanos),
+          TimeUnit.NANOSECONDS.toMillis(readNanos));
+    }
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.endpoint = endpoint.getLabel();
+        event.realm = realmId;
+        event.status = response == null ? 0 : response.getStatus();
+        event.statusClass = HTTPMetrics.STATUS[statusClass];
+        event.bytes = response == null ? -1 : response.getLength();
+        event.users = users;
+        event.correlationId = correlationId;
+        event.queueTime = queueNanos;
+        event.responseTime = responseNanos;
+        event.readTime = readNanos;
+        event.commit();
+      }
+    }
+  }
+
+  /** A request with a response, that times reading the response and holds a slot of its pool. */
+  private final class Call implements AutoCloseable {
+
+    private final HTTPClientPool pool;
+    private final HTTPMetrics.Endpoint endpoint;
+    private final String realmId;
+    private final HTTPEvents.Call event;
+    private final Response response;
+    private final long queueNanos;
+    private final long responseNanos;
+    private long readNanos;
+    private int users = -1;
+
+    private Call(
+        HTTPClientPool pool,
+        HTTPMetrics.Endpoint endpoint,
+        String realmId,
+        HTTPEvents.Call event,
+        Response response,
+        long queueNanos,
+        long responseNanos) {
+      this.pool = pool;
+      this.endpoint = endpoint;
+      this.realmId = realmId;
+      this.event = event;
+      this.response = response;
+      this.queueNanos = queueNanos;
+      this.responseNanos = responseNanos;
+    }
+
+    private Response getResponse() {
+      return response;
+    }
+
+    private int getStatus() {
+      return response.getStatus();
+    }
+
+    /**
+     * Reads the response.
+     *
+     * @param reader reads and deserializes the body
+     * @return the result of the reader
+     */
+    private <T> T read(Function<Response, T> reader) {
+      final long start = System.nanoTime();
+      try {
+        return reader.apply(response);
+      } finally {
+        readNanos += System.nanoTime() - start;
+      }
+    }
+
+    /**
+     * Reads a list of users.
+     *
+     * @param reader reads and deserializes the body
+     * @return the users
+     */
+    private <T> List<T> readList(Function<Response, List<T>> reader) {
+      final List<T> list = read(reader);
+      setUsers(list.size());
+      return list;
+    }
+
+    /** @param users number of users returned by a list request */
+    private void setUsers(int users) {
+      this.users = users;
+    }
+
+    @Override
+    public void close() {
+      try {
+        response.close();
+      } finally {
+        pool.release();
+      }
+      finish(
+          endpoint,
+          realmId,
+          event,
+          HTTPMetrics.statusClass(getStatus()),
+          response,
+          users,
+          queueNanos,
+          responseNanos,
+          readNanos);
+    }
   }
 
   /**
@@ -72,8 +470,11 @@ public class HTTPConnector {
    * @return request builder
    */
   private WebTarget usersEndpoint(Optional<Integer> offset, Optional<Integer> limit) {
-    if (offset.isPresent() && limit.isPresent())
-      return usersTarget.queryParam("offset", offset.get()).queryParam("limit", limit.get());
+    if (offset.isPresent() && limit.isPresent()) {
+      final WebTarget target =
+          usersTarget.queryParam("offset", offset.get()).queryParam("limit", limit.get());
+      return projection ? target.queryParam("fields", HTTPConstants.LIST_FIELDS) : target;
+    }
     return usersTarget;
   }
 
@@ -118,59 +519,247 @@ public class HTTPConnector {
   }
 
   public Optional<HTTPUserModel> getUserByExternalId(String realmId, String externalId) {
-    logger.infof("getUserByExternalId(s:%s, s:%s)", realmId, externalId);
-    Response resolvedUser =
-        userByIdEndpoint(externalId)
-            .request(MediaType.APPLICATION_JSON_TYPE)
-            .header(HttpHeaders.AUTHORIZATION, auth)
-            .get();
-    if (isSuccessful(resolvedUser)) {
-      final Optional<HTTPUserModel> result = Optional.of(resolvedUser.readEntity(HTTPUserModel.class));
-      logger.infof("getUserByExternalId(%s, %s) = %s", realmId, externalId, result);
-      return result;
-    }
-    logger.infof("getUserByExternalId(%s, %s) = empty", realmId, externalId);
+    return userCache
+        .get(realmId, externalId, () -> loadUserByExternalId(realmId, externalId))
+        .map(user -> user.toModel(getHierarchy(realmId)));
+  }
+
+  private Optional<HTTPCompactUser> loadUserByExternalId(String realmId, String externalId) {
+    logger.debugf("getUserByExternalId(s:%s, s:%s)", realmId, externalId);
+    final Invocation.Builder request = request(userByIdEndpoint(externalId));
+    try (Call call = send(pool, HTTPMetrics.Endpoint.USER_BY_ID, realmId, request::get)) {
+      if (isSuccessful(call.getResponse())) {
+        final Optional<HTTPCompactUser> result = call.read(response -> readUser(realmId, response));
+        logger.debugf(
+            "getUserByExternalId(%s, %s) found: %s", realmId, externalId, result.isPresent());
+        return result;
+      }
+    }
+    logger.debugf("getUserByExternalId(%s, %s) = empty", realmId, externalId);
     return Optional.empty();
   }
 
-  public Optional<HTTPUserModel> getUserByUsername(String realmId, String username) {
-    logger.infof("getUserByUsername(s:%s, s:%s)", realmId, username);
+  /**
+   * Result of a conditional read of an imported user
+   */
+  public static class Revalidation {
+
+    public enum State {
+      /** the backend answered 304 Not Modified */
+      UNCHANGED,
+      /** the backend returned the user */
+      CHANGED,
+      /** the backend answered 404 */
+      DELETED,
+      /** the backend could not be asked */
+      UNAVAILABLE
+    }
+
+    private final State state;
+    private final HTTPUserModel user;
+    private final String etag;
+
+    private Revalidation(State state, HTTPUserModel user, String etag) {
+      this.state = state;
+      this.user = user;
+      this.etag = etag;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /** @return the user, if changed */
+    public HTTPUserModel getUser() {
+      return user;
+    }
 
-    Response resolvedUser =
-        userByNameEndpoint(username)
-            .request(MediaType.APPLICATION_JSON_TYPE)
-            .header(HttpHeaders.AUTHORIZATION, auth)
-            .get();
+    /** @return the ETag of the user, if changed and sent by the backend */
+    public String getEtag() {
+      return etag;
+    }
+  }
 
-    logger.infof("uri: %s", userByNameEndpoint(username).getUri());
+  /**
+   * Reads a user, if it has changed since the given ETag (GET /user/{username} with
+   * If-None-Match).
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   * @param etag ETag of the last read or null
+   * @return the state of the user in the backend
+   */
+  public Revalidation revalidateUser(String realmId, String externalId, String etag) {
+    final HTTPEvents.CacheRefresh event = beginRefresh();
+    final Revalidation revalidation = revalidate(realmId, externalId, etag);
+    commitRefresh(event, "user", realmId, externalId, revalidation.getState().name());
+    return revalidation;
+  }
+
+  private Revalidation revalidate(String realmId, String externalId, String etag) {
+    logger.debugf("revalidateUser(%s, %s, %s)", realmId, externalId, etag);
+    Invocation.Builder request = request(userByIdEndpoint(externalId));
+    if (etag != null) request = request.header(HttpHeaders.IF_NONE_MATCH, etag);
+    try (Call call = send(pool, HTTPMetrics.Endpoint.USER_BY_ID, realmId, request::get)) {
+      final int status = call.getStatus();
+      if (status == 304) {
+        return new Revalidation(Revalidation.State.UNCHANGED, null, etag);
+      }
+      if (isSuccessful(call.getResponse())) {
+        final String newEtag = call.getResponse().getHeaderString(HttpHeaders.ETAG);
+        final Optional<HTTPCompactUser> user = call.read(response -> readUser(realmId, response));
+        user.ifPresent(u -> userCache.put(realmId, u));
+        if (!user.isPresent()) return new Revalidation(Revalidation.State.DELETED, null, null);
+        final HTTPUserModel model = user.get().toModel(getHierarchy(realmId));
+        return new Revalidation(Revalidation.State.CHANGED, model, newEtag);
+      }
+      if (status == 404) {
+        userCache.invalidate(realmId, externalId);
+        return new Revalidation(Revalidation.State.DELETED, null, null);
+      }
+      logger.errorf("revalidateUser(%s, %s) = %d", realmId, externalId, status);
+    } catch (Exception e) {
+      logger.error("could not revalidate user", e);
+    }
+    return new Revalidation(Revalidation.State.UNAVAILABLE, null, null);
+  }
+
+  public Optional<HTTPUserModel> getUserByUsername(String realmId, String username) {
+    logger.debugf("getUserByUsername(s:%s, s:%s)", realmId, username);
 
-    if (isSuccessful(resolvedUser)) {
-      final Optional<HTTPUserModel> result =
-          Optional.ofNullable(resolvedUser.readEntity(HTTPUserModel.class));
-      logger.infof("getUserByUsername(%s, %s) = %s", realmId, username, result);
-      return result;
+    final Invocation.Builder request = request(userByNameEndpoint(username));
+    try (Call call = send(pool, HTTPMetrics.Endpoint.USER_BY_NAME, realmId, request::get)) {
+      if (isSuccessful(call.getResponse())) {
+        final Optional<HTTPCompactUser> result = call.read(response -> readUser(realmId, response));
+        logger.debugf("getUserByUsername(%s, %s) found: %s", realmId, username, result.isPresent());
+        result.ifPresent(user -> userCache.put(realmId, user));
+        return result.map(user -> user.toModel(getHierarchy(realmId)));
+      }
     }
-    logger.infof("getUserByUsername(%s, %s) = empty", realmId, username);
+    logger.debugf("getUserByUsername(%s, %s) = empty", realmId, username);
     return Optional.empty();
   }
 
+  /**
+   * Reads a single user directly into its compact representation
+   *
+   * @param realmId realm of the user
+   * @param response successful response with a HTTPUserModel JSON
+   * @return the user with the ETag of the response
+   */
+  private Optional<HTTPCompactUser> readUser(String realmId, Response response) {
+    final String etag = response.getHeaderString(HttpHeaders.ETAG);
+    try (InputStream body = response.readEntity(InputStream.class)) {
+      return Optional.ofNullable(
+              OBJECT_MAPPER
+                  .readerFor(HTTPCompactUser.class)
+                  .withAttribute(
+                      HTTPCompactUserDeserializer.DICTIONARY,
+                      HTTPRoleDictionary.forComponent(componentId))
+                  .<HTTPCompactUser>readValue(body))
+          .map(user -> user.withEtag(etag));
+    } catch (IOException e) {
+      throw new RuntimeException("Reading user from http storage has failed", e);
+    }
+  }
+
+  /**
+   * Converts the groups and roles of a user into role bitsets of the realm dictionary
+   *
+   * @param realmId realm of the user
+   * @param user user read from the backend, may be null
+   * @return the given user
+   */
+  private HTTPUserModel indexRoles(String realmId, HTTPUserModel user) {
+    if (user != null)
+      user.indexRoles(HTTPRoleDictionary.forComponent(componentId), getHierarchy(realmId));
+    return user;
+  }
+
+  /**
+   * Returns the role and group hierarchy of the backend. The hierarchy is loaded once and cached
+   * per component for the configured time. If it could not be loaded, the previous hierarchy is
+   * kept and the load is retried soon.
+   *
+   * @param realmId realm id
+   * @return the hierarchy, empty if the backend does not publish one
+   */
+  public HTTPHierarchy getHierarchy(String realmId) {
+    return HTTPHierarchy.forComponent(componentId, hierarchyTtl, () -> loadHierarchy(realmId));
+  }
+
+  private HTTPHierarchy loadHierarchy(String realmId) {
+    final HTTPEvents.CacheRefresh event = beginRefresh();
+    final HTTPHierarchy hierarchy = readHierarchy(realmId);
+    final String result;
+    if (hierarchy == null) {
+      result = "FAILED";
+    } else if (hierarchy.getRoles().isEmpty() && hierarchy.getGroups().isEmpty()) {
+      result = "EMPTY";
+    } else {
+      result = "LOADED";
+    }
+    commitRefresh(event, "hierarchy", realmId, null, result);
+    return hierarchy;
+  }
+
+  /**
+   * @return the hierarchy, empty if the backend answers with a client error, that is not temporary,
+   *     or null, if it could not be loaded
+   */
+  private HTTPHierarchy readHierarchy(String realmId) {
+    logger.debugf("loadHierarchy(%s)", realmId);
+    final Invocation.Builder request = request(hierarchyTarget);
+    try (Call call = send(pool, HTTPMetrics.Endpoint.HIERARCHY, realmId, request::get)) {
+      if (isSuccessful(call.getResponse())) {
+        return call.read(response -> response.readEntity(HTTPHierarchy.class));
+      }
+      final int status = call.getStatus();
+      if (status >= 400 && status < 500 && status != 408 && status != 429) {
+        logger.debugf("loadHierarchy(%s) = %d, using empty hierarchy", realmId, status);
+        return new HTTPHierarchy();
+      }
+      logger.warnf("loadHierarchy(%s) = %d, keeping the previous hierarchy", realmId, status);
+    } catch (Exception e) {
+      logger.error("could not load hierarchy, keeping the previous hierarchy", e);
+    }
+    return null;
+  }
+
+  /** @return a started refresh event or null, if not recording */
+  private static HTTPEvents.CacheRefresh beginRefresh() {
+    if (!HTTPEvents.CACHE_REFRESH.isEnabled()) return null;
+    final HTTPEvents.CacheRefresh event = new HTTPEvents.CacheRefresh();
+    event.begin();
+    return event;
+  }
+
+  private static void commitRefresh(
+      HTTPEvents.CacheRefresh event, String cache, String realmId, String key, String result) {
+    if (event == null) return;
+    event.end();
+    if (event.shouldCommit()) {
+      event.cache = cache;
+      event.realm = realmId;
+      event.key = key;
+      event.result = result;
+      event.commit();
+    }
+  }
+
   private boolean isSuccessful(Response resolvedUser) {
     return resolvedUser.getStatusInfo().toEnum() == Response.Status.OK && resolvedUser.hasEntity();
   }
 
   public Optional<HTTPUserModel> getUserByEmail(String realmId, String email) {
-    logger.infof("getUserByEmail(%s, %s)", realmId, email);
-    Response resolvedUser =
-        userByMailEndpoint(email)
-            .request(MediaType.APPLICATION_JSON_TYPE)
-            .header(HttpHeaders.AUTHORIZATION, auth)
-            .get();
-
-    logger.infof("uri: %s", userByMailEndpoint(email).getUri());
-
-    if (isSuccessful(resolvedUser)) {
-      logger.info("success");
-      return Optional.ofNullable(resolvedUser.readEntity(HTTPUserModel.class));
+    logger.debugf("getUserByEmail(%s, %s)", realmId, email);
+    final Invocation.Builder request = request(userByMailEndpoint(email));
+    try (Call call = send(pool, HTTPMetrics.Endpoint.USER_BY_MAIL, realmId, request::get)) {
+      if (isSuccessful(call.getResponse())) {
+        final Optional<HTTPCompactUser> result = call.read(response -> readUser(realmId, response));
+        result.ifPresent(user -> userCache.put(realmId, user));
+        return result.map(user -> user.toModel(getHierarchy(realmId)));
+      }
     }
     return Optional.empty();
   }
@@ -179,15 +768,13 @@ public class HTTPConnector {
     // dummy
     if (realmId != null) return Optional.of(getUsers(realmId, 0, 1).size());
 
-    logger.infof("getUsersCount(%s)", realmId);
-    final Response response =
-        usersEndpoint(Optional.empty(), Optional.empty())
-            .request(MediaType.APPLICATION_JSON_TYPE)
-            .header(HttpHeaders.AUTHORIZATION, auth)
-            .get();
-    if (isSuccessful(response)) {
-      List<HTTPUserModel> users = response.readEntity(new GenericType<List<HTTPUserModel>>() {});
-      return Optional.of(users.isEmpty() ? 0 : users.size());
+    logger.debugf("getUsersCount(%s)", realmId);
+    final WebTarget target = usersEndpoint(Optional.empty(), Optional.empty());
+    try (Call call = send(listPool, HTTPMetrics.Endpoint.USERS, realmId, request(target)::get)) {
+      if (isSuccessful(call.getResponse())) {
+        List<HTTPUserModel> users = call.readList(response -> response.readEntity(USER_LIST));
+        return Optional.of(users.isEmpty() ? 0 : users.size());
+      }
     }
     return Optional.empty();
   }
@@ -207,40 +794,120 @@ public class HTTPConnector {
     final WebTarget usersEndpointWithAdditionalQueryParameters =
         appendQueryParameters.apply(usersEndpoint(Optional.of(offset), Optional.of(limit)));
 
-    logger.infof("uri: %s", usersEndpointWithAdditionalQueryParameters.getUri());
-    final Response response =
-        usersEndpointWithAdditionalQueryParameters
-            .request(MediaType.APPLICATION_JSON_TYPE)
-            .header(HttpHeaders.AUTHORIZATION, auth)
-            .get();
-    if (isSuccessful(response)) {
-      return response.readEntity(new GenericType<List<HTTPUserModel>>() {});
-    } else if (response.getStatusInfo().toEnum() == Response.Status.BAD_REQUEST) {
-      throw new RuntimeException(response.readEntity(String.class));
-    }
-    logger.errorf(
-        "getUsersTemplate(%s, %s, %s, %s}) = %s",
-        realmId, offset, limit, "appendQueryParameters", response);
+    try (Call call =
+        send(
+            listPool,
+            HTTPMetrics.Endpoint.USERS,
+            realmId,
+            request(usersEndpointWithAdditionalQueryParameters)::get)) {
+      final Response response = call.getResponse();
+      if (isSuccessful(response)) {
+        final List<HTTPUserModel> users = call.readList(r -> r.readEntity(USER_LIST));
+        users.forEach(user -> indexRoles(realmId, user));
+        if (projection) users.forEach(user -> user.setPartial(true));
+        return users;
+      } else if (response.getStatusInfo().toEnum() == Response.Status.BAD_REQUEST) {
+        throw new RuntimeException(response.readEntity(String.class));
+      }
+      logger.errorf(
+          "getUsersTemplate(%s, %s, %s, %s}) = %s",
+          realmId, offset, limit, "appendQueryParameters", response);
+    }
     return Collections.emptyList();
   }
 
   public List<HTTPUserModel> getUsers(String realmId, int offset, int limit) {
-    logger.infof("getUsers(%s, %s, %s)", realmId, offset, limit);
-    final List<HTTPUserModel> result = getUsersTemplate(realmId, offset, limit, Function.identity());
-    logListOfUserModel(result);
-    return result;
+    logger.debugf("getUsers(%s, %s, %s)", realmId, offset, limit);
+    return getUsersTemplate(realmId, offset, limit, Function.identity());
+  }
+
+  /**
+   * Reads a page of complete users for the synchronization. The list projection is not used, the
+   * backend must return the attributes.
+   *
+   * @param realmId realm within which users exist
+   * @param offset offset of the page
+   * @param limit size of the page
+   * @return the users, fewer than limit on the last page
+   */
+  public List<HTTPUserModel> getUsersPage(String realmId, int offset, int limit) {
+    logger.debugf("getUsersPage(%s, %d, %d)", realmId, offset, limit);
+    final WebTarget target =
+        syncUsersTarget.queryParam("offset", offset).queryParam("limit", limit);
+    try (Call call =
+        send(syncPool, HTTPMetrics.Endpoint.USERS_PAGE, realmId, request(target)::get)) {
+      if (isSuccessful(call.getResponse())) {
+        final List<HTTPUserModel> users = call.readList(response -> response.readEntity(USER_LIST));
+        users.forEach(user -> indexRoles(realmId, user));
+        return users;
+      }
+      throw new RuntimeException(
+          "Reading users from http storage has failed with status " + call.getStatus());
+    }
+  }
+
+  /**
+   * Reads a page of the users changed since a watermark.
+   *
+   * @param realmId realm within which users exist
+   * @param modifiedSince watermark of the last synchronization
+   * @param cursor cursor of the previous page or null for the first page
+   * @param limit maximum number of users of the page
+   * @return the page or empty, if the backend does not support the query
+   */
+  public Optional<HTTPChangedUsers> getChangedUsers(
+      String realmId, String modifiedSince, String cursor, int limit) {
+    logger.debugf("getChangedUsers(%s, %s, %s, %d)", realmId, modifiedSince, cursor, limit);
+    WebTarget target =
+        syncUsersTarget.queryParam("modifiedSince", modifiedSince).queryParam("limit", limit);
+    if (cursor != null) target = target.queryParam("cursor", cursor);
+    final int status;
+    try (Call call =
+        send(syncPool, HTTPMetrics.Endpoint.USERS_CHANGED, realmId, request(target)::get)) {
+      status = call.getStatus();
+      if (isSuccessful(call.getResponse())) {
+        final JsonNode body = call.read(response -> response.readEntity(JsonNode.class));
+        if (!body.isObject()) {
+          // the backend ignored modifiedSince and returned the plain user list
+          logger.info("getChangedUsers not supported, backend returned a list");
+          return Optional.empty();
+        }
+        final HTTPChangedUsers page = call.read(r -> treeToValue(body, HTTPChangedUsers.class));
+        call.setUsers(page.getUsers().size());
+        page.getUsers().forEach(user -> indexRoles(realmId, user));
+        return Optional.of(page);
+      }
+    }
+    if (status == 400 || status == 404 || status == 501) {
+      logger.infof("getChangedUsers not supported (%d)", status);
+      return Optional.empty();
+    }
+    throw new RuntimeException(
+        "Reading changed users from http storage has failed with status " + status);
   }
 
-  private void logListOfUserModel(List<HTTPUserModel> result) {
-    logger.infof("list of user models: %s", result);
+  /**
+   * Reads the current watermark of the backend as the watermark of an empty page of changed users
+   * (GET /user?modifiedSince=0&limit=0).
+   *
+   * @param realmId realm within which users exist
+   * @return the watermark or empty, if the backend does not support the query
+   */
+  public Optional<String> getWatermark(String realmId) {
+    return getChangedUsers(realmId, "0", null, 0).map(HTTPChangedUsers::getWatermark);
+  }
+
+  private static <T> T treeToValue(JsonNode node, Class<T> type) {
+    try {
+      return OBJECT_MAPPER.treeToValue(node, type);
+    } catch (IOException e) {
+      throw new RuntimeException("Reading response of http storage has failed", e);
+    }
   }
 
   public List<HTTPUserModel> searchForUser(String realmId, String search, int offset, int limit) {
-    logger.infof("searchForUser(%s, %s, %d, %d)", realmId, search, offset, limit);
-    final List<HTTPUserModel> result =
-        getUsersTemplate(realmId, offset, limit, target -> target.queryParam("search", search));
-    logListOfUserModel(result);
-    return result;
+    logger.debugf("searchForUser(%s, %s, %d, %d)", realmId, search, offset, limit);
+    return getUsersTemplate(realmId, offset, limit, target -> target.queryParam("search", search));
   }
 
   /**
@@ -252,7 +919,7 @@ public class HTTPConnector {
    */
   public List<HTTPUserModel> searchForUserByParams(
       String realmId, Map<String, String> params, int offset, int limit) {
-    logger.infof("searchForUserByParams(p'%s', %d, %d)", params, offset, limit);
+    logger.debugf("searchForUserByParams(p'%s', %d, %d)", params, offset, limit);
     final Function<WebTarget, WebTarget> appendQueryParametersToTarget =
         target -> {
           for (Map.Entry<String, String> entry : params.entrySet()) {
@@ -260,10 +927,7 @@ public class HTTPConnector {
           }
           return target;
         };
-    final List<HTTPUserModel> result =
-        getUsersTemplate(realmId, offset, limit, appendQueryParametersToTarget);
-    logListOfUserModel(result);
-    return result;
+    return getUsersTemplate(realmId, offset, limit, appendQueryParametersToTarget);
   }
 
   /**
@@ -272,7 +936,7 @@ public class HTTPConnector {
    * @return
    */
   public Optional<Boolean> isConfiguredPasswordForExternalId(String realmId, String externalId) {
-    logger.infof("isConfiguredPasswordForExternalId(%s, %s)", new Object[] {realmId, externalId});
+    logger.debugf("isConfiguredPasswordForExternalId(%s, %s)", realmId, externalId);
     return Optional.of(true);
   }
 
@@ -285,7 +949,7 @@ public class HTTPConnector {
    * @return
    */
   public HTTPUserModel createUser(String realmId, HTTPUserModel user, boolean isManualSetUp) {
-    logger.infof("createUser(%s, %s)", realmId, user);
+    logger.debugf("createUser(%s, %s)", realmId, user.getUsername());
     throw new RuntimeException("Creating user in http storage has failed");
   }
 
@@ -300,25 +964,89 @@ public class HTTPConnector {
    */
   public boolean verifyPassword(String realmId, String userId, String password) {
     if (password == null) {
-      logger.infof("verifyPassword(%s, %s, null) = false", realmId, userId);
+      logger.debugf("verifyPassword(%s, %s, null) = false", realmId, userId);
       return false;
     }
 
-    try {
-      logger.infof("uri: %s", validateUserPassword(userId).getUri());
-      final Response response =
-          validateUserPassword(userId)
-              .request(MediaType.APPLICATION_JSON_TYPE)
-              .header(HttpHeaders.AUTHORIZATION, auth)
-              .post(Entity.entity(password, MediaType.APPLICATION_JSON));
-      logger.infof("response: %d", response.getStatus());
-      return response.getStatusInfo().toEnum() == Response.Status.OK;
-    } catch (Exception e) {
+    final Invocation.Builder request = request(validateUserPassword(userId));
+    try (Call call =
+        send(
+            pool,
+            HTTPMetrics.Endpoint.VALIDATE,
+            realmId,
+            () -> request.post(Entity.entity(password, MediaType.APPLICATION_JSON)))) {
+      return call.getResponse().getStatusInfo().toEnum() == Response.Status.OK;
+    } catch (ProcessingException e) {
       logger.error("could not validate password", e);
     }
     return false;
   }
 
+  /**
+   * Verifies the password and reads the user in one request (POST /user/authenticate/{username}).
+   * If the backend does not support the request, the password is verified with
+   * {@link #verifyPassword(String, String, String)} and no user is returned.
+   *
+   * @param realmId realm within which user exists
+   * @param userId user service id
+   * @param password password from UI that needs to be verified
+   * @return the result, with the user if the password is valid and the backend returned it
+   */
+  public Authentication authenticate(String realmId, String userId, String password) {
+    if (password == null) {
+      return new Authentication(false, null);
+    }
+
+    final Invocation.Builder request =
+        request(userAuthenticateTarget.resolveTemplate("username", userId));
+    final int status;
+    try (Call call =
+        send(
+            pool,
+            HTTPMetrics.Endpoint.AUTHENTICATE,
+            realmId,
+            () -> request.post(Entity.entity(password, MediaType.APPLICATION_JSON)))) {
+      status = call.getStatus();
+      if (isSuccessful(call.getResponse())) {
+        final Optional<HTTPCompactUser> user = call.read(response -> readUser(realmId, response));
+        user.ifPresent(u -> userCache.put(realmId, u));
+        final HTTPHierarchy hierarchy = getHierarchy(realmId);
+        return new Authentication(true, user.map(u -> u.toModel(hierarchy)).orElse(null));
+      }
+    } catch (ProcessingException e) {
+      logger.error("could not authenticate user", e);
+      return new Authentication(false, null);
+    }
+    if (status == 404 || status == 405 || status == 501) {
+      logger.warnf("authenticate not supported (%d), validating password only", status);
+      return new Authentication(verifyPassword(realmId, userId, password), null);
+    }
+    logger.debugf("authenticate(%s, %s) = %d", realmId, userId, status);
+    return new Authentication(false, null);
+  }
+
+  /** Result of {@link HTTPConnector#authenticate(String, String, String)} */
+  public static class Authentication {
+
+    private final boolean valid;
+    private final HTTPUserModel user;
+
+    private Authentication(boolean valid, HTTPUserModel user) {
+      this.valid = valid;
+      this.user = user;
+    }
+
+    /** @return true, if the password is valid */
+    public boolean isValid() {
+      return valid;
+    }
+
+    /** @return the authenticated user, if the backend returned it */
+    public Optional<HTTPUserModel> getUser() {
+      return Optional.ofNullable(user);
+    }
+  }
+
   /**
    * Removes a user in the backend.
    *
@@ -331,13 +1059,194 @@ public class HTTPConnector {
   }
 
   /**
-   * Updates a usermodel in the backend.
+   * @param user changed user
+   * @param changes changed fields and attributes
+   * @return the JSON Merge Patch of the changes
+   */
+  public ObjectNode toMergePatch(HTTPUserModel user, HTTPUserChanges changes) {
+    return changes.toMergePatch(user, OBJECT_MAPPER);
+  }
+
+  /**
+   * @return the journal updates are appended to instead of sending them, if write-behind is enabled
+   */
+  public Optional<HTTPWriteJournal> getWriteJournal() {
+    return Optional.ofNullable(writeJournal);
+  }
+
+  /**
+   * Removes a user from the cache.
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   */
+  public void invalidate(String realmId, String externalId) {
+    userCache.invalidate(realmId, externalId);
+  }
+
+  /**
+   * Updates several users in the backend. The updates are sent in chunks of the configured write
+   * batch size as bulk requests (POST /user/bulk), several chunks in parallel. If the backend does
+   * not support bulk requests, each update of a chunk is sent as single PATCH. The cached users
+   * are invalidated before and after the updates, so a lookup during the updates can't cache the
+   * old user again.
+   *
+   * @param realmId realm within which the users exist
+   * @param updates the updates
+   * @return one result per update in the same order, matched by the id of the user
+   */
+  public List<HTTPBulkUpdate.Result> bulkUpdate(String realmId, List<HTTPBulkUpdate> updates) {
+    logger.debugf("bulkUpdate(%s, %d)", realmId, updates.size());
+    updates.forEach(update -> userCache.invalidate(realmId, update.getId()));
+    try {
+      return sendBulkUpdate(realmId, updates);
+    } finally {
+      updates.forEach(update -> userCache.invalidate(realmId, update.getId()));
+    }
+  }
+
+  private List<HTTPBulkUpdate.Result> sendBulkUpdate(
+      String realmId, List<HTTPBulkUpdate> updates) {
+    final List<List<HTTPBulkUpdate>> chunks = new ArrayList<>();
+    for (int i = 0; i < updates.size(); i += writeBatchSize) {
+      chunks.add(updates.subList(i, Math.min(i + writeBatchSize, updates.size())));
+    }
+    if (chunks.size() == 1) {
+      return bulkUpdateChunk(realmId, chunks.get(0));
+    }
+
+    final List<Future<List<HTTPBulkUpdate.Result>>> futures = new ArrayList<>();
+    for (List<HTTPBulkUpdate> chunk : chunks) {
+      futures.add(writeExecutor.submit(() -> bulkUpdateChunk(realmId, chunk)));
+    }
+    final List<HTTPBulkUpdate.Result> results = new ArrayList<>(updates.size());
+    for (int i = 0; i < chunks.size(); i++) {
+      results.addAll(chunkResult(chunks.get(i), futures.get(i)));
+    }
+    return results;
+  }
+
+  private List<HTTPBulkUpdate.Result> chunkResult(
+      List<HTTPBulkUpdate> chunk, Future<List<HTTPBulkUpdate.Result>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return failed(chunk, e);
+    } catch (ExecutionException e) {
+      return failed(chunk, e.getCause());
+    }
+  }
+
+  private static List<HTTPBulkUpdate.Result> failed(List<HTTPBulkUpdate> chunk, Throwable cause) {
+    logger.error("bulk update has failed", cause);
+    return chunk.stream()
+        .map(update -> new HTTPBulkUpdate.Result(update.getId(), 0, String.valueOf(cause)))
+        .collect(Collectors.toList());
+  }
+
+  private List<HTTPBulkUpdate.Result> bulkUpdateChunk(
+      String realmId, List<HTTPBulkUpdate> chunk) {
+    final Invocation.Builder request = request(bulkTarget);
+    final int status;
+    try (Call call =
+        send(
+            pool,
+            HTTPMetrics.Endpoint.BULK,
+            realmId,
+            () -> request.post(Entity.entity(chunk, MediaType.APPLICATION_JSON_TYPE)))) {
+      status = call.getStatus();
+      if (isSuccessful(call.getResponse())) {
+        final List<HTTPBulkUpdate.Result> results =
+            call.read(
+                response -> response.readEntity(new GenericType<List<HTTPBulkUpdate.Result>>() {}));
+        return matchResults(chunk, results);
+      }
+    }
+    if (status == 404 || status == 405 || status == 501) {
+      logger.infof("bulkUpdate not supported (%d), sending single updates", status);
+      return chunk.stream()
+          .map(update -> singleUpdate(realmId, update))
+          .collect(Collectors.toList());
+    }
+    return chunk.stream()
+        .map(update -> new HTTPBulkUpdate.Result(update.getId(), status, "bulk update has failed"))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Matches the results of a bulk request to its updates by the id of the user, the backend may
+   * answer in any order. An update without result counts as failed without status and is retried.
+   */
+  private static List<HTTPBulkUpdate.Result> matchResults(
+      List<HTTPBulkUpdate> chunk, List<HTTPBulkUpdate.Result> results) {
+    final Map<String, HTTPBulkUpdate.Result> byId = new HashMap<>();
+    for (HTTPBulkUpdate.Result result : results) {
+      if (result != null && result.getId() != null) byId.put(result.getId(), result);
+    }
+    if (byId.size() != chunk.size()) {
+      logger.errorf("bulkUpdate returned %d results for %d updates", byId.size(), chunk.size());
+    }
+    final List<HTTPBulkUpdate.Result> matched = new ArrayList<>(chunk.size());
+    for (HTTPBulkUpdate update : chunk) {
+      final HTTPBulkUpdate.Result result = byId.get(update.getId());
+      matched.add(
+          result != null
+              ? result
+              : new HTTPBulkUpdate.Result(update.getId(), 0, "no result for the update"));
+    }
+    return matched;
+  }
+
+  private HTTPBulkUpdate.Result singleUpdate(String realmId, HTTPBulkUpdate update) {
+    final Invocation.Builder request =
+        request(userByIdEndpoint(update.getId()))
+            .header(IDEMPOTENCY_KEY, update.getIdempotencyKey());
+    final Entity<String> patch = Entity.entity(update.getPatch().toString(), MERGE_PATCH_TYPE);
+    try (Call call =
+        send(
+            pool,
+            HTTPMetrics.Endpoint.UPDATE,
+            realmId,
+            () -> request.method(HttpMethod.PATCH, patch))) {
+      return new HTTPBulkUpdate.Result(update.getId(), call.getStatus(), null);
+    }
+  }
+
+  /**
+   * Updates a usermodel in the backend. Only the changed fields and attributes are sent as JSON
+   * Merge Patch (PATCH /user/{id}). The cached user is invalidated before and after the request.
    *
    * @param realmId realm within which user exists
    * @param updatedUserModel updated user model
-   * @param isManualSetUp
+   * @param changes changed fields and attributes
+   * @param idempotencyKey unique key of this change, the backend can use it to detect repeated
+   *     requests
    */
-  public void updateUser(String realmId, HTTPUserModel updatedUserModel, boolean isManualSetUp) {
-    logger.infof("updateUser(%s, %s)", realmId, updatedUserModel);
+  public void updateUser(
+      String realmId, HTTPUserModel updatedUserModel, HTTPUserChanges changes, String idempotencyKey) {
+    logger.debugf("updateUser(%s, %s)", realmId, updatedUserModel.getId());
+    userCache.invalidate(realmId, updatedUserModel.getId());
+
+    final String patch = toMergePatch(updatedUserModel, changes).toString();
+    final Invocation.Builder request =
+        request(userByIdEndpoint(updatedUserModel.getId())).header(IDEMPOTENCY_KEY, idempotencyKey);
+    final Entity<String> entity = Entity.entity(patch, MERGE_PATCH_TYPE);
+    final int status;
+    try (Call call =
+        send(
+            pool,
+            HTTPMetrics.Endpoint.UPDATE,
+            realmId,
+            () -> request.method(HttpMethod.PATCH, entity))) {
+      status = call.getStatus();
+    } finally {
+      // a lookup during the request may have cached the old user again
+      userCache.invalidate(realmId, updatedUserModel.getId());
+    }
+    if (Response.Status.Family.familyOf(status) != Response.Status.Family.SUCCESSFUL) {
+      logger.errorf("updateUser(%s, %s) = %d", realmId, updatedUserModel.getId(), status);
+      throw new RuntimeException("Updating user in http storage has failed");
+    }
   }
 }
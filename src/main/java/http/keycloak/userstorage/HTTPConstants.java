@@ -1,5 +1,9 @@
 package http.keycloak.userstorage;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * A list of all HTTP specific constants
  */
@@ -15,5 +19,189 @@ public class HTTPConstants {
   public static final String CONFIG_PASSWORD = "password";
   public static final String CONFIG_PASSWORD_LABEL = "HTTP-Password";
   public static final String CONFIG_PASSWORD_HELP = "HTTP-Password-Help";
+  public static final String CONFIG_HIERARCHY_TTL = "hierarchyTtl";
+  public static final String CONFIG_HIERARCHY_TTL_LABEL = "HTTP-Hierarchy-TTL";
+  public static final String CONFIG_HIERARCHY_TTL_HELP = "HTTP-Hierarchy-TTL-Help";
+  public static final int DEFAULT_HIERARCHY_TTL = 300;
+  public static final String CONFIG_CACHE_TTL = "cacheTtl";
+  public static final String CONFIG_CACHE_TTL_LABEL = "HTTP-Cache-TTL";
+  public static final String CONFIG_CACHE_TTL_HELP = "HTTP-Cache-TTL-Help";
+  public static final int DEFAULT_CACHE_TTL = 0;
+  public static final String CONFIG_CACHE_SIZE = "cacheSize";
+  public static final String CONFIG_CACHE_SIZE_LABEL = "HTTP-Cache-Size";
+  public static final String CONFIG_CACHE_SIZE_HELP = "HTTP-Cache-Size-Help";
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+  public static final String CONFIG_PROJECTION = "projection";
+  public static final String CONFIG_PROJECTION_LABEL = "HTTP-Projection";
+  public static final String CONFIG_PROJECTION_HELP = "HTTP-Projection-Help";
+  public static final String CONFIG_WRITE_BATCH_SIZE = "writeBatchSize";
+  public static final String CONFIG_WRITE_BATCH_SIZE_LABEL = "HTTP-Write-Batch-Size";
+  public static final String CONFIG_WRITE_BATCH_SIZE_HELP = "HTTP-Write-Batch-Size-Help";
+  public static final int DEFAULT_WRITE_BATCH_SIZE = 100;
+  public static final String CONFIG_WRITE_PARALLELISM = "writeParallelism";
+  public static final String CONFIG_WRITE_PARALLELISM_LABEL = "HTTP-Write-Parallelism";
+  public static final String CONFIG_WRITE_PARALLELISM_HELP = "HTTP-Write-Parallelism-Help";
+  public static final int DEFAULT_WRITE_PARALLELISM = 4;
+  public static final String CONFIG_SYNC_BATCH_SIZE = "syncBatchSize";
+  public static final String CONFIG_SYNC_BATCH_SIZE_LABEL = "HTTP-Sync-Batch-Size";
+  public static final String CONFIG_SYNC_BATCH_SIZE_HELP = "HTTP-Sync-Batch-Size-Help";
+  public static final int DEFAULT_SYNC_BATCH_SIZE = 100;
+  public static final String CONFIG_SYNC_PARALLELISM = "syncParallelism";
+  public static final String CONFIG_SYNC_PARALLELISM_LABEL = "HTTP-Sync-Parallelism";
+  public static final String CONFIG_SYNC_PARALLELISM_HELP = "HTTP-Sync-Parallelism-Help";
+  public static final int DEFAULT_SYNC_PARALLELISM = 4;
+  public static final String CONFIG_VERIFY_CONCURRENCY = "verifyConcurrency";
+  public static final String CONFIG_VERIFY_CONCURRENCY_LABEL = "HTTP-Verify-Concurrency";
+  public static final String CONFIG_VERIFY_CONCURRENCY_HELP = "HTTP-Verify-Concurrency-Help";
+  public static final int DEFAULT_VERIFY_CONCURRENCY = 16;
+  public static final String CONFIG_VERIFY_QUEUE_SIZE = "verifyQueueSize";
+  public static final String CONFIG_VERIFY_QUEUE_SIZE_LABEL = "HTTP-Verify-Queue-Size";
+  public static final String CONFIG_VERIFY_QUEUE_SIZE_HELP = "HTTP-Verify-Queue-Size-Help";
+  public static final int DEFAULT_VERIFY_QUEUE_SIZE = 100;
+  public static final String CONFIG_VERIFY_QUEUE_TIMEOUT = "verifyQueueTimeout";
+  public static final String CONFIG_VERIFY_QUEUE_TIMEOUT_LABEL = "HTTP-Verify-Queue-Timeout";
+  public static final String CONFIG_VERIFY_QUEUE_TIMEOUT_HELP = "HTTP-Verify-Queue-Timeout-Help";
+  public static final int DEFAULT_VERIFY_QUEUE_TIMEOUT = 2000;
+  public static final String CONFIG_LOGIN_CONCURRENCY = "loginConcurrency";
+  public static final String CONFIG_LOGIN_CONCURRENCY_LABEL = "HTTP-Login-Concurrency";
+  public static final String CONFIG_LOGIN_CONCURRENCY_HELP = "HTTP-Login-Concurrency-Help";
+  public static final int DEFAULT_LOGIN_CONCURRENCY = 32;
+  public static final String CONFIG_LOGIN_TIMEOUT = "loginTimeout";
+  public static final String CONFIG_LOGIN_TIMEOUT_LABEL = "HTTP-Login-Timeout";
+  public static final String CONFIG_LOGIN_TIMEOUT_HELP = "HTTP-Login-Timeout-Help";
+  public static final int DEFAULT_LOGIN_TIMEOUT = 5000;
+  public static final String CONFIG_ADMIN_CONCURRENCY = "adminConcurrency";
+  public static final String CONFIG_ADMIN_CONCURRENCY_LABEL = "HTTP-Admin-Concurrency";
+  public static final String CONFIG_ADMIN_CONCURRENCY_HELP = "HTTP-Admin-Concurrency-Help";
+  public static final int DEFAULT_ADMIN_CONCURRENCY = 8;
+  public static final String CONFIG_ADMIN_TIMEOUT = "adminTimeout";
+  public static final String CONFIG_ADMIN_TIMEOUT_LABEL = "HTTP-Admin-Timeout";
+  public static final String CONFIG_ADMIN_TIMEOUT_HELP = "HTTP-Admin-Timeout-Help";
+  public static final int DEFAULT_ADMIN_TIMEOUT = 30000;
+  public static final String CONFIG_BACKGROUND_CONCURRENCY = "backgroundConcurrency";
+  public static final String CONFIG_BACKGROUND_CONCURRENCY_LABEL = "HTTP-Background-Concurrency";
+  public static final String CONFIG_BACKGROUND_CONCURRENCY_HELP = "HTTP-Background-Concurrency-Help";
+  public static final int DEFAULT_BACKGROUND_CONCURRENCY = 4;
+  public static final String CONFIG_BACKGROUND_TIMEOUT = "backgroundTimeout";
+  public static final String CONFIG_BACKGROUND_TIMEOUT_LABEL = "HTTP-Background-Timeout";
+  public static final String CONFIG_BACKGROUND_TIMEOUT_HELP = "HTTP-Background-Timeout-Help";
+  public static final int DEFAULT_BACKGROUND_TIMEOUT = 60000;
+  public static final String CONFIG_CORRELATION_HEADER = "correlationHeader";
+  public static final String CONFIG_CORRELATION_HEADER_LABEL = "HTTP-Correlation-Header";
+  public static final String CONFIG_CORRELATION_HEADER_HELP = "HTTP-Correlation-Header-Help";
+  public static final String DEFAULT_CORRELATION_HEADER = "X-Request-ID";
+  public static final String CONFIG_SLOW_CALL_THRESHOLD = "slowCallThreshold";
+  public static final String CONFIG_SLOW_CALL_THRESHOLD_LABEL = "HTTP-Slow-Call-Threshold";
+  public static final String CONFIG_SLOW_CALL_THRESHOLD_HELP = "HTTP-Slow-Call-Threshold-Help";
+  public static final int DEFAULT_SLOW_CALL_THRESHOLD = 1000;
+  public static final String CONFIG_LOG_SUMMARY_INTERVAL = "logSummaryInterval";
+  public static final String CONFIG_LOG_SUMMARY_INTERVAL_LABEL = "HTTP-Log-Summary-Interval";
+  public static final String CONFIG_LOG_SUMMARY_INTERVAL_HELP = "HTTP-Log-Summary-Interval-Help";
+  public static final int DEFAULT_LOG_SUMMARY_INTERVAL = 60;
+  public static final String CONFIG_TRACE = "trace";
+  public static final String CONFIG_TRACE_LABEL = "HTTP-Trace";
+  public static final String CONFIG_TRACE_HELP = "HTTP-Trace-Help";
+  public static final String CONFIG_TRACE_DIRECTORY = "traceDirectory";
+  public static final String CONFIG_TRACE_DIRECTORY_LABEL = "HTTP-Trace-Directory";
+  public static final String CONFIG_TRACE_DIRECTORY_HELP = "HTTP-Trace-Directory-Help";
+  public static final String CONFIG_HEALTH_INTERVAL = "healthInterval";
+  public static final String CONFIG_HEALTH_INTERVAL_LABEL = "HTTP-Health-Interval";
+  public static final String CONFIG_HEALTH_INTERVAL_HELP = "HTTP-Health-Interval-Help";
+  public static final int DEFAULT_HEALTH_INTERVAL = 10;
+  public static final String CONFIG_HEALTH_FAILURES = "healthFailures";
+  public static final String CONFIG_HEALTH_FAILURES_LABEL = "HTTP-Health-Failures";
+  public static final String CONFIG_HEALTH_FAILURES_HELP = "HTTP-Health-Failures-Help";
+  public static final int DEFAULT_HEALTH_FAILURES = 3;
+  public static final String CONFIG_AUTHENTICATE = "authenticate";
+  public static final String CONFIG_AUTHENTICATE_LABEL = "HTTP-Authenticate";
+  public static final String CONFIG_AUTHENTICATE_HELP = "HTTP-Authenticate-Help";
+  public static final String CONFIG_THROTTLE_USER = "throttleUser";
+  public static final String CONFIG_THROTTLE_USER_LABEL = "HTTP-Throttle-User";
+  public static final String CONFIG_THROTTLE_USER_HELP = "HTTP-Throttle-User-Help";
+  public static final int DEFAULT_THROTTLE_USER = 10;
+  public static final String CONFIG_THROTTLE_IP = "throttleIp";
+  public static final String CONFIG_THROTTLE_IP_LABEL = "HTTP-Throttle-IP";
+  public static final String CONFIG_THROTTLE_IP_HELP = "HTTP-Throttle-IP-Help";
+  public static final int DEFAULT_THROTTLE_IP = 300;
+  public static final String CONFIG_VERIFIER_CACHE_TTL = "verifierCacheTtl";
+  public static final String CONFIG_VERIFIER_CACHE_TTL_LABEL = "HTTP-Verifier-Cache-TTL";
+  public static final String CONFIG_VERIFIER_CACHE_TTL_HELP = "HTTP-Verifier-Cache-TTL-Help";
+  public static final int DEFAULT_VERIFIER_CACHE_TTL = 0;
+  public static final String CONFIG_VERIFIER_CACHE_COST = "verifierCacheCost";
+  public static final String CONFIG_VERIFIER_CACHE_COST_LABEL = "HTTP-Verifier-Cache-Cost";
+  public static final String CONFIG_VERIFIER_CACHE_COST_HELP = "HTTP-Verifier-Cache-Cost-Help";
+  public static final int DEFAULT_VERIFIER_CACHE_COST = 12;
+  /** same key as UserStorageProviderModel.IMPORT_ENABLED */
+  public static final String CONFIG_IMPORT = "importEnabled";
+  public static final String CONFIG_IMPORT_LABEL = "HTTP-Import";
+  public static final String CONFIG_IMPORT_HELP = "HTTP-Import-Help";
+  public static final String CONFIG_IMPORT_VALIDATION_INTERVAL = "importValidationInterval";
+  public static final String CONFIG_IMPORT_VALIDATION_INTERVAL_LABEL = "HTTP-Import-Validation-Interval";
+  public static final String CONFIG_IMPORT_VALIDATION_INTERVAL_HELP = "HTTP-Import-Validation-Interval-Help";
+  public static final int DEFAULT_IMPORT_VALIDATION_INTERVAL = 60;
+  public static final String CONFIG_WRITE_BEHIND = "writeBehind";
+  public static final String CONFIG_WRITE_BEHIND_LABEL = "HTTP-Write-Behind";
+  public static final String CONFIG_WRITE_BEHIND_HELP = "HTTP-Write-Behind-Help";
+  public static final String CONFIG_JOURNAL_DIRECTORY = "journalDirectory";
+  public static final String CONFIG_JOURNAL_DIRECTORY_LABEL = "HTTP-Journal-Directory";
+  public static final String CONFIG_JOURNAL_DIRECTORY_HELP = "HTTP-Journal-Directory-Help";
+  public static final String DEFAULT_JOURNAL_DIRECTORY =
+      System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir"))
+          + "/http-userstorage";
+  public static final String DEFAULT_TRACE_DIRECTORY = DEFAULT_JOURNAL_DIRECTORY;
+
+  /**
+   * the config keys of this provider. Keycloak keeps its own keys in the same config, e.g. lastSync
+   * is written after every sync, they are no config of the provider.
+   */
+  public static final List<String> CONFIG_KEYS =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              CONFIG_URL,
+              CONFIG_USERNAME,
+              CONFIG_PASSWORD,
+              CONFIG_HIERARCHY_TTL,
+              CONFIG_CACHE_TTL,
+              CONFIG_CACHE_SIZE,
+              CONFIG_PROJECTION,
+              CONFIG_WRITE_BATCH_SIZE,
+              CONFIG_WRITE_PARALLELISM,
+              CONFIG_SYNC_BATCH_SIZE,
+              CONFIG_SYNC_PARALLELISM,
+              CONFIG_VERIFY_CONCURRENCY,
+              CONFIG_VERIFY_QUEUE_SIZE,
+              CONFIG_VERIFY_QUEUE_TIMEOUT,
+              CONFIG_LOGIN_CONCURRENCY,
+              CONFIG_LOGIN_TIMEOUT,
+              CONFIG_ADMIN_CONCURRENCY,
+              CONFIG_ADMIN_TIMEOUT,
+              CONFIG_BACKGROUND_CONCURRENCY,
+              CONFIG_BACKGROUND_TIMEOUT,
+              CONFIG_CORRELATION_HEADER,
+              CONFIG_SLOW_CALL_THRESHOLD,
+              CONFIG_LOG_SUMMARY_INTERVAL,
+              CONFIG_TRACE,
+              CONFIG_TRACE_DIRECTORY,
+              CONFIG_HEALTH_INTERVAL,
+              CONFIG_HEALTH_FAILURES,
+              CONFIG_AUTHENTICATE,
+              CONFIG_THROTTLE_USER,
+              CONFIG_THROTTLE_IP,
+              CONFIG_VERIFIER_CACHE_TTL,
+              CONFIG_VERIFIER_CACHE_COST,
+              CONFIG_IMPORT,
+              CONFIG_IMPORT_VALIDATION_INTERVAL,
+              CONFIG_WRITE_BEHIND,
+              CONFIG_JOURNAL_DIRECTORY));
+
+  /** attribute of an imported user with the id of the user in the backend */
+  public static final String ATTRIBUTE_ID = "HTTP_ID";
+
+  /** attribute of an imported user with the ETag of the last read of the user */
+  public static final String ATTRIBUTE_ETAG = "HTTP_ETAG";
+
+  /** fields requested for list responses, if the projection is enabled */
+  public static final String LIST_FIELDS =
+      "id,username,firstName,lastName,email,enabled,emailVerified,createdTimestamp";
 
 }
@@ -0,0 +1,148 @@
+package http.keycloak.userstorage;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the http storage. An event is only created, when its type is
+ * enabled in a running recording, so the events cost a volatile read otherwise.
+ *
+ * <p>Record them with e.g. {@code jcmd <pid> JFR.start settings=profile} and open the recording
+ * in JDK Mission Control, the events are in the category "Keycloak / HTTP User Storage".
+ */
+final class HTTPEvents {
+
+  private static final String CATEGORY_1 = "Keycloak";
+  private static final String CATEGORY_2 = "HTTP User Storage";
+
+  static final EventType CALL = EventType.getEventType(Call.class);
+  static final EventType CACHE_LOAD = EventType.getEventType(CacheLoad.class);
+  static final EventType CACHE_EVICT = EventType.getEventType(CacheEvict.class);
+  static final EventType CACHE_REFRESH = EventType.getEventType(CacheRefresh.class);
+  static final EventType COMMIT = EventType.getEventType(Commit.class);
+
+  private HTTPEvents() {}
+
+  @Name("http.keycloak.userstorage.Call")
+  @Label("Backend Call")
+  @Description("A request to the backend of the http storage")
+  @Category({CATEGORY_1, CATEGORY_2})
+  @StackTrace(false)
+  static final class Call extends Event {
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Realm")
+    String realm;
+
+    @Label("Status")
+    @Description("http status, 0 if the request failed without response or was rejected")
+    int status;
+
+    @Label("Status Class")
+    String statusClass;
+
+    @Label("Response Size")
+    @Description("Content-Length of the response, -1 if unknown")
+    @DataAmount
+    long bytes;
+
+    @Label("Users")
+    @Description("number of users returned by a list request, -1 for other requests")
+    int users = -1;
+
+    @Label("Correlation Id")
+    String correlationId;
+
+    @Label("Queue Time")
+    @Timespan
+    long queueTime;
+
+    @Label("Response Time")
+    @Timespan
+    long responseTime;
+
+    @Label("Read Time")
+    @Timespan
+    long readTime;
+  }
+
+  @Name("http.keycloak.userstorage.CacheLoad")
+  @Label("User Cache Load")
+  @Description("A user was not cached and was loaded from the backend")
+  @Category({CATEGORY_1, CATEGORY_2})
+  @StackTrace(false)
+  static final class CacheLoad extends Event {
+    @Label("Realm")
+    String realm;
+
+    @Label("User Id")
+    String userId;
+
+    @Label("Found")
+    boolean found;
+  }
+
+  @Name("http.keycloak.userstorage.CacheEvict")
+  @Label("User Cache Evict")
+  @Description("Users were removed from the full user cache")
+  @Category({CATEGORY_1, CATEGORY_2})
+  @StackTrace(false)
+  static final class CacheEvict extends Event {
+    @Label("Expired")
+    int expired;
+
+    @Label("Removed")
+    @Description("valid users removed to free space")
+    int removed;
+
+    @Label("Remaining")
+    int remaining;
+  }
+
+  @Name("http.keycloak.userstorage.CacheRefresh")
+  @Label("Cache Refresh")
+  @Description("A cached or imported user or the role hierarchy was read again from the backend")
+  @Category({CATEGORY_1, CATEGORY_2})
+  @StackTrace(false)
+  static final class CacheRefresh extends Event {
+    @Label("Cache")
+    String cache;
+
+    @Label("Realm")
+    String realm;
+
+    @Label("Key")
+    String key;
+
+    @Label("Result")
+    String result;
+  }
+
+  @Name("http.keycloak.userstorage.Commit")
+  @Label("Transaction Commit")
+  @Description("The changed users of a session were written to the backend or the write journal")
+  @Category({CATEGORY_1, CATEGORY_2})
+  @StackTrace(false)
+  static final class Commit extends Event {
+    @Label("Created")
+    int created;
+
+    @Label("Updated")
+    int updated;
+
+    @Label("Failed")
+    int failed;
+
+    @Label("Journaled")
+    @Description("true, if the updates were appended to the write journal")
+    boolean journaled;
+  }
+}
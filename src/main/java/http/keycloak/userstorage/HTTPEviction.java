@@ -0,0 +1,38 @@
+package http.keycloak.userstorage;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Eviction of the bounded maps of a component, e.g. the user cache, the verifier cache and the
+ * throttles: when a map is full, all expired entries are removed and, if it is still full, about a
+ * tenth of the remaining entries in iteration order.
+ */
+final class HTTPEviction {
+
+  private HTTPEviction() {}
+
+  /**
+   * Makes room for new entries in a full map.
+   *
+   * @param map the map, safe for concurrent modification while iterating
+   * @param maxSize maximum number of entries of the map
+   * @param expired true for an expired value
+   * @return number of removed expired entries, the others are the difference of the sizes
+   */
+  static <V> int evict(Map<?, V> map, int maxSize, Predicate<? super V> expired) {
+    final int before = map.size();
+    map.values().removeIf(expired);
+    final int expiredCount = before - map.size();
+    if (map.size() < maxSize) return expiredCount;
+
+    int toRemove = map.size() - maxSize + Math.max(1, maxSize / 10);
+    final Iterator<?> keys = map.keySet().iterator();
+    while (toRemove-- > 0 && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+    return expiredCount;
+  }
+}
@@ -18,14 +18,25 @@ import org.keycloak.models.RoleModel;
 public class HTTPGroupModel implements GroupModel {
   private final String name;
   private final RealmModel realm;
-  private final List<String> roles;
+  private final HTTPRoleDictionary dictionary;
+  private final HTTPHierarchy hierarchy;
+  private long[] roles;
+  private long[] effectiveRoles = null;
   private GroupModel parent;
+  private boolean parentResolved;
   private Set<GroupModel> childs = new LinkedHashSet<>();
   private HashMap<String,List<String>> attributes = new HashMap<>();
 
-  public HTTPGroupModel(String name, List<String> roles, RealmModel realm) {
+  public HTTPGroupModel(
+      String name,
+      long[] roles,
+      HTTPRoleDictionary dictionary,
+      HTTPHierarchy hierarchy,
+      RealmModel realm) {
     this.name = name;
     this.roles = roles;
+    this.dictionary = dictionary;
+    this.hierarchy = hierarchy;
     this.realm = realm;
   }
 
@@ -41,22 +52,31 @@ public class HTTPGroupModel implements GroupModel {
 
   @Override
   public boolean hasRole(RoleModel role) {
-    return getRoleMappings().contains(role);
+    if (!HTTPRoleModel.isRealmRole(role, realm)) return false;
+    if (effectiveRoles == null) {
+      effectiveRoles =
+          HTTPRoleDictionary.union(hierarchy.expand(roles), hierarchy.inheritedRoles(name));
+    }
+    return HTTPRoleDictionary.contains(effectiveRoles, dictionary.lookup(role.getName()));
   }
 
   @Override
   public void grantRole(RoleModel role) {
-    roles.add(role.getName());
+    roles = HTTPRoleDictionary.set(roles, dictionary.idOf(role.getName()));
+    effectiveRoles = null;
   }
 
   @Override
   public Set<RoleModel> getRoleMappings() {
-    return roles.stream().map(role -> new HTTPRoleModel(role, realm)).collect(Collectors.toSet());
+    return dictionary.decode(roles).stream()
+        .map(role -> new HTTPRoleModel(role, realm, hierarchy))
+        .collect(Collectors.toSet());
   }
 
   @Override
   public void deleteRoleMapping(RoleModel role) {
-    roles.remove(role.getName());
+    roles = HTTPRoleDictionary.clear(roles, dictionary.lookup(role.getName()));
+    effectiveRoles = null;
   }
 
   @Override
@@ -107,11 +127,21 @@ public class HTTPGroupModel implements GroupModel {
 
   @Override
   public GroupModel getParent() {
+    if (!parentResolved) {
+      String parentName = hierarchy.parentOf(name);
+      if (parentName != null) {
+        parent =
+            new HTTPGroupModel(
+                parentName, hierarchy.directRoles(parentName), dictionary, hierarchy, realm);
+      }
+      parentResolved = true;
+    }
     return parent;
   }
 
   @Override
   public String getParentId() {
+    if (!parentResolved) return hierarchy.parentOf(name);
     if (parent != null) return parent.getId();
     return null;
   }
@@ -124,6 +154,7 @@ public class HTTPGroupModel implements GroupModel {
   @Override
   public void setParent(GroupModel group) {
     this.parent = group;
+    this.parentResolved = true;
   }
 
   @Override
@@ -141,6 +172,6 @@ public class HTTPGroupModel implements GroupModel {
   }
 
   public String toString() {
-    return String.format("HTTPGroupModel(name=%s, roles=%s, childs=%s, attributes=%s)", name, roles, childs, attributes);
+    return String.format("HTTPGroupModel(name=%s, roles=%s, childs=%s, attributes=%s)", name, dictionary.decode(roles), childs, attributes);
   }
 }
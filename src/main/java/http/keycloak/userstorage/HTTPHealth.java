@@ -0,0 +1,289 @@
+package http.keycloak.userstorage;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+import org.keycloak.util.BasicAuthHelper;
+
+/**
+ * Background health probe of the backend of a component. Every health interval it requests a user,
+ * that need not exist, with GET /user/{username} and tracks the latency and availability of the
+ * last {@link #WINDOW} probes. A probe fails without an answer within the login timeout or with a
+ * 5xx status; any other status, 404 included, proves a working backend.
+ *
+ * <p>After the configured number of failed probes in a row the backend is unavailable, and the
+ * login and admin connectors fail at once instead of waiting for their timeouts. The first
+ * successful probe makes the backend available again. The probe uses its own connection, so it
+ * neither waits for nor takes a slot of the connection pools.
+ */
+public class HTTPHealth implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(HTTPHealth.class);
+
+  /** number of probes of the rolling latency and availability */
+  public static final int WINDOW = 30;
+
+  /** username of the probe, the backend may answer 404 */
+  static final String PROBE_USERNAME = "http-userstorage-health-probe";
+
+  private final String componentId;
+
+  private final Client client;
+
+  private final WebTarget target;
+
+  private final String auth;
+
+  private final int failures;
+
+  private final ScheduledExecutorService scheduler;
+
+  /** latencies of the last probes in nanoseconds, -1 for a failed probe, guarded by this */
+  private final long[] latencies = new long[WINDOW];
+
+  /** number of probes, guarded by this */
+  private long probes;
+
+  /** failed probes in a row, guarded by this */
+  private int failed;
+
+  /** the last probe, guarded by this */
+  private Probe last;
+
+  /** epoch milliseconds of the last probe, guarded by this */
+  private long lastTime;
+
+  private volatile boolean available = true;
+
+  /**
+   * Creates the health probe of a component and starts probing.
+   *
+   * @param componentId id of the storage provider component
+   * @param cfg config of the component
+   */
+  public HTTPHealth(String componentId, HTTPConfig cfg) {
+    this.componentId = componentId;
+    this.client = HTTPConnector.newClient(1, cfg.getLoginTimeout());
+    this.target = probeTarget(client, cfg);
+    this.auth = BasicAuthHelper.createHeader(cfg.getUsername(), cfg.getPassword());
+    this.failures = Math.max(1, cfg.getHealthFailures());
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "http-health-" + componentId);
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        this::probe, 0, Math.max(1, cfg.getHealthInterval()), TimeUnit.SECONDS);
+  }
+
+  private static WebTarget probeTarget(Client client, HTTPConfig cfg) {
+    return client.target(cfg.getUrl()).path("/user").path(PROBE_USERNAME);
+  }
+
+  /**
+   * Probes the backend of a config once with a new connection, e.g. to validate the config.
+   *
+   * @param cfg the config
+   * @return the result of the probe
+   */
+  public static Probe probeOnce(HTTPConfig cfg) {
+    final Client client = HTTPConnector.newClient(1, cfg.getLoginTimeout());
+    try {
+      return send(
+          probeTarget(client, cfg),
+          BasicAuthHelper.createHeader(cfg.getUsername(), cfg.getPassword()));
+    } finally {
+      client.close();
+    }
+  }
+
+  private static Probe send(WebTarget target, String auth) {
+    final long start = System.nanoTime();
+    try {
+      final Response response =
+          target
+              .request(MediaType.APPLICATION_JSON_TYPE)
+              .header(HttpHeaders.AUTHORIZATION, auth)
+              .get();
+      response.close();
+      return new Probe(response.getStatus(), System.nanoTime() - start, null);
+    } catch (RuntimeException e) {
+      final Throwable cause = e.getCause() == null ? e : e.getCause();
+      return new Probe(-1, System.nanoTime() - start, cause.toString());
+    }
+  }
+
+  private void probe() {
+    final Probe probe = send(target, auth);
+    synchronized (this) {
+      latencies[(int) (probes++ % WINDOW)] = probe.isSuccessful() ? probe.getNanos() : -1;
+      last = probe;
+      lastTime = System.currentTimeMillis();
+      failed = probe.isSuccessful() ? 0 : failed + 1;
+      if (available && failed >= failures) {
+        available = false;
+        logger.warnf(
+            "backend of %s is unavailable after %d failed health probes, last: %s",
+            componentId, failed, probe);
+      } else if (!available && probe.isSuccessful()) {
+        available = true;
+        logger.infof("backend of %s is available again, %s", componentId, probe);
+      }
+    }
+  }
+
+  /**
+   * @return false after the configured number of failed probes in a row, until a probe succeeds
+   */
+  public boolean isAvailable() {
+    return available;
+  }
+
+  /** @return the current status with the rolling latency and availability */
+  public synchronized Status getStatus() {
+    final int count = (int) Math.min(probes, WINDOW);
+    int successful = 0;
+    long sum = 0;
+    for (int i = 0; i < count; i++) {
+      if (latencies[i] >= 0) {
+        successful++;
+        sum += latencies[i];
+      }
+    }
+    return new Status(
+        available,
+        count,
+        count == 0 ? 0 : 100.0 * successful / count,
+        last == null || !last.isSuccessful() ? -1 : last.getNanos() / 1e6,
+        successful == 0 ? -1 : sum / 1e6 / successful,
+        lastTime,
+        last == null ? null : last.getError());
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    client.close();
+  }
+
+  /** The result of one probe. */
+  public static class Probe {
+
+    private final int status;
+
+    private final long nanos;
+
+    private final String error;
+
+    Probe(int status, long nanos, String error) {
+      this.status = status;
+      this.nanos = nanos;
+      this.error = error;
+    }
+
+    /** @return status of the answer, -1 without answer */
+    public int getStatus() {
+      return status;
+    }
+
+    /** @return nanoseconds until the answer or the failure */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /** @return the failure without answer, otherwise null */
+    public String getError() {
+      return error;
+    }
+
+    /** @return true, if the backend answered with a status below 500 */
+    public boolean isSuccessful() {
+      return status > 0 && status < 500;
+    }
+
+    @Override
+    public String toString() {
+      return error != null
+          ? String.format("%s after %d ms", error, TimeUnit.NANOSECONDS.toMillis(nanos))
+          : String.format("status %d in %d ms", status, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+  }
+
+  /** The health of the backend, as shown in the admin console. */
+  public static class Status {
+
+    private final boolean available;
+
+    private final int probes;
+
+    private final double availability;
+
+    private final double latencyMillis;
+
+    private final double averageLatencyMillis;
+
+    private final long lastProbe;
+
+    private final String lastError;
+
+    Status(
+        boolean available,
+        int probes,
+        double availability,
+        double latencyMillis,
+        double averageLatencyMillis,
+        long lastProbe,
+        String lastError) {
+      this.available = available;
+      this.probes = probes;
+      this.availability = availability;
+      this.latencyMillis = latencyMillis;
+      this.averageLatencyMillis = averageLatencyMillis;
+      this.lastProbe = lastProbe;
+      this.lastError = lastError;
+    }
+
+    public boolean isAvailable() {
+      return available;
+    }
+
+    /** @return number of probes of the rolling values, at most {@link #WINDOW} */
+    public int getProbes() {
+      return probes;
+    }
+
+    /** @return percentage of the successful probes */
+    public double getAvailability() {
+      return availability;
+    }
+
+    /** @return latency of the last probe, -1 if it failed */
+    public double getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    /** @return average latency of the successful probes, -1 without one */
+    public double getAverageLatencyMillis() {
+      return averageLatencyMillis;
+    }
+
+    /** @return epoch milliseconds of the last probe, 0 before the first */
+    public long getLastProbe() {
+      return lastProbe;
+    }
+
+    /** @return the failure of the last probe without answer, otherwise null */
+    public String getLastError() {
+      return lastError;
+    }
+  }
+}
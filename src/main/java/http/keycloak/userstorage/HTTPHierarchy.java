@@ -0,0 +1,320 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The role and group hierarchy of a component as published by its backend (GET /hierarchy).
+ *
+ * <pre>
+ * {
+ *   "roles": { "admin": ["user", "auditor"] },
+ *   "groups": { "developers": "staff" },
+ *   "groupRoles": { "staff": ["user"] }
+ * }
+ * </pre>
+ *
+ * roles maps a composite role to its direct child roles, groups maps a group to its parent group
+ * and groupRoles contains the roles granted by a group to all of its members and the members of
+ * its sub groups. After loading, the transitive closure of all roles and groups is precomputed as
+ * bitsets of the role dictionary of the component, so effective role checks do not depend on the
+ * depth of the hierarchy.
+ */
+@JsonIgnoreProperties(
+    value = {"dictionary", "empty"},
+    ignoreUnknown = true)
+public class HTTPHierarchy {
+
+  /** A hierarchy without any composite roles or parent groups */
+  public static final HTTPHierarchy EMPTY = new HTTPHierarchy();
+
+  private static final Map<String, HTTPHierarchy> HIERARCHIES = new ConcurrentHashMap<>();
+
+  /** milliseconds until a hierarchy, that could not be loaded, is requested again */
+  static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  /** component id to the lock held while its hierarchy is loaded */
+  private static final Map<String, Object> LOADING = new ConcurrentHashMap<>();
+
+  private static final long[] NONE = new long[0];
+
+  private Map<String, List<String>> roles = new HashMap<>();
+
+  private Map<String, String> groups = new HashMap<>();
+
+  private Map<String, List<String>> groupRoles = new HashMap<>();
+
+  private HTTPRoleDictionary dictionary;
+
+  /** role id to the ids of the role itself and all directly or indirectly included roles */
+  private long[][] roleClosure = new long[0][];
+
+  /** group name to the ids of all roles inherited from the group and its ancestors */
+  private Map<String, long[]> groupClosure = Collections.emptyMap();
+
+  /** group name to its parent group, without the links that close a cycle */
+  private Map<String, String> parents = Collections.emptyMap();
+
+  /** extended, when a reload has failed, so it is volatile */
+  private volatile long expiresAt = Long.MAX_VALUE;
+
+  /**
+   * Returns the cached hierarchy of the component and loads it, if it is missing or expired. The
+   * hierarchy is loaded outside of the cache under a lock of the component, so only one request
+   * per component is sent and lookups of other components are not blocked. If the hierarchy could
+   * not be loaded, the previous one is kept, or an empty one without a previous one, and the load
+   * is retried after {@link #RETRY_MILLIS}.
+   *
+   * @param componentId id of the storage provider component
+   * @param ttlMillis time to live of a loaded hierarchy, 0 disables the hierarchy
+   * @param loader loads the hierarchy from the backend, returns null if it could not be loaded
+   * @return the compiled hierarchy, never null
+   */
+  public static HTTPHierarchy forComponent(
+      String componentId, long ttlMillis, Supplier<HTTPHierarchy> loader) {
+    if (ttlMillis <= 0) return EMPTY;
+    HTTPHierarchy cached = HIERARCHIES.get(componentId);
+    if (cached != null && cached.expiresAt > System.currentTimeMillis()) return cached;
+
+    synchronized (LOADING.computeIfAbsent(componentId, id -> new Object())) {
+      cached = HIERARCHIES.get(componentId);
+      if (cached != null && cached.expiresAt > System.currentTimeMillis()) return cached;
+      HTTPHierarchy loaded = loader.get();
+      if (loaded == null) {
+        loaded = cached;
+        if (loaded == null) {
+          loaded = new HTTPHierarchy();
+          loaded.compile(HTTPRoleDictionary.forComponent(componentId));
+        }
+        loaded.expiresAt = System.currentTimeMillis() + Math.min(ttlMillis, RETRY_MILLIS);
+      } else {
+        loaded.compile(HTTPRoleDictionary.forComponent(componentId));
+        loaded.expiresAt = System.currentTimeMillis() + ttlMillis;
+      }
+      HIERARCHIES.put(componentId, loaded);
+      return loaded;
+    }
+  }
+
+  /**
+   * Drops the hierarchy of a component, e.g. when it is removed or its backend has changed.
+   *
+   * @param componentId id of the storage provider component
+   */
+  public static void remove(String componentId) {
+    HIERARCHIES.remove(componentId);
+    LOADING.remove(componentId);
+  }
+
+  public Map<String, List<String>> getRoles() {
+    return roles;
+  }
+
+  public void setRoles(Map<String, List<String>> roles) {
+    this.roles = roles == null ? new HashMap<>() : roles;
+  }
+
+  public Map<String, String> getGroups() {
+    return groups;
+  }
+
+  public void setGroups(Map<String, String> groups) {
+    this.groups = groups == null ? new HashMap<>() : groups;
+  }
+
+  public Map<String, List<String>> getGroupRoles() {
+    return groupRoles;
+  }
+
+  public void setGroupRoles(Map<String, List<String>> groupRoles) {
+    this.groupRoles = groupRoles == null ? new HashMap<>() : groupRoles;
+  }
+
+  public boolean isEmpty() {
+    return roles.isEmpty() && groups.isEmpty() && groupRoles.isEmpty();
+  }
+
+  /**
+   * Precomputes the transitive closure of all roles and groups. Roles, that include each other
+   * directly or indirectly, form a strongly connected component and all of them get the union of
+   * its closure, independent of the order of the roles. The parent link, that closes a cycle of
+   * groups, is dropped.
+   *
+   * @param dictionary role dictionary of the component
+   */
+  void compile(HTTPRoleDictionary dictionary) {
+    this.dictionary = dictionary;
+
+    RoleSearch search = new RoleSearch();
+    for (String role : roles.keySet()) {
+      if (!search.index.containsKey(role)) closeRole(role, search);
+    }
+    Map<String, long[]> closures = search.done;
+    int size = 0;
+    for (String role : closures.keySet()) {
+      size = Math.max(size, dictionary.idOf(role) + 1);
+    }
+    long[][] byId = new long[size][];
+    for (Map.Entry<String, long[]> closure : closures.entrySet()) {
+      byId[dictionary.idOf(closure.getKey())] = closure.getValue();
+    }
+    this.roleClosure = byId;
+
+    Map<String, long[]> inherited = new HashMap<>();
+    Map<String, String> acyclic = new HashMap<>();
+    for (String group : groups.keySet()) {
+      closeGroup(group, inherited, acyclic, new HashSet<>());
+    }
+    for (String group : groupRoles.keySet()) {
+      closeGroup(group, inherited, acyclic, new HashSet<>());
+    }
+    this.groupClosure = inherited;
+    this.parents = acyclic;
+  }
+
+  /** State of the search for the strongly connected components of the composite roles. */
+  private static final class RoleSearch {
+
+    /** role to the order of its visit */
+    private final Map<String, Integer> index = new HashMap<>();
+
+    /** role to the lowest index reachable from it within its component */
+    private final Map<String, Integer> low = new HashMap<>();
+
+    /** role to its own id and the closures of the completed components it includes */
+    private final Map<String, long[]> partial = new HashMap<>();
+
+    /** roles of the components, that are not completed yet */
+    private final Deque<String> stack = new ArrayDeque<>();
+
+    /** role to its closure, set when its component is completed */
+    private final Map<String, long[]> done = new HashMap<>();
+  }
+
+  /**
+   * Visits a role with Tarjan's algorithm. When the role is the root of its component, all roles of
+   * the component get the union of their partial closures.
+   */
+  private void closeRole(String role, RoleSearch search) {
+    final int index = search.index.size();
+    search.index.put(role, index);
+    search.stack.push(role);
+    int low = index;
+    long[] closure = HTTPRoleDictionary.set(NONE, dictionary.idOf(role));
+    for (String child : roles.getOrDefault(role, Collections.emptyList())) {
+      if (!search.index.containsKey(child)) closeRole(child, search);
+      final long[] completed = search.done.get(child);
+      if (completed != null) {
+        closure = HTTPRoleDictionary.union(closure, completed);
+      } else {
+        // the child is on the stack, so it belongs to the component of this role
+        low = Math.min(low, search.low.getOrDefault(child, search.index.get(child)));
+      }
+    }
+    search.low.put(role, low);
+    search.partial.put(role, closure);
+    if (low != index) return;
+
+    final List<String> component = new ArrayList<>();
+    String member;
+    do {
+      member = search.stack.pop();
+      component.add(member);
+      closure = HTTPRoleDictionary.union(closure, search.partial.get(member));
+    } while (!member.equals(role));
+    for (String other : component) {
+      search.done.put(other, closure);
+    }
+  }
+
+  private long[] closeGroup(
+      String group, Map<String, long[]> done, Map<String, String> acyclic, Set<String> visiting) {
+    long[] closure = done.get(group);
+    if (closure != null) return closure;
+    visiting.add(group);
+
+    closure = expand(dictionary.encode(groupRoles.get(group)));
+    String parent = groups.get(group);
+    // a parent on the current path closes a cycle, its link is cut
+    if (parent != null && !visiting.contains(parent)) {
+      closure = HTTPRoleDictionary.union(closure, closeGroup(parent, done, acyclic, visiting));
+      acyclic.put(group, parent);
+    }
+    visiting.remove(group);
+    done.put(group, closure);
+    return closure;
+  }
+
+  /**
+   * Expands a role bitset by all roles that are included by composite roles.
+   *
+   * @param bits role bitset
+   * @return the effective role bitset
+   */
+  public long[] expand(long[] bits) {
+    long[] result = bits;
+    for (int id = HTTPRoleDictionary.nextSetBit(bits, 0);
+        id >= 0 && id < roleClosure.length;
+        id = HTTPRoleDictionary.nextSetBit(bits, id + 1)) {
+      if (roleClosure[id] != null) result = HTTPRoleDictionary.union(result, roleClosure[id]);
+    }
+    return result;
+  }
+
+  /**
+   * @param group group name
+   * @return the effective role bitset inherited from the group and its ancestors
+   */
+  public long[] inheritedRoles(String group) {
+    return groupClosure.getOrDefault(group, NONE);
+  }
+
+  /**
+   * @param group group name
+   * @return the role bitset of the roles granted by the group itself
+   */
+  public long[] directRoles(String group) {
+    if (dictionary == null) return NONE;
+    return dictionary.encode(groupRoles.get(group));
+  }
+
+  /**
+   * @param role role name
+   * @param other role name
+   * @return true, if role is other or includes other directly or indirectly
+   */
+  public boolean implies(String role, String other) {
+    if (role.equals(other)) return true;
+    if (dictionary == null) return false;
+    int id = dictionary.lookup(role);
+    if (id < 0 || id >= roleClosure.length || roleClosure[id] == null) return false;
+    return HTTPRoleDictionary.contains(roleClosure[id], dictionary.lookup(other));
+  }
+
+  /**
+   * @param role role name
+   * @return the direct child roles of a composite role
+   */
+  public List<String> compositesOf(String role) {
+    return roles.getOrDefault(role, Collections.emptyList());
+  }
+
+  /**
+   * @param group group name
+   * @return the name of the parent group or null, also if the link to it closes a cycle
+   */
+  public String parentOf(String group) {
+    return parents.get(group);
+  }
+}
@@ -0,0 +1,67 @@
+package http.keycloak.userstorage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets. Recording is lock-free, it increments one bucket and the
+ * sum, so it can be used on every request.
+ */
+public class HTTPHistogram {
+
+  /** upper bounds of the buckets in seconds, a last bucket holds all longer durations */
+  static final double[] BOUNDS = {
+    0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+
+  private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+  static {
+    for (int i = 0; i < BOUNDS.length; i++) {
+      BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+  private final LongAdder sumNanos = new LongAdder();
+
+  /** @param nanos the duration to record */
+  public void record(long nanos) {
+    int low = 0;
+    int high = BOUNDS_NANOS.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (nanos <= BOUNDS_NANOS[mid]) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    buckets.incrementAndGet(low);
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * @param bucket index of the bucket, {@link #BOUNDS}.length for the last bucket
+   * @return number of durations recorded in the bucket
+   */
+  public long getBucket(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /** @return number of recorded durations */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      count += buckets.get(i);
+    }
+    return count;
+  }
+
+  /** @return sum of the recorded durations in nanoseconds */
+  public long getSumNanos() {
+    return sumNanos.sum();
+  }
+}
@@ -0,0 +1,171 @@
+package http.keycloak.userstorage;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+
+/**
+ * Latency histograms of the requests to the backend of one component by endpoint and status class.
+ * All histograms are created up front, so recording a request never allocates or locks.
+ *
+ * <p>Instead of logging every request, a summary line per endpoint with requests is logged once
+ * per summary interval by the first request after the interval has passed.
+ */
+public class HTTPMetrics {
+
+  private static final Logger logger = Logger.getLogger(HTTPMetrics.class);
+
+  /** the requests of {@link HTTPConnector} */
+  public enum Endpoint {
+    USER_BY_ID("user_by_id"),
+    USER_BY_NAME("user_by_name"),
+    USER_BY_MAIL("user_by_mail"),
+    USERS("users"),
+    USERS_PAGE("users_page"),
+    USERS_CHANGED("users_changed"),
+    VALIDATE("validate"),
+    AUTHENTICATE("authenticate"),
+    UPDATE("update"),
+    BULK("bulk"),
+    HIERARCHY("hierarchy");
+
+    private final String label;
+
+    Endpoint(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /** status classes, the index of a http status is its first digit minus one */
+  static final String[] STATUS = {"1xx", "2xx", "3xx", "4xx", "5xx", "error", "rejected"};
+
+  /** the request failed without a response, e.g. a timeout */
+  public static final int ERROR = 5;
+
+  /** the request was rejected by its connection pool */
+  public static final int REJECTED = 6;
+
+  private final HTTPHistogram[][] histograms =
+      new HTTPHistogram[Endpoint.values().length][STATUS.length];
+
+  private final String componentId;
+
+  /** nanoseconds between two summaries, 0 if disabled */
+  private final long summaryInterval;
+
+  /** System.nanoTime() of the next summary */
+  private volatile long nextSummary;
+
+  /** counts, errors, sums and buckets of each endpoint at the last summary, guarded by this */
+  private final long[][] lastSummary =
+      new long[Endpoint.values().length][HTTPHistogram.BOUNDS.length + 4];
+
+  /**
+   * @param componentId id of the component, used in the summaries
+   * @param summaryInterval seconds between two summaries in the log, 0 disables them
+   */
+  public HTTPMetrics(String componentId, int summaryInterval) {
+    for (HTTPHistogram[] byStatus : histograms) {
+      for (int i = 0; i < byStatus.length; i++) {
+        byStatus[i] = new HTTPHistogram();
+      }
+    }
+    this.componentId = componentId;
+    this.summaryInterval = TimeUnit.SECONDS.toNanos(Math.max(0, summaryInterval));
+    this.nextSummary = System.nanoTime() + this.summaryInterval;
+  }
+
+  /**
+   * @param status http status
+   * @return index of the status class
+   */
+  public static int statusClass(int status) {
+    return status >= 100 && status < 600 ? status / 100 - 1 : ERROR;
+  }
+
+  /**
+   * Records a request.
+   *
+   * @param endpoint the endpoint
+   * @param statusClass index of the status class, see {@link #statusClass(int)}
+   * @param nanos duration of the request
+   */
+  public void record(Endpoint endpoint, int statusClass, long nanos) {
+    histograms[endpoint.ordinal()][statusClass].record(nanos);
+    if (summaryInterval > 0 && System.nanoTime() - nextSummary >= 0) logSummary();
+  }
+
+  /**
+   * Logs the requests of each endpoint since the last summary: number, errors (5xx, failed and
+   * rejected), average and the upper bound of the 95th percentile bucket.
+   */
+  private synchronized void logSummary() {
+    final long now = System.nanoTime();
+    if (now - nextSummary < 0) return;
+    nextSummary = now + summaryInterval;
+
+    final long[] buckets = new long[HTTPHistogram.BOUNDS.length + 1];
+    for (Endpoint endpoint : Endpoint.values()) {
+      final HTTPHistogram[] byStatus = histograms[endpoint.ordinal()];
+      final long[] last = lastSummary[endpoint.ordinal()];
+      long count = 0;
+      long errors = 0;
+      long sum = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = 0;
+        for (HTTPHistogram histogram : byStatus) {
+          buckets[i] += histogram.getBucket(i);
+        }
+        count += buckets[i];
+      }
+      for (int status = 0; status < byStatus.length; status++) {
+        sum += byStatus[status].getSumNanos();
+        if (status >= 4) errors += byStatus[status].getCount();
+      }
+
+      final long requests = count - last[0];
+      if (requests > 0) {
+        final long threshold = (long) Math.ceil(requests * 0.95);
+        long cumulative = 0;
+        int p95 = 0;
+        while (p95 < buckets.length - 1) {
+          cumulative += buckets[p95] - last[3 + p95];
+          if (cumulative >= threshold) break;
+          p95++;
+        }
+        logger.infof(
+            "requests component=%s endpoint=%s count=%d errors=%d avgMs=%.1f p95Ms=%s",
+            componentId,
+            endpoint.getLabel(),
+            requests,
+            errors - last[1],
+            (sum - last[2]) / (requests * 1e6),
+            p95 < HTTPHistogram.BOUNDS.length
+                ? "<=" + millis(HTTPHistogram.BOUNDS[p95])
+                : ">" + millis(HTTPHistogram.BOUNDS[p95 - 1]));
+      }
+      last[0] = count;
+      last[1] = errors;
+      last[2] = sum;
+      System.arraycopy(buckets, 0, last, 3, buckets.length);
+    }
+  }
+
+  /** @return the bound in milliseconds without trailing zeros */
+  private static String millis(double seconds) {
+    return BigDecimal.valueOf(seconds).movePointRight(3).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * @param endpoint the endpoint
+   * @param statusClass index of the status class
+   * @return the histogram of the requests
+   */
+  public HTTPHistogram getHistogram(Endpoint endpoint, int statusClass) {
+    return histograms[endpoint.ordinal()][statusClass];
+  }
+}
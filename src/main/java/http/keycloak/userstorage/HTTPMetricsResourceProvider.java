@@ -0,0 +1,332 @@
+package http.keycloak.userstorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.storage.UserStorageProvider;
+
+/**
+ * Publishes the metrics of the http storage components of a realm in the Prometheus text format
+ * at /realms/{realm}/http-userstorage/metrics and the backend health of a component as JSON at
+ * /realms/{realm}/http-userstorage/health/{componentId} for the admin console.
+ *
+ * <p>Both need a bearer token of a user or service account, that may view the realm, like the
+ * token of the admin console. As in the admin REST API, the token may be issued by another realm,
+ * e.g. master.
+ */
+public class HTTPMetricsResourceProvider implements RealmResourceProvider {
+
+  /** content type of the Prometheus text format */
+  private static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final KeycloakSession session;
+
+  public HTTPMetricsResourceProvider(KeycloakSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public Object getResource() {
+    return this;
+  }
+
+  @GET
+  @Path("metrics")
+  @Produces(PROMETHEUS_TYPE)
+  public String getMetrics() {
+    final RealmModel realm = session.getContext().getRealm();
+    final HTTPUserStorageProviderFactory factory = getFactory();
+    if (realm == null || factory == null) throw new NotFoundException();
+    requireViewRealm(realm);
+
+    final List<Labeled> components = new ArrayList<>();
+    for (ComponentModel model :
+        realm.getComponents(realm.getId(), UserStorageProvider.class.getName())) {
+      if (!HTTPConstants.PROVIDER_NAME.equals(model.getProviderId())) continue;
+      final String labels =
+          "realm=\"" + escape(realm.getName()) + "\",component=\"" + escape(model.getName()) + "\"";
+      factory
+          .findComponent(model.getId())
+          .ifPresent(component -> components.add(new Labeled(labels, component)));
+    }
+
+    final StringBuilder out = new StringBuilder();
+    writeRequests(out, components);
+    writeCounter(
+        out,
+        "http_userstorage_cache_requests_total",
+        "Lookups of the user cache",
+        components,
+        "result=\"hit\"",
+        component -> component.getUserCache().getHits());
+    writeSamples(
+        out,
+        "http_userstorage_cache_requests_total",
+        components,
+        "result=\"miss\"",
+        component -> component.getUserCache().getMisses());
+    writeGauge(
+        out,
+        "http_userstorage_cache_size",
+        "Number of cached users",
+        components,
+        null,
+        component -> component.getUserCache().size());
+    writeCounter(
+        out,
+        "http_userstorage_password_verifications_total",
+        "Password verifications sent to the backend, shed or throttled",
+        components,
+        "result=\"verified\"",
+        component -> component.getVerificationLane().getVerified());
+    writeSamples(
+        out,
+        "http_userstorage_password_verifications_total",
+        components,
+        "result=\"shed\"",
+        component -> component.getVerificationLane().getShed());
+    writeSamples(
+        out,
+        "http_userstorage_password_verifications_total",
+        components,
+        "result=\"throttled\"",
+        component ->
+            component.getUserThrottle().getThrottled() + component.getIpThrottle().getThrottled());
+    writeGauge(
+        out,
+        "http_userstorage_backend_up",
+        "1, if the backend answers the health probes or they are disabled, otherwise 0",
+        components,
+        null,
+        component ->
+            component.getHealth().map(health -> health.isAvailable() ? 1L : 0L).orElse(1L));
+    writeCounter(
+        out,
+        "http_userstorage_journal_retries_total",
+        "Batches of the write journal sent again after a failure",
+        components,
+        null,
+        component -> component.getWriteJournal().map(HTTPWriteJournal::getRetries).orElse(0L));
+    writeGauge(
+        out,
+        "http_userstorage_journal_pending_bytes",
+        "Bytes of the write journal not yet accepted by the backend",
+        components,
+        null,
+        component ->
+            component.getWriteJournal().map(HTTPWriteJournal::getPendingBytes).orElse(0L));
+    for (String name : new String[] {"active", "waiting"}) {
+      writeHeader(
+          out,
+          "http_userstorage_pool_" + name,
+          "Requests " + name + " in the connection pool",
+          "gauge");
+      for (HTTPClientPools.Priority priority : HTTPClientPools.Priority.values()) {
+        writeSamples(
+            out,
+            "http_userstorage_pool_" + name,
+            components,
+            "pool=\"" + priority.name().toLowerCase(Locale.ROOT) + "\"",
+            component -> {
+              final HTTPClientPool pool = component.getPools().get(priority);
+              return "active".equals(name) ? pool.getActive() : pool.getWaiting();
+            });
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * @param componentId id of a http storage component of the realm
+   * @return the health of its backend, null (204 No Content) if the component was not used since
+   *     the start or has no health probe
+   * @throws NotFoundException if the component is unknown
+   */
+  @GET
+  @Path("health/{componentId}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public HTTPHealth.Status getHealth(@PathParam("componentId") String componentId) {
+    final RealmModel realm = session.getContext().getRealm();
+    final HTTPUserStorageProviderFactory factory = getFactory();
+    if (realm == null || factory == null) throw new NotFoundException();
+    requireViewRealm(realm);
+    final ComponentModel model = realm.getComponent(componentId);
+    if (model == null
+        || !realm.getId().equals(model.getParentId())
+        || !HTTPConstants.PROVIDER_NAME.equals(model.getProviderId())) {
+      throw new NotFoundException();
+    }
+    return factory
+        .findComponent(componentId)
+        .flatMap(HTTPComponent::getHealth)
+        .map(HTTPHealth::getStatus)
+        .orElse(null);
+  }
+
+  /**
+   * Checks the bearer token of the request like the admin REST API: the token is verified by the
+   * realm, that issued it, and its user or service account must be allowed to view the realm.
+   *
+   * @param realm the realm of the endpoint
+   * @throws NotAuthorizedException without a valid token
+   * @throws org.keycloak.services.ForbiddenException if the token does not allow to view the realm
+   */
+  private void requireViewRealm(RealmModel realm) {
+    final KeycloakContext context = session.getContext();
+    final AppAuthManager authManager = new AppAuthManager();
+    final String tokenString =
+        authManager.extractAuthorizationHeaderTokenOrReturnNull(context.getRequestHeaders());
+    if (tokenString == null) throw new NotAuthorizedException("Bearer");
+    final String issuer;
+    try {
+      issuer = new JWSInput(tokenString).readJsonContent(AccessToken.class).getIssuer();
+    } catch (JWSInputException e) {
+      throw new NotAuthorizedException("Bearer");
+    }
+    final RealmModel tokenRealm =
+        issuer == null
+            ? null
+            : session.realms().getRealmByName(issuer.substring(issuer.lastIndexOf('/') + 1));
+    if (tokenRealm == null) throw new NotAuthorizedException("Bearer");
+    final AuthenticationManager.AuthResult auth =
+        authManager.authenticateBearerToken(
+            tokenString,
+            session,
+            tokenRealm,
+            context.getUri(),
+            context.getConnection(),
+            context.getRequestHeaders());
+    if (auth == null) throw new NotAuthorizedException("Bearer");
+    final ClientModel client = tokenRealm.getClientByClientId(auth.getToken().getIssuedFor());
+    if (client == null) throw new NotAuthorizedException("Bearer");
+    AdminPermissions.evaluator(
+            session, realm, new AdminAuth(tokenRealm, auth.getToken(), auth.getUser(), client))
+        .realm()
+        .requireViewRealm();
+  }
+
+  private HTTPUserStorageProviderFactory getFactory() {
+    return (HTTPUserStorageProviderFactory)
+        session
+            .getKeycloakSessionFactory()
+            .getProviderFactory(UserStorageProvider.class, HTTPConstants.PROVIDER_NAME);
+  }
+
+  private static void writeRequests(StringBuilder out, List<Labeled> components) {
+    final String name = "http_userstorage_request_duration_seconds";
+    writeHeader(out, name, "Duration of the requests to the backend", "histogram");
+    for (Labeled labeled : components) {
+      final HTTPMetrics metrics = labeled.component.getMetrics();
+      for (HTTPMetrics.Endpoint endpoint : HTTPMetrics.Endpoint.values()) {
+        for (int status = 0; status < HTTPMetrics.STATUS.length; status++) {
+          final HTTPHistogram histogram = metrics.getHistogram(endpoint, status);
+          final long count = histogram.getCount();
+          if (count == 0) continue;
+
+          final String labels =
+              labeled.labels
+                  + ",endpoint=\""
+                  + endpoint.getLabel()
+                  + "\",status=\""
+                  + HTTPMetrics.STATUS[status]
+                  + "\"";
+          long cumulative = 0;
+          for (int i = 0; i < HTTPHistogram.BOUNDS.length; i++) {
+            cumulative += histogram.getBucket(i);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"");
+            out.append(HTTPHistogram.BOUNDS[i]).append("\"} ").append(cumulative).append('\n');
+          }
+          out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ");
+          out.append(count).append('\n');
+          out.append(name).append("_sum{").append(labels).append("} ");
+          out.append(histogram.getSumNanos() / NANOS_PER_SECOND).append('\n');
+          out.append(name).append("_count{").append(labels).append("} ");
+          out.append(count).append('\n');
+        }
+      }
+    }
+  }
+
+  private static void writeCounter(
+      StringBuilder out,
+      String name,
+      String help,
+      List<Labeled> components,
+      String labels,
+      ToLongFunction<HTTPComponent> value) {
+    writeHeader(out, name, help, "counter");
+    writeSamples(out, name, components, labels, value);
+  }
+
+  private static void writeGauge(
+      StringBuilder out,
+      String name,
+      String help,
+      List<Labeled> components,
+      String labels,
+      ToLongFunction<HTTPComponent> value) {
+    writeHeader(out, name, help, "gauge");
+    writeSamples(out, name, components, labels, value);
+  }
+
+  private static void writeHeader(StringBuilder out, String name, String help, String type) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void writeSamples(
+      StringBuilder out,
+      String name,
+      List<Labeled> components,
+      String labels,
+      ToLongFunction<HTTPComponent> value) {
+    for (Labeled labeled : components) {
+      out.append(name).append('{').append(labeled.labels);
+      if (labels != null) out.append(',').append(labels);
+      out.append("} ").append(value.applyAsLong(labeled.component)).append('\n');
+    }
+  }
+
+  private static String escape(String value) {
+    if (value == null) return "";
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  @Override
+  public void close() {}
+
+  /** a component with the labels of its samples */
+  private static class Labeled {
+    private final String labels;
+    private final HTTPComponent component;
+
+    private Labeled(String labels, HTTPComponent component) {
+      this.labels = labels;
+      this.component = component;
+    }
+  }
+}
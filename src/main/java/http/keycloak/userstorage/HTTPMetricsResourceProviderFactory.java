@@ -0,0 +1,33 @@
+package http.keycloak.userstorage;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/** Factory of the metrics endpoint of the http storage components. */
+public class HTTPMetricsResourceProviderFactory implements RealmResourceProviderFactory {
+
+  /** path of the endpoint below /realms/{realm} */
+  public static final String ID = "http-userstorage";
+
+  @Override
+  public RealmResourceProvider create(KeycloakSession session) {
+    return new HTTPMetricsResourceProvider(session);
+  }
+
+  @Override
+  public void init(Config.Scope config) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return ID;
+  }
+}
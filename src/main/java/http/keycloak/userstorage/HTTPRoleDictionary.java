@@ -0,0 +1,211 @@
+package http.keycloak.userstorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A per component dictionary that maps role names to dense integer ids. The ids are used as bit
+ * positions in the role sets of the users, so a role check is a single bit test and the role set
+ * of a user needs only a few longs instead of lists of strings.
+ *
+ * Ids are never reused or removed. A role that disappears from the backend just keeps its id, the
+ * dictionary is only dropped with its component. It is kept, when the component is replaced after
+ * a config change, because the cached users of the replaced component still use its ids.
+ */
+public class HTTPRoleDictionary {
+
+  private static final Map<String, HTTPRoleDictionary> DICTIONARIES = new ConcurrentHashMap<>();
+
+  private static final long[] EMPTY = new long[0];
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+  /** id to name, grows on demand and is replaced as a whole */
+  private volatile String[] names = new String[64];
+
+  /** number of assigned ids, only changed while holding the lock on this */
+  private int size = 0;
+
+  /**
+   * Returns the dictionary of the given component
+   *
+   * @param componentId id of the storage provider component
+   * @return the dictionary, never null
+   */
+  public static HTTPRoleDictionary forComponent(String componentId) {
+    return DICTIONARIES.computeIfAbsent(componentId, id -> new HTTPRoleDictionary());
+  }
+
+  /**
+   * Drops the dictionary of a removed component.
+   *
+   * @param componentId id of the storage provider component
+   */
+  public static void remove(String componentId) {
+    DICTIONARIES.remove(componentId);
+  }
+
+  /**
+   * Returns the id of the given role name and assigns a new one, if the name is unknown.
+   *
+   * @param name role name
+   * @return the id of the role
+   */
+  public int idOf(String name) {
+    Integer id = ids.get(name);
+    if (id != null) return id;
+    return register(name);
+  }
+
+  private synchronized int register(String name) {
+    Integer id = ids.get(name);
+    if (id != null) return id;
+
+    if (size == names.length) names = Arrays.copyOf(names, size * 2);
+    names[size] = name;
+    ids.put(name, size);
+    return size++;
+  }
+
+  /**
+   * Returns the id of the given role name without assigning one.
+   *
+   * @param name role name
+   * @return the id or -1, if the role is unknown
+   */
+  public int lookup(String name) {
+    if (name == null) return -1;
+    Integer id = ids.get(name);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @param id role id
+   * @return the name of the role
+   */
+  public String nameOf(int id) {
+    return names[id];
+  }
+
+  /**
+   * Encodes a list of role names into a bitset.
+   *
+   * @param roles role names, may be null
+   * @return the bitset, never null
+   */
+  public long[] encode(Collection<String> roles) {
+    if (roles == null || roles.isEmpty()) return EMPTY;
+    long[] bits = EMPTY;
+    for (String role : roles) {
+      bits = set(bits, idOf(role));
+    }
+    return bits;
+  }
+
+  /**
+   * Decodes a bitset into a list of role names.
+   *
+   * @param bits bitset
+   * @return the role names in id order
+   */
+  public List<String> decode(long[] bits) {
+    List<String> roles = new ArrayList<>(cardinality(bits));
+    for (int id = nextSetBit(bits, 0); id >= 0; id = nextSetBit(bits, id + 1)) {
+      roles.add(nameOf(id));
+    }
+    return roles;
+  }
+
+  /**
+   * @param bits bitset
+   * @param id role id, may be -1 for unknown roles
+   * @return true, if the bit is set
+   */
+  public static boolean contains(long[] bits, int id) {
+    if (id < 0) return false;
+    int word = id >>> 6;
+    return word < bits.length && (bits[word] & (1L << id)) != 0;
+  }
+
+  /**
+   * Sets a bit. The given bitset is not modified.
+   *
+   * @param bits bitset
+   * @param id role id
+   * @return a bitset with the bit set
+   */
+  public static long[] set(long[] bits, int id) {
+    if (contains(bits, id)) return bits;
+    int word = id >>> 6;
+    long[] result = Arrays.copyOf(bits, Math.max(bits.length, word + 1));
+    result[word] |= 1L << id;
+    return result;
+  }
+
+  /**
+   * Clears a bit. The given bitset is not modified.
+   *
+   * @param bits bitset
+   * @param id role id, may be -1 for unknown roles
+   * @return a bitset with the bit cleared
+   */
+  public static long[] clear(long[] bits, int id) {
+    if (!contains(bits, id)) return bits;
+    long[] result = bits.clone();
+    result[id >>> 6] &= ~(1L << id);
+    return result;
+  }
+
+  /**
+   * Combines two bitsets. The given bitsets are not modified.
+   *
+   * @param a bitset
+   * @param b bitset
+   * @return a bitset with all bits of a and b
+   */
+  public static long[] union(long[] a, long[] b) {
+    if (b.length > a.length) {
+      long[] tmp = a;
+      a = b;
+      b = tmp;
+    }
+    if (b.length == 0) return a;
+    long[] result = a.clone();
+    for (int i = 0; i < b.length; i++) {
+      result[i] |= b[i];
+    }
+    return result;
+  }
+
+  /**
+   * @param bits bitset
+   * @return the number of set bits
+   */
+  public static int cardinality(long[] bits) {
+    int count = 0;
+    for (long word : bits) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+
+  /**
+   * @param bits bitset
+   * @param from first id to check
+   * @return the next set id or -1
+   */
+  public static int nextSetBit(long[] bits, int from) {
+    int word = from >>> 6;
+    if (word >= bits.length) return -1;
+    long current = bits[word] & (-1L << from);
+    while (true) {
+      if (current != 0) return (word << 6) + Long.numberOfTrailingZeros(current);
+      if (++word == bits.length) return -1;
+      current = bits[word];
+    }
+  }
+}
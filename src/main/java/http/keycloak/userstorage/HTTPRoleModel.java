@@ -16,13 +16,19 @@ import org.keycloak.models.RoleModel;
 public class HTTPRoleModel implements RoleModel {
   private final String name;
   private final RealmModel realm;
+  private final HTTPHierarchy hierarchy;
   private RoleModel parent = null;
   private Set<RoleModel> childs = new LinkedHashSet<>();
   private HashMap<String,List<String>> attributes = new HashMap<>();
 
   public HTTPRoleModel(String name, RealmModel realm) {
+    this(name, realm, HTTPHierarchy.EMPTY);
+  }
+
+  public HTTPRoleModel(String name, RealmModel realm, HTTPHierarchy hierarchy) {
     this.name = name;
     this.realm = realm;
+    this.hierarchy = hierarchy;
   }
 
   @Override
@@ -52,7 +58,7 @@ public class HTTPRoleModel implements RoleModel {
 
   @Override
   public boolean isComposite() {
-    return childs.size()>0;
+    return childs.size()>0 || !hierarchy.compositesOf(name).isEmpty();
   }
 
   @Override
@@ -67,6 +73,11 @@ public class HTTPRoleModel implements RoleModel {
 
   @Override
   public Set<RoleModel> getComposites() {
+    if (childs.isEmpty()) {
+      for (String child : hierarchy.compositesOf(name)) {
+        childs.add(new HTTPRoleModel(child, realm, hierarchy));
+      }
+    }
     return childs;
   }
 
@@ -87,7 +98,20 @@ public class HTTPRoleModel implements RoleModel {
 
   @Override
   public boolean hasRole(RoleModel role) {
-    return childs.contains(role);
+    return childs.contains(role)
+        || (isRealmRole(role, realm) && hierarchy.implies(name, role.getName()));
+  }
+
+  /**
+   * The backend only knows realm roles by their names, so a client role or a role of another realm
+   * with the same name must never match.
+   *
+   * @param role role of Keycloak
+   * @param realm realm of the provider
+   * @return true, if the role is a realm role of the realm
+   */
+  static boolean isRealmRole(RoleModel role, RealmModel realm) {
+    return !role.isClientRole() && realm != null && realm.getId().equals(role.getContainerId());
   }
 
   @Override
@@ -130,6 +154,11 @@ public class HTTPRoleModel implements RoleModel {
     return false;
   }
 
+  @Override
+  public int hashCode() {
+    return getId().hashCode();
+  }
+
   public String toString() {
     return String.format("HTTPRoleModel(name=%s)", name);
   }
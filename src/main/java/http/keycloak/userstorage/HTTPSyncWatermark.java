@@ -0,0 +1,66 @@
+package http.keycloak.userstorage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import org.jboss.logging.Logger;
+
+/**
+ * The watermark of the last changed users sync of a component, stored in the file
+ * {componentId}.watermark next to the write journal. It is kept outside of the realm, because a
+ * changed realm attribute invalidates the realm in the caches of all nodes after every sync.
+ *
+ * The file is replaced atomically, a missing or unreadable file means no watermark, so the next
+ * sync is a full sync.
+ */
+public class HTTPSyncWatermark {
+
+  private static final Logger logger = Logger.getLogger(HTTPSyncWatermark.class);
+
+  private final Path file;
+
+  /**
+   * @param cfg config of the component, the file is stored in its journal directory
+   * @param componentId id of the storage provider component
+   */
+  public HTTPSyncWatermark(HTTPConfig cfg, String componentId) {
+    this.file = Paths.get(cfg.getJournalDirectory()).resolve(componentId + ".watermark");
+  }
+
+  /** @return the stored watermark or null */
+  public String load() {
+    try {
+      if (!Files.exists(file)) return null;
+      final String watermark = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+      return watermark.isEmpty() ? null : watermark;
+    } catch (IOException e) {
+      logger.warnf("reading the sync watermark %s has failed: %s", file, e);
+      return null;
+    }
+  }
+
+  /** @param watermark the watermark of the backend after a successful sync */
+  public void store(String watermark) {
+    try {
+      Files.createDirectories(file.getParent());
+      final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.write(temp, watermark.getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // the next sync starts at the previous watermark and reads the changes again
+      logger.errorf("writing the sync watermark %s has failed: %s", file, e);
+    }
+  }
+
+  /** Removes the watermark, e.g. when the component is removed. */
+  public void remove() {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warnf("removing the sync watermark %s has failed: %s", file, e);
+    }
+  }
+}
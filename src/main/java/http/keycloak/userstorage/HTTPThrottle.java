@@ -0,0 +1,113 @@
+package http.keycloak.userstorage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the attempts per key (e.g. username or client IP) with a token bucket, that holds up to
+ * the configured attempts per minute and is refilled continuously. An attempt is taken with
+ * {@link #tryAcquire} before it is made, so parallel attempts cannot exceed the limit. The caller
+ * decides, which attempts are charged, and gives the others back with {@link #release}, e.g. all
+ * but the failed password verifications.
+ *
+ * The bucket of a key is a single long, the time the bucket will be full again (generic cell rate
+ * algorithm), and is updated with compare and set, so an attempt never locks. A key, whose bucket
+ * is full again, behaves like an unknown key and is dropped. The keys are spread over several maps,
+ * each map is bounded and cleaned up, when it is full.
+ */
+public class HTTPThrottle {
+
+  private static final int STRIPES = 16;
+
+  /** maximum number of keys, further keys evict other keys */
+  private static final int MAX_KEYS = 100_000;
+
+  private static final int MAX_KEYS_PER_STRIPE = MAX_KEYS / STRIPES;
+
+  /** nanoseconds one attempt adds to a bucket */
+  private final long interval;
+
+  /** nanoseconds a bucket may be ahead of now, the burst */
+  private final long tolerance;
+
+  private final Map<String, AtomicLong>[] stripes;
+
+  private final LongAdder throttled = new LongAdder();
+
+  /**
+   * @param attemptsPerMinute allowed attempts per minute and key, 0 disables the throttle
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public HTTPThrottle(int attemptsPerMinute) {
+    if (attemptsPerMinute > 0) {
+      this.interval = TimeUnit.MINUTES.toNanos(1) / attemptsPerMinute;
+      this.tolerance = interval * (attemptsPerMinute - 1);
+    } else {
+      this.interval = 0;
+      this.tolerance = 0;
+    }
+    this.stripes = new Map[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ConcurrentHashMap<>();
+    }
+  }
+
+  public boolean isEnabled() {
+    return interval > 0;
+  }
+
+  /** @return number of attempts rejected by {@link #tryAcquire} */
+  public long getThrottled() {
+    return throttled.sum();
+  }
+
+  /**
+   * Takes one attempt from the bucket of the key and counts a rejection.
+   *
+   * @param key username or client IP, null keys are not throttled
+   * @return true, if the attempt is allowed
+   */
+  public boolean tryAcquire(String key) {
+    if (!isEnabled() || key == null) return true;
+
+    final long now = System.nanoTime();
+    final Map<String, AtomicLong> stripe = stripeOf(key);
+    AtomicLong bucket = stripe.get(key);
+    if (bucket == null) {
+      if (stripe.size() >= MAX_KEYS_PER_STRIPE) {
+        HTTPEviction.evict(stripe, MAX_KEYS_PER_STRIPE, other -> other.get() - now <= 0);
+      }
+      bucket = stripe.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    while (true) {
+      final long full = bucket.get();
+      final long start = full - now > 0 ? full : now;
+      if (start - now > tolerance) {
+        throttled.increment();
+        return false;
+      }
+      if (bucket.compareAndSet(full, start + interval)) return true;
+    }
+  }
+
+  /**
+   * Gives back an attempt taken by {@link #tryAcquire}, that is not charged.
+   *
+   * @param key username or client IP, null keys are not throttled
+   */
+  public void release(String key) {
+    if (!isEnabled() || key == null) return;
+
+    // a bucket dropped in the meantime is full anyway
+    final AtomicLong bucket = stripeOf(key).get(key);
+    if (bucket != null) bucket.addAndGet(-interval);
+  }
+
+  private Map<String, AtomicLong> stripeOf(String key) {
+    return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+  }
+}
@@ -0,0 +1,327 @@
+package http.keycloak.userstorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+
+/**
+ * Opt-in trace of the calls of Keycloak to the providers of a component, to replay the production
+ * load against a stub backend. Every call is one record of a compact binary log:
+ *
+ * <pre>
+ * header: magic "HTRC", version byte, start as epoch milliseconds (long)
+ * record: method, priority and failed flag (byte), hash of the key (long),
+ *         start in microseconds after the previous record (zigzag varint),
+ *         duration in microseconds (varint), result size (varint)
+ * </pre>
+ *
+ * Keys are usernames, ids, emails and search terms with the realm id. They are stored as salted
+ * 64-bit hashes, the salt is random per trace and never written, so the trace contains no user
+ * data, but repeated calls with the same key still have the same hash. The result size is the
+ * number of returned users, 1 for a valid password and the count of a count.
+ *
+ * <p>Each component writes {componentId}-{start}.trace in the trace directory. Recording stops,
+ * when the trace reaches {@link #MAX_SIZE}.
+ */
+public class HTTPTrace implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(HTTPTrace.class);
+
+  private static final int MAGIC = 0x48545243;
+
+  private static final byte VERSION = 1;
+
+  /** recording stops at this size */
+  public static final long MAX_SIZE = 1L << 30;
+
+  /** the buffer is written at the latest after this time */
+  private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private static final int FAILED = 0x80;
+
+  /** the traced methods of the provider */
+  public enum Method {
+    GET_BY_USERNAME,
+    GET_BY_ID,
+    GET_BY_EMAIL,
+    VALIDATE_PASSWORD,
+    COUNT,
+    LIST,
+    SEARCH,
+    SEARCH_BY_PARAMS
+  }
+
+  private static final Method[] METHODS = Method.values();
+
+  private static final HTTPClientPools.Priority[] PRIORITIES = HTTPClientPools.Priority.values();
+
+  private final long salt = new SecureRandom().nextLong();
+
+  private final Path file;
+
+  private final DataOutputStream out;
+
+  /** guarded by this */
+  private long previousStart;
+
+  /** guarded by this */
+  private long lastFlush;
+
+  private volatile boolean recording = true;
+
+  /**
+   * Creates the trace of a component.
+   *
+   * @param componentId id of the storage provider component
+   * @param cfg config of the component
+   * @throws IOException if the trace can't be created
+   */
+  public HTTPTrace(String componentId, HTTPConfig cfg) throws IOException {
+    final Path directory = Paths.get(cfg.getTraceDirectory());
+    Files.createDirectories(directory);
+    final long start = System.currentTimeMillis();
+    this.file = directory.resolve(componentId + "-" + start + ".trace");
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536));
+    this.previousStart = System.nanoTime();
+    this.lastFlush = previousStart;
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(start);
+    logger.infof("recording trace %s", file);
+  }
+
+  /** @return the file of the trace */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * @param key the key
+   * @return the salted hash of the key in this trace
+   */
+  long hash(String key) {
+    long hash = salt;
+    for (int i = 0; i < key.length(); i++) {
+      hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+    }
+    // the finalizer of SplitMix64, so similar keys get unrelated hashes
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return hash ^ (hash >>> 31);
+  }
+
+  /**
+   * Appends a call to the trace.
+   *
+   * @param method the method
+   * @param priority priority of the session
+   * @param key realm and key of the call, e.g. the username
+   * @param startNanos {@link System#nanoTime()} at the start of the call
+   * @param size result size, -1 if the call failed
+   */
+  public void record(
+      Method method, HTTPClientPools.Priority priority, String key, long startNanos, int size) {
+    if (!recording) return;
+    final long now = System.nanoTime();
+    final int flags = method.ordinal() << 2 | priority.ordinal() | (size < 0 ? FAILED : 0);
+    final long keyHash = hash(key);
+    try {
+      synchronized (this) {
+        if (!recording) return;
+        out.writeByte(flags);
+        out.writeLong(keyHash);
+        writeVarLong(zigzag(TimeUnit.NANOSECONDS.toMicros(startNanos - previousStart)));
+        writeVarLong(TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        writeVarLong(Math.max(size, 0));
+        previousStart = startNanos;
+        if (now - lastFlush > FLUSH_INTERVAL) {
+          out.flush();
+          lastFlush = now;
+        }
+        if (out.size() >= MAX_SIZE) {
+          logger.warnf("trace %s reached %d bytes, recording stopped", file, MAX_SIZE);
+          stop();
+        }
+      }
+    } catch (IOException e) {
+      logger.warnf(e, "writing trace %s has failed, recording stopped", file);
+      stop();
+    }
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private synchronized void stop() {
+    recording = false;
+    try {
+      out.close();
+    } catch (IOException e) {
+      logger.warnf(e, "closing trace %s has failed", file);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (recording) {
+      stop();
+      logger.infof("trace %s closed", file);
+    }
+  }
+
+  /** A call read from a trace. */
+  public static class Call {
+
+    private final Method method;
+
+    private final HTTPClientPools.Priority priority;
+
+    private final boolean failed;
+
+    private final long keyHash;
+
+    private final long startMicros;
+
+    private final long durationMicros;
+
+    private final long size;
+
+    Call(
+        Method method,
+        HTTPClientPools.Priority priority,
+        boolean failed,
+        long keyHash,
+        long startMicros,
+        long durationMicros,
+        long size) {
+      this.method = method;
+      this.priority = priority;
+      this.failed = failed;
+      this.keyHash = keyHash;
+      this.startMicros = startMicros;
+      this.durationMicros = durationMicros;
+      this.size = size;
+    }
+
+    public Method getMethod() {
+      return method;
+    }
+
+    /** @return priority of the session of the call */
+    public HTTPClientPools.Priority getPriority() {
+      return priority;
+    }
+
+    /** @return true, if the call has thrown an exception */
+    public boolean isFailed() {
+      return failed;
+    }
+
+    /** @return salted hash of realm and key */
+    public long getKeyHash() {
+      return keyHash;
+    }
+
+    /** @return start of the call in microseconds after the start of the trace */
+    public long getStartMicros() {
+      return startMicros;
+    }
+
+    public long getDurationMicros() {
+      return durationMicros;
+    }
+
+    /** @return number of returned users, 1 for a valid password, the count of a count */
+    public long getSize() {
+      return size;
+    }
+  }
+
+  /** Reads a trace call by call. */
+  public static class Reader implements Closeable {
+
+    private final DataInputStream in;
+
+    private final long startMillis;
+
+    private long startMicros;
+
+    /**
+     * @param in the trace
+     * @throws IOException if the trace can't be read or is no trace
+     */
+    public Reader(InputStream in) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+      if (this.in.readInt() != MAGIC || this.in.readByte() != VERSION) {
+        throw new IOException("not a trace of version " + VERSION);
+      }
+      this.startMillis = this.in.readLong();
+    }
+
+    /** @return start of the trace as epoch milliseconds */
+    public long getStartMillis() {
+      return startMillis;
+    }
+
+    /**
+     * @return the next call, null at the end of the trace
+     * @throws IOException if the trace can't be read
+     */
+    public Call next() throws IOException {
+      final int flags = in.read();
+      if (flags < 0) return null;
+      try {
+        final long keyHash = in.readLong();
+        final long delta = readVarLong();
+        startMicros += (delta >>> 1) ^ -(delta & 1);
+        final long duration = readVarLong();
+        final long size = readVarLong();
+        return new Call(
+            METHODS[(flags & ~FAILED) >>> 2],
+            PRIORITIES[flags & 3],
+            (flags & FAILED) != 0,
+            keyHash,
+            startMicros,
+            duration,
+            size);
+      } catch (EOFException e) {
+        // the tail of a trace, that was not closed
+        return null;
+      }
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        final int b = in.readUnsignedByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -1,41 +1,215 @@
 package http.keycloak.userstorage;
 
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.keycloak.component.ComponentModel;
 import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
 
+/**
+ * Session wide transaction, that collects all users of one storage provider changed in the session
+ * and writes them to the http storage at once. A single change is sent as PATCH, several changes
+ * are sent as bulk update in chunks. With write-behind the changes are appended to the write
+ * journal instead and the commit returns, when the journal is synced to disk. Passwords are never
+ * journaled, they are sent at once and a failure fails the commit.
+ */
 public class HTTPTransaction extends AbstractKeycloakTransaction {
 
     private final HTTPConnector httpConnector;
 
-    private final HTTPUserModelDelegate delegate;
+    private final List<HTTPUserModelDelegate> delegates = new ArrayList<>();
 
-    private boolean isEnlisted = false;
+    private final Set<HTTPUserModelDelegate> known = Collections.newSetFromMap(new IdentityHashMap<>());
 
-    public boolean isEnlisted() {
-        return isEnlisted;
+    private HTTPTransaction(HTTPConnector httpConnector) {
+        this.httpConnector = httpConnector;
     }
 
-    public void setEnlisted(boolean enlisted) {
-        isEnlisted = enlisted;
+    /**
+     * Returns the transaction of the storage provider in the given session and enlists it, if it
+     * is not enlisted yet.
+     *
+     * @param session current session
+     * @param storageProviderModel storage provider component
+     * @param httpConnector connector used for writing
+     * @return the transaction
+     */
+    public static HTTPTransaction forSession(
+        KeycloakSession session, ComponentModel storageProviderModel, HTTPConnector httpConnector) {
+        String key = HTTPTransaction.class.getName() + "." + storageProviderModel.getId();
+        HTTPTransaction transaction = session.getAttribute(key, HTTPTransaction.class);
+        if (transaction == null || !TransactionState.NOT_STARTED.equals(transaction.getState())) {
+            transaction = new HTTPTransaction(httpConnector);
+            session.setAttribute(key, transaction);
+            session.getTransactionManager().enlistAfterCompletion(transaction);
+        }
+        return transaction;
     }
 
-    public HTTPTransaction(HTTPConnector httpConnector, HTTPUserModelDelegate delegate) {
-        this.httpConnector = httpConnector;
-        this.delegate = delegate;
+    /**
+     * Adds a changed or new user to this transaction.
+     *
+     * @param delegate the user
+     */
+    public void add(HTTPUserModelDelegate delegate) {
+        if (known.add(delegate)) {
+            delegates.add(delegate);
+        }
     }
 
     @Override
     protected void commitImpl() {
-        if (delegate.isNotPersistedInHttpStorage()) {
-            httpConnector.createUser(delegate.getRealmId(), delegate.getDelegatedUserModel(), delegate.isAdminTool());
-            delegate.setPersistedInHttpStorage(true);
-        } else {
-            httpConnector.updateUser(delegate.getRealmId(), delegate.getDelegatedUserModel(), delegate.isAdminTool());
+        HTTPEvents.Commit event = HTTPEvents.COMMIT.isEnabled() ? new HTTPEvents.Commit() : null;
+        if (event != null) event.begin();
+        try {
+            write(event);
+        } finally {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) event.commit();
+            }
+        }
+    }
+
+    /**
+     * Writes the changed users.
+     *
+     * @param event the JFR event of the commit or null, if not recording
+     */
+    private void write(HTTPEvents.Commit event) {
+        Map<String, List<HTTPUserModelDelegate>> updatesByRealm = new LinkedHashMap<>();
+        int created = 0;
+        int updated = 0;
+        for (HTTPUserModelDelegate delegate : delegates) {
+            if (delegate.isNotPersistedInHttpStorage()) {
+                httpConnector.createUser(delegate.getRealmId(), delegate.getDelegatedUserModel(), delegate.isAdminTool());
+                delegate.setPersistedInHttpStorage(true);
+                delegate.getChanges().clear();
+                created++;
+            } else if (!delegate.getChanges().isEmpty()) {
+                updatesByRealm.computeIfAbsent(delegate.getRealmId(), id -> new ArrayList<>()).add(delegate);
+                updated++;
+            }
+        }
+
+        Optional<HTTPWriteJournal> writeJournal = httpConnector.getWriteJournal();
+        if (event != null) {
+            event.created = created;
+            event.updated = updated;
+            event.journaled = writeJournal.isPresent();
+        }
+        if (writeJournal.isPresent()) {
+            append(writeJournal.get(), updatesByRealm);
+            return;
+        }
+
+        List<HTTPBulkUpdate.Result> failed = new ArrayList<>();
+        for (Map.Entry<String, List<HTTPUserModelDelegate>> realmUpdates : updatesByRealm.entrySet()) {
+            failed.addAll(update(realmUpdates.getKey(), realmUpdates.getValue()));
+        }
+        if (event != null) event.failed = failed.size();
+        if (!failed.isEmpty()) {
+            throw new ModelException(
+                "Updating users in http storage has failed: "
+                    + failed.stream().map(HTTPBulkUpdate.Result::toString).collect(Collectors.joining(", ")));
+        }
+    }
+
+    private void append(HTTPWriteJournal writeJournal, Map<String, List<HTTPUserModelDelegate>> updatesByRealm) {
+        List<HTTPWriteJournal.Entry> entries = new ArrayList<>();
+        Map<String, List<HTTPBulkUpdate>> passwordsByRealm = new LinkedHashMap<>();
+        for (Map.Entry<String, List<HTTPUserModelDelegate>> realmUpdates : updatesByRealm.entrySet()) {
+            for (HTTPUserModelDelegate delegate : realmUpdates.getValue()) {
+                HTTPUserModel user = delegate.getDelegatedUserModel();
+                ObjectNode patch = httpConnector.toMergePatch(user, delegate.getChanges());
+                JsonNode password = patch.remove(HTTPUserChanges.PASSWORD);
+                if (password != null) {
+                    passwordsByRealm
+                        .computeIfAbsent(realmUpdates.getKey(), id -> new ArrayList<>())
+                        .add(
+                            new HTTPBulkUpdate(
+                                user.getId(),
+                                UUID.randomUUID().toString(),
+                                patch.objectNode().set(HTTPUserChanges.PASSWORD, password)));
+                }
+                if (patch.size() == 0) continue;
+                entries.add(
+                    new HTTPWriteJournal.Entry(
+                        realmUpdates.getKey(),
+                        new HTTPBulkUpdate(user.getId(), UUID.randomUUID().toString(), patch)));
+            }
+        }
+
+        // the passwords are sent first, so a rejected password fails the commit before anything
+        // else of it is journaled
+        List<HTTPBulkUpdate.Result> failed = new ArrayList<>();
+        for (Map.Entry<String, List<HTTPBulkUpdate>> passwords : passwordsByRealm.entrySet()) {
+            List<HTTPBulkUpdate.Result> results = httpConnector.bulkUpdate(passwords.getKey(), passwords.getValue());
+            results.stream().filter(result -> !result.isSuccessful()).forEach(failed::add);
+        }
+        if (!failed.isEmpty()) {
+            throw new ModelException(
+                "Updating passwords in http storage has failed: "
+                    + failed.stream().map(HTTPBulkUpdate.Result::toString).collect(Collectors.joining(", ")));
+        }
+
+        if (!entries.isEmpty()) writeJournal.append(entries);
+        for (Map.Entry<String, List<HTTPUserModelDelegate>> realmUpdates : updatesByRealm.entrySet()) {
+            for (HTTPUserModelDelegate delegate : realmUpdates.getValue()) {
+                httpConnector.invalidate(realmUpdates.getKey(), delegate.getDelegatedUserModel().getId());
+                delegate.getChanges().clear();
+            }
+        }
+    }
+
+    /**
+     * @return the results of all failed updates
+     */
+    private List<HTTPBulkUpdate.Result> update(String realmId, List<HTTPUserModelDelegate> changed) {
+        if (changed.size() == 1) {
+            HTTPUserModelDelegate delegate = changed.get(0);
+            httpConnector.updateUser(
+                realmId, delegate.getDelegatedUserModel(), delegate.getChanges(), UUID.randomUUID().toString());
+            delegate.getChanges().clear();
+            return Collections.emptyList();
+        }
+
+        List<HTTPBulkUpdate> updates = new ArrayList<>(changed.size());
+        for (HTTPUserModelDelegate delegate : changed) {
+            updates.add(
+                new HTTPBulkUpdate(
+                    delegate.getDelegatedUserModel().getId(),
+                    UUID.randomUUID().toString(),
+                    httpConnector.toMergePatch(delegate.getDelegatedUserModel(), delegate.getChanges())));
+        }
+        List<HTTPBulkUpdate.Result> results = httpConnector.bulkUpdate(realmId, updates);
+
+        List<HTTPBulkUpdate.Result> failed = new ArrayList<>();
+        for (int i = 0; i < changed.size(); i++) {
+            HTTPBulkUpdate.Result result = results.get(i);
+            if (result.isSuccessful()) {
+                changed.get(i).getChanges().clear();
+            } else {
+                failed.add(result);
+            }
         }
+        return failed;
     }
 
     @Override
     protected void rollbackImpl() {
     }
 
-}
\ No newline at end of file
+}
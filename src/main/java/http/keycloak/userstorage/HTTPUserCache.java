@@ -0,0 +1,155 @@
+package http.keycloak.userstorage;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A cache of complete users read from the backend. It is shared by all sessions of one storage
+ * provider component and keyed by realm and external user id.
+ *
+ * The users are kept as immutable {@link HTTPCompactUser}, so changes of a user in one session
+ * never leak into the cache. A time to live of 0 disables the cache.
+ */
+public class HTTPUserCache {
+
+  private final long ttl;
+
+  private final int maxEntries;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  /** called with realm and external id, whenever a user is invalidated */
+  private volatile BiConsumer<String, String> invalidationListener = (realmId, externalId) -> {};
+
+  public HTTPUserCache(HTTPConfig cfg) {
+    this.ttl = TimeUnit.SECONDS.toMillis(cfg.getCacheTtl());
+    this.maxEntries = cfg.getCacheSize();
+  }
+
+  private static String key(String realmId, String externalId) {
+    return realmId + "/" + externalId;
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0 && maxEntries > 0;
+  }
+
+  /**
+   * Returns the cached user or loads the user, if it is not cached or expired.
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   * @param loader loads the complete user from the backend
+   * @return the user
+   */
+  public Optional<HTTPCompactUser> get(
+      String realmId, String externalId, Supplier<Optional<HTTPCompactUser>> loader) {
+    if (!isEnabled()) return loader.get();
+
+    Entry entry = entries.get(key(realmId, externalId));
+    if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+      hits.increment();
+      return Optional.of(entry.user);
+    }
+    misses.increment();
+    HTTPEvents.CacheLoad event =
+        HTTPEvents.CACHE_LOAD.isEnabled() ? new HTTPEvents.CacheLoad() : null;
+    if (event != null) event.begin();
+    Optional<HTTPCompactUser> loaded = loader.get();
+    loaded.ifPresent(user -> put(realmId, user));
+    if (event != null) event.end();
+    if (event != null && event.shouldCommit()) {
+      event.realm = realmId;
+      event.userId = externalId;
+      event.found = loaded.isPresent();
+      event.commit();
+    }
+    return loaded;
+  }
+
+  /**
+   * Stores a complete user.
+   *
+   * @param realmId realm within which the user exists
+   * @param user the user
+   */
+  public void put(String realmId, HTTPCompactUser user) {
+    if (!isEnabled() || user.getId() == null) return;
+
+    if (entries.size() >= maxEntries) evict();
+    entries.put(key(realmId, user.getId()), new Entry(user, System.currentTimeMillis() + ttl));
+  }
+
+  /**
+   * Removes a user, e.g. after it was changed.
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   */
+  public void invalidate(String realmId, String externalId) {
+    if (externalId == null) return;
+    entries.remove(key(realmId, externalId));
+    invalidationListener.accept(realmId, externalId);
+  }
+
+  /**
+   * Sets the listener, that is informed about every changed user, also if the cache is disabled.
+   *
+   * @param listener called with realm and external id of the user
+   */
+  public void setInvalidationListener(BiConsumer<String, String> listener) {
+    this.invalidationListener = listener;
+  }
+
+  /** @return number of lookups answered from the cache */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** @return number of lookups, that loaded the user from the backend */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** @return number of cached users */
+  public int size() {
+    return entries.size();
+  }
+
+  private void evict() {
+    HTTPEvents.CacheEvict event =
+        HTTPEvents.CACHE_EVICT.isEnabled() ? new HTTPEvents.CacheEvict() : null;
+    if (event != null) event.begin();
+    int before = entries.size();
+    long now = System.currentTimeMillis();
+    int expired = HTTPEviction.evict(entries, maxEntries, entry -> entry.expiresAt <= now);
+    int removed = before - entries.size() - expired;
+
+    if (event != null) event.end();
+    if (event != null && event.shouldCommit()) {
+      event.expired = expired;
+      event.removed = removed;
+      event.remaining = entries.size();
+      event.commit();
+    }
+  }
+
+  private static class Entry {
+    private final HTTPCompactUser user;
+    private final long expiresAt;
+
+    private Entry(HTTPCompactUser user, long expiresAt) {
+      this.user = user;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records the fields and attributes of a user, that were changed in the current session. The
+ * changes are sent to the backend as JSON Merge Patch (RFC 7396), so only changed values are
+ * transferred.
+ */
+public class HTTPUserChanges {
+
+  public static final String USERNAME = "username";
+  public static final String EMAIL = "email";
+  public static final String FIRST_NAME = "firstName";
+  public static final String LAST_NAME = "lastName";
+  public static final String EMAIL_VERIFIED = "emailVerified";
+  public static final String ENABLED = "enabled";
+  public static final String CREATED_TIMESTAMP = "createdTimestamp";
+  public static final String PASSWORD = "password";
+  public static final String REQUIRED_ACTIONS = "requiredActions";
+
+  private final Set<String> fields = new LinkedHashSet<>();
+
+  private final Set<String> attributes = new LinkedHashSet<>();
+
+  /** @param name JSON name of the changed field */
+  public void field(String name) {
+    fields.add(name);
+  }
+
+  /** @param name name of the changed or removed attribute */
+  public void attribute(String name) {
+    attributes.add(name);
+  }
+
+  public boolean isEmpty() {
+    return fields.isEmpty() && attributes.isEmpty();
+  }
+
+  public void clear() {
+    fields.clear();
+    attributes.clear();
+  }
+
+  /**
+   * Builds the merge patch with the current values of all changed fields and attributes. Removed
+   * attributes are sent as null.
+   *
+   * @param user the changed user
+   * @param mapper mapper used to create the JSON nodes
+   * @return the merge patch
+   */
+  public ObjectNode toMergePatch(HTTPUserModel user, ObjectMapper mapper) {
+    ObjectNode patch = mapper.createObjectNode();
+    for (String field : fields) {
+      patch.set(field, mapper.valueToTree(valueOf(user, field)));
+    }
+    if (!attributes.isEmpty()) {
+      ObjectNode patchedAttributes = patch.putObject("attributes");
+      for (String name : attributes) {
+        List<String> values = user.getAttributes().get(name);
+        patchedAttributes.set(name, mapper.valueToTree(values));
+      }
+    }
+    return patch;
+  }
+
+  private static Object valueOf(HTTPUserModel user, String field) {
+    switch (field) {
+      case USERNAME:
+        return user.getUsername();
+      case EMAIL:
+        return user.getEmail();
+      case FIRST_NAME:
+        return user.getFirstName();
+      case LAST_NAME:
+        return user.getLastName();
+      case EMAIL_VERIFIED:
+        return user.isEmailVerified();
+      case ENABLED:
+        return user.isEnabled();
+      case CREATED_TIMESTAMP:
+        return user.getCreatedTimestamp();
+      case PASSWORD:
+        return user.getPassword();
+      case REQUIRED_ACTIONS:
+        return user.getRequiredActions();
+      default:
+        throw new IllegalArgumentException("unknown field " + field);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("HTTPUserChanges(fields=%s, attributes=%s)", fields, attributes);
+  }
+}
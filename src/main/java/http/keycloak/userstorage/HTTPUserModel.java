@@ -2,8 +2,11 @@ package http.keycloak.userstorage;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import java.beans.ConstructorProperties;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -16,7 +19,8 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 
-@JsonIgnoreProperties(value = {"groups", "realmRoleMappings", "roleMappings", "groupsCount"})
+@JsonIgnoreProperties(
+    value = {"groups", "realmRoleMappings", "roleMappings", "groupsCount", "partial", "etag"})
 public class HTTPUserModel implements UserModel {
   private static final Logger logger = Logger.getLogger(HTTPUserModel.class);
 
@@ -42,15 +46,81 @@ public class HTTPUserModel implements UserModel {
 
   private boolean emailVerified;
 
+  /** groups and roles as sent by the backend, only kept until the roles are indexed */
   private Map<String, List<String>> groupsAndRoles = new HashMap<>();
 
+  /** dictionary of the realm, that maps the role ids of the bitsets to role names */
+  private HTTPRoleDictionary roleDictionary = null;
+
+  /** role bitset per group */
+  private Map<String, long[]> groupRoles = null;
+
+  /** union of the role bitsets of all groups */
+  private long[] roleBits = null;
+
+  /** role and group hierarchy of the realm, used to build the effective roles */
+  private HTTPHierarchy hierarchy = HTTPHierarchy.EMPTY;
+
+  /** roleBits plus all roles inherited from composite roles and parent groups */
+  private long[] effectiveRoleBits = null;
+
   private RealmModel realm = null;
 
+  /** true, if the user was read from a projected list response without attributes and roles */
+  private boolean partial = false;
+
+  /** ETag of the response, the user was read from, null if the backend sent none */
+  private String etag = null;
+
   @ConstructorProperties("id")
   public HTTPUserModel(String id) {
     this.id = id;
   }
 
+  /**
+   * Adds the attributes, roles and required actions of the complete user to this partial user.
+   *
+   * @param complete the same user read as a single user from the backend
+   */
+  public void complete(HTTPUserModel complete) {
+    copyDetailsFrom(complete);
+    partial = false;
+  }
+
+  private void copyDetailsFrom(HTTPUserModel other) {
+    attributes = new HashMap<>();
+    if (other.attributes != null) {
+      other.attributes.forEach((name, values) -> attributes.put(name, new ArrayList<>(values)));
+    }
+    requiredActions = other.requiredActions == null ? null : new HashSet<>(other.requiredActions);
+    groupsAndRoles = other.groupsAndRoles == null ? null : new HashMap<>(other.groupsAndRoles);
+    roleDictionary = other.roleDictionary;
+    groupRoles = other.groupRoles == null ? null : new LinkedHashMap<>(other.groupRoles);
+    roleBits = other.roleBits;
+    effectiveRoleBits = other.effectiveRoleBits;
+    hierarchy = other.hierarchy;
+  }
+
+  void setAttributes(Map<String, List<String>> attributes) {
+    this.attributes = attributes;
+  }
+
+  public boolean isPartial() {
+    return partial;
+  }
+
+  public void setPartial(boolean partial) {
+    this.partial = partial;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public void setEtag(String etag) {
+    this.etag = etag;
+  }
+
   /** {@inheritDoc} */
   @Override
   public String getId() {
@@ -219,9 +289,13 @@ public class HTTPUserModel implements UserModel {
   /** {@inheritDoc} */
   @Override
   public Set<GroupModel> getGroups() {
-    logger.infof("getGroups() with realm %s",realm);
-    return groupsAndRoles.keySet().stream()
-        .map(group -> new HTTPGroupModel(group, groupsAndRoles.get(group), realm))
+    logger.debugf("getGroups() with realm %s", realm.getName());
+    Map<String, long[]> groups = groupRoles();
+    return groups.entrySet().stream()
+        .map(
+            group ->
+                new HTTPGroupModel(
+                    group.getKey(), group.getValue(), roleDictionary, hierarchy, realm))
         .collect(Collectors.toSet());
   }
 
@@ -240,7 +314,7 @@ public class HTTPUserModel implements UserModel {
   /** {@inheritDoc} */
   @Override
   public boolean isMemberOf(GroupModel group) {
-    return getGroups().contains(group);
+    return groupRoles().containsKey(group.getName());
   }
 
   /** {@inheritDoc} */
@@ -284,7 +358,10 @@ public class HTTPUserModel implements UserModel {
   /** {@inheritDoc} */
   @Override
   public boolean hasRole(RoleModel role) {
-    return getRoleMappings().contains(role);
+    if (!HTTPRoleModel.isRealmRole(role, realm)) return false;
+    roleBits();
+    long[] bits = effectiveRoleBits;
+    return HTTPRoleDictionary.contains(bits, roleDictionary.lookup(role.getName()));
   }
 
   /** {@inheritDoc} */
@@ -296,11 +373,10 @@ public class HTTPUserModel implements UserModel {
   /** {@inheritDoc} */
   @Override
   public Set<RoleModel> getRoleMappings() {
-    logger.infof("getRoleMappings() with realm %s",realm);
-    return groupsAndRoles.values().stream()
-        .flatMap(List::stream)
-        .map(role -> new HTTPRoleModel(role, realm))
-        .distinct()
+    logger.debugf("getRoleMappings() with realm %s", realm.getName());
+    long[] bits = roleBits();
+    return roleDictionary.decode(bits).stream()
+        .map(role -> new HTTPRoleModel(role, realm, hierarchy))
         .collect(Collectors.toSet());
   }
 
@@ -312,14 +388,83 @@ public class HTTPUserModel implements UserModel {
 
   public void setRealm(RealmModel realm) {
     this.realm = realm;
+    if (realm != null) indexRoles();
+  }
+
+  /**
+   * Converts the groups and roles sent by the backend into role bitsets. This is done once per
+   * user, directly after the user was read from the backend.
+   *
+   * @param dictionary role dictionary of the component of this user
+   * @param hierarchy role and group hierarchy of the component of this user
+   */
+  public void indexRoles(HTTPRoleDictionary dictionary, HTTPHierarchy hierarchy) {
+    if (roleDictionary != null) return;
+
+    Map<String, long[]> groups = new LinkedHashMap<>();
+    if (groupsAndRoles != null) {
+      for (Map.Entry<String, List<String>> group : groupsAndRoles.entrySet()) {
+        groups.put(group.getKey(), dictionary.encode(group.getValue()));
+      }
+    }
+    setRoles(dictionary, hierarchy, groups);
+  }
+
+  /**
+   * Sets the already encoded roles of this user.
+   *
+   * @param dictionary role dictionary of the component of this user
+   * @param hierarchy role and group hierarchy of the component of this user
+   * @param groups role bitset per group
+   */
+  void setRoles(HTTPRoleDictionary dictionary, HTTPHierarchy hierarchy, Map<String, long[]> groups) {
+    long[] all = new long[0];
+    long[] inherited = new long[0];
+    for (Map.Entry<String, long[]> group : groups.entrySet()) {
+      all = HTTPRoleDictionary.union(all, group.getValue());
+      inherited = HTTPRoleDictionary.union(inherited, hierarchy.inheritedRoles(group.getKey()));
+    }
+    this.groupRoles = groups;
+    this.roleBits = all;
+    this.effectiveRoleBits = HTTPRoleDictionary.union(hierarchy.expand(all), inherited);
+    this.hierarchy = hierarchy;
+    this.roleDictionary = dictionary;
+    this.groupsAndRoles = null;
+  }
+
+  /** Indexes a user, that was not read by a connector, with a dictionary of its own. */
+  private void indexRoles() {
+    if (roleDictionary == null) indexRoles(new HTTPRoleDictionary(), HTTPHierarchy.EMPTY);
+  }
+
+  private Map<String, long[]> groupRoles() {
+    if (roleDictionary == null) indexRoles();
+    return groupRoles;
+  }
+
+  private long[] roleBits() {
+    if (roleDictionary == null) indexRoles();
+    return roleBits;
   }
 
   public Map<String, List<String>> getGroupsAndRoles() {
-    return groupsAndRoles;
+    if (roleDictionary == null) return groupsAndRoles;
+
+    Map<String, List<String>> result = new HashMap<>();
+    for (Map.Entry<String, long[]> group : groupRoles.entrySet()) {
+      result.put(group.getKey(), roleDictionary.decode(group.getValue()));
+    }
+    return result;
   }
 
   public void setGroupsAndRoles(Map<String, List<String>> groupsAndRoles) {
+    HTTPRoleDictionary dictionary = roleDictionary;
     this.groupsAndRoles = groupsAndRoles;
+    this.roleDictionary = null;
+    this.groupRoles = null;
+    this.roleBits = null;
+    this.effectiveRoleBits = null;
+    if (dictionary != null) indexRoles(dictionary, hierarchy);
   }
 
   @Override
@@ -334,7 +479,7 @@ public class HTTPUserModel implements UserModel {
         emailVerified,
         createdTimestamp,
         enabled,
-        groupsAndRoles);
+        getGroupsAndRoles());
   }
 
   public void setRequiredActions(Set<String> requiredActions) {
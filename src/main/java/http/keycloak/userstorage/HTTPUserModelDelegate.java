@@ -4,14 +4,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
-import org.keycloak.models.AbstractKeycloakTransaction.TransactionState;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.RoleUtils;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
@@ -29,8 +28,11 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
   /** User model that keeps the data */
   private final HTTPUserModel httpUserModel;
 
-  /** Http transaction that updates http storage at one moment */
-  private final HTTPTransaction httpTransaction;
+  /** Fields and attributes changed in this session */
+  private final HTTPUserChanges changes = new HTTPUserChanges();
+
+  /** Connector used to load the complete user, if the delegate was built from a list row */
+  private final HTTPConnector httpConnector;
 
   public static HTTPUserModelDelegate createForExistingUser(
       KeycloakSession session,
@@ -60,16 +62,32 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
       HTTPConnector httpConnector) {
     super(session, realm, storageProviderModel);
     this.httpUserModel = httpUserModel;
+    this.httpConnector = httpConnector;
     httpUserModel.setRealm(realm);
-    httpTransaction = new HTTPTransaction(httpConnector, this);
   }
 
-  public void ensureTransactionEnlisted() {
-    if (TransactionState.NOT_STARTED.equals(httpTransaction.getState())
-        && !httpTransaction.isEnlisted()) {
-      session.getTransactionManager().enlistAfterCompletion(httpTransaction);
-      httpTransaction.setEnlisted(true);
+  /**
+   * Loads the attributes and roles of a user that was read from a projected list response. The
+   * complete user is loaded only once per delegate and through the user cache.
+   */
+  private void ensureComplete() {
+    if (!httpUserModel.isPartial()) {
+      return;
     }
+    logger.debugf("ensureComplete(%s)", httpUserModel.getId());
+    HTTPUserModel complete =
+        httpConnector
+            .getUserByExternalId(realm.getId(), httpUserModel.getId())
+            .orElseThrow(
+                () ->
+                    new RuntimeException(
+                        "User is not found by external id = " + httpUserModel.getId()));
+    httpUserModel.complete(complete);
+  }
+
+  /** Adds this user to the session wide http transaction, that updates http storage at one moment */
+  public void ensureTransactionEnlisted() {
+    HTTPTransaction.forSession(session, storageProviderModel, httpConnector).add(this);
   }
 
   public boolean isAdminTool() {
@@ -88,6 +106,21 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
     return httpUserModel;
   }
 
+  public HTTPUserChanges getChanges() {
+    return changes;
+  }
+
+  /**
+   * Sets a new password, that is sent to the http storage with the next commit.
+   *
+   * @param password the new password
+   */
+  public void updatePassword(String password) {
+    httpUserModel.setPassword(password);
+    changes.field(HTTPUserChanges.PASSWORD);
+    ensureTransactionEnlisted();
+  }
+
   public String getRealmId() {
     return realm.getId();
   }
@@ -99,11 +132,12 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setUsername(String username) {
-    logger.infof("setUsername(%s)", username);
+    logger.debugf("setUsername(%s)", username);
     if (Objects.equals(httpUserModel.getUsername(), username)) {
       return;
     }
     httpUserModel.setUsername(username);
+    changes.field(HTTPUserChanges.USERNAME);
     ensureTransactionEnlisted();
   }
 
@@ -114,11 +148,12 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setEmail(String email) {
-    logger.infof("setEmail(%s)", email);
+    logger.debugf("setEmail(%s)", email);
     if (Objects.equals(httpUserModel.getEmail(), email)) {
       return;
     }
     httpUserModel.setEmail(email);
+    changes.field(HTTPUserChanges.EMAIL);
     ensureTransactionEnlisted();
   }
 
@@ -129,11 +164,12 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setFirstName(String firstName) {
-    logger.infof("setFirstName(%s)", firstName);
+    logger.debugf("setFirstName(%s)", firstName);
     if (Objects.equals(httpUserModel.getFirstName(), firstName)) {
       return;
     }
     httpUserModel.setFirstName(firstName);
+    changes.field(HTTPUserChanges.FIRST_NAME);
     ensureTransactionEnlisted();
   }
 
@@ -144,11 +180,12 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setLastName(String lastName) {
-    logger.infof("setLastName(%s)", lastName);
+    logger.debugf("setLastName(%s)", lastName);
     if (Objects.equals(httpUserModel.getLastName(), lastName)) {
       return;
     }
     httpUserModel.setLastName(lastName);
+    changes.field(HTTPUserChanges.LAST_NAME);
     ensureTransactionEnlisted();
   }
 
@@ -159,11 +196,12 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setEmailVerified(boolean verified) {
-    logger.infof("setEmailVerified(%s)", verified);
+    logger.debugf("setEmailVerified(%s)", verified);
     if (httpUserModel.isEmailVerified() == verified) {
       return;
     }
     httpUserModel.setEmailVerified(verified);
+    changes.field(HTTPUserChanges.EMAIL_VERIFIED);
     ensureTransactionEnlisted();
   }
 
@@ -174,11 +212,12 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setEnabled(boolean enabled) {
-    logger.infof("setEnabled(%s)", enabled);
+    logger.debugf("setEnabled(%s)", enabled);
     if (httpUserModel.isEnabled() == enabled) {
       return;
     }
     httpUserModel.setEnabled(enabled);
+    changes.field(HTTPUserChanges.ENABLED);
     ensureTransactionEnlisted();
   }
 
@@ -189,59 +228,120 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public void setCreatedTimestamp(Long timestamp) {
-    logger.infof("setCreatedTimestamp(%s)", timestamp);
+    logger.debugf("setCreatedTimestamp(%s)", timestamp);
     if (Objects.equals(httpUserModel.getCreatedTimestamp(), timestamp)) {
       return;
     }
     httpUserModel.setCreatedTimestamp(timestamp);
+    changes.field(HTTPUserChanges.CREATED_TIMESTAMP);
     ensureTransactionEnlisted();
   }
 
   @Override
   public void setSingleAttribute(String name, String value) {
-    logger.infof("setSingleAttribute(%s, %s)", name, value);
+    logger.debugf("setSingleAttribute(%s, %s)", name, value);
+    ensureComplete();
     if (Objects.equals(httpUserModel.getFirstAttribute(name), value)) {
       return;
     }
     httpUserModel.setSingleAttribute(name, value);
+    changes.attribute(name);
     ensureTransactionEnlisted();
   }
 
   @Override
   public void removeAttribute(String name) {
-    logger.infof("removeAttribute(%s)", name);
+    logger.debugf("removeAttribute(%s)", name);
+    ensureComplete();
     httpUserModel.removeAttribute(name);
+    changes.attribute(name);
     ensureTransactionEnlisted();
   }
 
   @Override
   public void setAttribute(String name, List<String> values) {
-    logger.infof("setAttribute(%s, %s)", name, values);
+    logger.debugf("setAttribute(%s, %s)", name, values);
+    ensureComplete();
     if (httpUserModel.getAttribute(name).equals(values)) {
       return;
     }
     httpUserModel.setAttribute(name, values);
+    changes.attribute(name);
     ensureTransactionEnlisted();
   }
 
   @Override
   public String getFirstAttribute(String name) {
-    logger.infof("getFirstAttribute(%s)", name);
+    logger.debugf("getFirstAttribute(%s)", name);
+    ensureComplete();
     return httpUserModel.getFirstAttribute(name);
   }
 
   @Override
   public Map<String, List<String>> getAttributes() {
-    logger.infof("getAttributes()");
+    logger.debugf("getAttributes()");
+    ensureComplete();
     return httpUserModel.getAttributes();
   }
 
   @Override
   public List<String> getAttribute(String name) {
-    logger.infof("getAttribute(%s)", name);
+    logger.debugf("getAttribute(%s)", name);
+    ensureComplete();
     return httpUserModel.getAttribute(name);
   }
 
+  /**
+   * Required actions are kept in the http storage, if the backend sends them, otherwise in the
+   * federated storage.
+   */
+  @Override
+  public Set<String> getRequiredActions() {
+    ensureComplete();
+    if (httpUserModel.getRequiredActions() == null) {
+      return super.getRequiredActions();
+    }
+    return httpUserModel.getRequiredActions();
+  }
+
+  @Override
+  public void addRequiredAction(String action) {
+    ensureComplete();
+    if (httpUserModel.getRequiredActions() == null) {
+      super.addRequiredAction(action);
+      return;
+    }
+    logger.debugf("addRequiredAction(%s)", action);
+    if (httpUserModel.getRequiredActions().add(action)) {
+      changes.field(HTTPUserChanges.REQUIRED_ACTIONS);
+      ensureTransactionEnlisted();
+    }
+  }
+
+  @Override
+  public void removeRequiredAction(String action) {
+    ensureComplete();
+    if (httpUserModel.getRequiredActions() == null) {
+      super.removeRequiredAction(action);
+      return;
+    }
+    logger.debugf("removeRequiredAction(%s)", action);
+    if (httpUserModel.getRequiredActions().remove(action)) {
+      changes.field(HTTPUserChanges.REQUIRED_ACTIONS);
+      ensureTransactionEnlisted();
+    }
+  }
+
+  @Override
+  public void addRequiredAction(RequiredAction action) {
+    addRequiredAction(action.name());
+  }
+
+  @Override
+  public void removeRequiredAction(RequiredAction action) {
+    removeRequiredAction(action.name());
+  }
+
   @Override
   public String getId() {
     if (storageId == null) {
@@ -252,20 +352,29 @@ public class HTTPUserModelDelegate extends AbstractUserAdapterFederatedStorage {
 
   @Override
   public Set<GroupModel> getGroupsInternal() {
-    logger.info("getGroupsInternal()");
-
-    return httpUserModel.getGroupsAndRoles().keySet().stream()
-        .map(group -> new HTTPGroupModel(group, httpUserModel.getGroupsAndRoles().get(group), realm))
-        .collect(Collectors.toSet());
+    logger.debug("getGroupsInternal()");
+    ensureComplete();
+    return httpUserModel.getGroups();
   }
 
   @Override
   protected Set<RoleModel> getRoleMappingsInternal() {
-    logger.info("getRoleMappingsInternal()");
-    return httpUserModel.getGroupsAndRoles().values().stream()
-        .flatMap(List::stream)
-        .map(role -> new HTTPRoleModel(role, realm))
-        .distinct()
-        .collect(Collectors.toSet());
+    logger.debug("getRoleMappingsInternal()");
+    ensureComplete();
+    return httpUserModel.getRoleMappings();
+  }
+
+  /**
+   * Checks the role bitset of the http storage first and only falls back to the role and group
+   * mappings in the federated storage, if the role is not found there.
+   */
+  @Override
+  public boolean hasRole(RoleModel role) {
+    ensureComplete();
+    if (httpUserModel.hasRole(role)) {
+      return true;
+    }
+    return RoleUtils.hasRole(getFederatedRoleMappings(), role)
+        || RoleUtils.hasRoleFromGroup(getFederatedStorage().getGroups(realm, getId()), role, true);
   }
 }
@@ -1,25 +1,32 @@
 package http.keycloak.userstorage;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 import org.jboss.logging.Logger;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.ImportedUserValidation;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 
@@ -32,7 +39,8 @@ public class HTTPUserStorageProvider
         UserLookupProvider,
         CredentialInputValidator,
         CredentialInputUpdater,
-        UserQueryProvider {
+        UserQueryProvider,
+        ImportedUserValidation {
 
   private static final Logger logger = Logger.getLogger(HTTPUserStorageProvider.class);
 
@@ -44,66 +52,297 @@ public class HTTPUserStorageProvider
 
   private final FreshlyCreatedUsers freshlyCreatedUsers;
 
-  HTTPUserStorageProvider(HTTPConfig cfg, KeycloakSession session, ComponentModel model) {
+  private final HTTPComponent component;
+
+  private final boolean importEnabled;
+
+  private final boolean authenticate;
+
+  /** the trace of the component, null if tracing is disabled */
+  private final HTTPTrace trace;
+
+  private final HTTPClientPools.Priority priority;
+
+  private boolean closed;
+
+  /**
+   * users read in this session by realm and id, username or email. The provider lives as long as
+   * the session, so later lookups of the same user in a request don't call the backend.
+   */
+  private final Map<String, HTTPUserModelDelegate> sessionUsers = new HashMap<>();
+
+  HTTPUserStorageProvider(
+      HTTPConfig cfg, KeycloakSession session, ComponentModel model, HTTPComponent component) {
     this.session = session;
     // for caching users
     this.freshlyCreatedUsers = new FreshlyCreatedUsers(session);
     this.model = model;
-    this.httpConnector = new HTTPConnector(cfg);
+    this.component = component;
+    this.importEnabled = cfg.isImport();
+    this.authenticate = cfg.isAuthenticate();
+    this.trace = component.getTrace().orElse(null);
+    this.priority = HTTPClientPools.priorityOf(session);
+    final HTTPConnector connector = component.getConnector(priority);
+    this.httpConnector =
+        connector.withCorrelationId(correlationId(session, connector.getCorrelationHeader()));
+  }
+
+  /**
+   * Returns the correlation id of the requests of a session: the id of the incoming request, if it
+   * has one, otherwise a new id.
+   */
+  private static String correlationId(KeycloakSession session, String header) {
+    if (session.getContext() != null && session.getContext().getConnection() != null) {
+      final String id = session.getContext().getRequestHeaders().getHeaderString(header);
+      if (id != null && !id.trim().isEmpty()) return id.trim();
+    }
+    return UUID.randomUUID().toString();
+  }
+
+  /**
+   * Runs a call of Keycloak and appends it to the trace of the component, if tracing is enabled.
+   *
+   * @param method the traced method
+   * @param realm realm of the call
+   * @param key key of the call, only its hash is written
+   * @param call the call
+   * @param size result size of the call
+   * @return result of the call
+   */
+  private <T> T traced(
+      HTTPTrace.Method method,
+      RealmModel realm,
+      String key,
+      Supplier<T> call,
+      ToIntFunction<T> size) {
+    if (trace == null) return call.get();
+    final long start = System.nanoTime();
+    int resultSize = -1;
+    try {
+      final T result = call.get();
+      resultSize = size.applyAsInt(result);
+      return result;
+    } finally {
+      trace.record(method, priority, realm.getId() + "/" + key, start, resultSize);
+    }
+  }
+
+  private static int sizeOf(Object user) {
+    return user == null ? 0 : 1;
   }
 
   // UserLookupProvider methods
 
   /** {@inheritDoc} */
   @Override
-  public HTTPUserModelDelegate getUserByUsername(String username, RealmModel realm) {
-    logger.infof("getUserByUsername(s:'%s')", username);
-    Supplier<HTTPUserModelDelegate> remoteCall =
+  public UserModel getUserByUsername(String username, RealmModel realm) {
+    logger.debugf("getUserByUsername(s:'%s')", username);
+    Supplier<UserModel> remoteCall =
         () ->
             httpConnector
                 .getUserByUsername(realm.getId(), username)
-                .map(
-                    user ->
-                        HTTPUserModelDelegate.createForExistingUser(
-                            session, realm, model, user, httpConnector))
+                .map(user -> toUserModel(realm, user))
                 .orElse(null);
-    return freshlyCreatedUsers.getFreshlyCreatedUserByUsername(username).orElseGet(remoteCall);
+    return traced(
+        HTTPTrace.Method.GET_BY_USERNAME,
+        realm,
+        username,
+        () ->
+            freshlyCreatedUsers
+                .getFreshlyCreatedUserByUsername(username)
+                .map(Optional::of)
+                .orElseGet(() -> sessionUser(realm, "username:" + username))
+                .map(UserModel.class::cast)
+                .orElseGet(remoteCall),
+        HTTPUserStorageProvider::sizeOf);
   }
 
   /** {@inheritDoc} */
   @Override
   public HTTPUserModelDelegate getUserById(String id, RealmModel realm) {
-    logger.infof("getUserById(s:'%s')", StorageId.externalId(id));
+    logger.debugf("getUserById(s:'%s')", StorageId.externalId(id));
     Supplier<HTTPUserModelDelegate> remoteCall =
         () ->
             httpConnector
                 .getUserByExternalId(realm.getId(), StorageId.externalId(id))
-                .map(
-                    user ->
-                        HTTPUserModelDelegate.createForExistingUser(
-                            session, realm, model, user, httpConnector))
+                .map(user -> rememberInSession(realm, user))
                 .orElseThrow(
                     () ->
                         new RuntimeException(
                             "User is not found by external id = " + StorageId.externalId(id)));
 
-    return freshlyCreatedUsers.getFreshlyCreatedUserById(id).orElseGet(remoteCall);
+    return traced(
+        HTTPTrace.Method.GET_BY_ID,
+        realm,
+        StorageId.externalId(id),
+        () ->
+            freshlyCreatedUsers
+                .getFreshlyCreatedUserById(id)
+                .map(Optional::of)
+                .orElseGet(() -> sessionUser(realm, "id:" + StorageId.externalId(id)))
+                .orElseGet(remoteCall),
+        HTTPUserStorageProvider::sizeOf);
   }
 
   /** {@inheritDoc} */
   @Override
-  public HTTPUserModelDelegate getUserByEmail(String email, RealmModel realm) {
-    logger.infof("getUserByEmail(s:'%s')", email);
-    Supplier<HTTPUserModelDelegate> remoteCall =
+  public UserModel getUserByEmail(String email, RealmModel realm) {
+    logger.debugf("getUserByEmail(s:'%s')", email);
+    Supplier<UserModel> remoteCall =
         () ->
             httpConnector
                 .getUserByEmail(realm.getId(), email)
-                .map(
-                    user ->
-                        HTTPUserModelDelegate.createForExistingUser(
-                            session, realm, model, user, httpConnector))
+                .map(user -> toUserModel(realm, user))
                 .orElse(null);
-    return freshlyCreatedUsers.getFreshlyCreatedUserByEmail(email).orElseGet(remoteCall);
+    return traced(
+        HTTPTrace.Method.GET_BY_EMAIL,
+        realm,
+        email,
+        () ->
+            freshlyCreatedUsers
+                .getFreshlyCreatedUserByEmail(email)
+                .map(Optional::of)
+                .orElseGet(() -> sessionUser(realm, "email:" + email))
+                .map(UserModel.class::cast)
+                .orElseGet(remoteCall),
+        HTTPUserStorageProvider::sizeOf);
+  }
+
+  /**
+   * Returns the user of the backend as Keycloak user. In import mode the user is imported into the
+   * local store, otherwise it is a delegate to the backend user.
+   *
+   * @param realm realm of the user
+   * @param user user read from the backend
+   * @return the Keycloak user
+   */
+  private UserModel toUserModel(RealmModel realm, HTTPUserModel user) {
+    if (!importEnabled) {
+      return rememberInSession(realm, user);
+    }
+    UserModel local = session.userLocalStorage().getUserByUsername(user.getUsername(), realm);
+    if (local != null) return local;
+    return importUser(realm, user);
+  }
+
+  private Optional<HTTPUserModelDelegate> sessionUser(RealmModel realm, String key) {
+    return Optional.ofNullable(sessionUsers.get(realm.getId() + "/" + key));
+  }
+
+  /**
+   * Creates a delegate for a user read from the backend and keeps it for later lookups in this
+   * session.
+   *
+   * @param realm realm of the user
+   * @param user user read from the backend
+   * @return the delegate
+   */
+  private HTTPUserModelDelegate rememberInSession(RealmModel realm, HTTPUserModel user) {
+    final HTTPUserModelDelegate delegate =
+        HTTPUserModelDelegate.createForExistingUser(session, realm, model, user, httpConnector);
+    final String prefix = realm.getId() + "/";
+    if (user.getId() != null) sessionUsers.put(prefix + "id:" + user.getId(), delegate);
+    if (user.getUsername() != null) {
+      sessionUsers.put(prefix + "username:" + user.getUsername(), delegate);
+    }
+    if (user.getEmail() != null) sessionUsers.put(prefix + "email:" + user.getEmail(), delegate);
+    return delegate;
+  }
+
+  /**
+   * Returns the users of a list or search as Keycloak users. In import mode only the users, that
+   * are not imported yet, are imported and returned, because Keycloak finds the others in the local
+   * store.
+   *
+   * @param realm realm of the users
+   * @param users users read from the backend
+   * @return the Keycloak users
+   */
+  private List<UserModel> toUserModels(RealmModel realm, List<HTTPUserModel> users) {
+    if (!importEnabled) {
+      return users.stream()
+          .map(
+              user ->
+                  HTTPUserModelDelegate.createForExistingUser(
+                      session, realm, model, user, httpConnector))
+          .collect(Collectors.toList());
+    }
+    final List<UserModel> imported = new ArrayList<>();
+    for (HTTPUserModel user : users) {
+      if (session.userLocalStorage().getUserByUsername(user.getUsername(), realm) != null) continue;
+      if (user.isPartial()) {
+        Optional<HTTPUserModel> complete =
+            httpConnector.getUserByExternalId(realm.getId(), user.getId());
+        if (!complete.isPresent()) continue;
+        user = complete.get();
+      }
+      imported.add(importUser(realm, user));
+    }
+    return imported;
+  }
+
+  private UserModel importUser(RealmModel realm, HTTPUserModel user) {
+    logger.debugf("importUser(%s)", user.getUsername());
+    UserModel local = session.userLocalStorage().addUser(realm, user.getUsername());
+    local.setFederationLink(model.getId());
+    HTTPUserSynchronizer.copy(user, local);
+    if (user.getEtag() != null) {
+      local.setSingleAttribute(HTTPConstants.ATTRIBUTE_ETAG, user.getEtag());
+    }
+    component.setValidated(realm.getId(), user.getId());
+    return local;
+  }
+
+  // ImportedUserValidation methods
+
+  /**
+   * Checks, if an imported user has changed in the backend. Within the validation interval the
+   * local user is returned without asking the backend. Otherwise the user is read with the stored
+   * ETag, so an unchanged user costs only a 304 response.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  public UserModel validate(RealmModel realm, UserModel local) {
+    final String externalId = externalId(local);
+    if (component.isValidated(realm.getId(), externalId)) {
+      return local;
+    }
+
+    final HTTPConnector.Revalidation revalidation =
+        httpConnector.revalidateUser(
+            realm.getId(), externalId, local.getFirstAttribute(HTTPConstants.ATTRIBUTE_ETAG));
+    switch (revalidation.getState()) {
+      case UNCHANGED:
+        component.setValidated(realm.getId(), externalId);
+        return local;
+      case CHANGED:
+        HTTPUserSynchronizer.copy(revalidation.getUser(), local);
+        final String etag = revalidation.getEtag();
+        if (etag != null && !etag.equals(local.getFirstAttribute(HTTPConstants.ATTRIBUTE_ETAG))) {
+          local.setSingleAttribute(HTTPConstants.ATTRIBUTE_ETAG, etag);
+        }
+        component.setValidated(realm.getId(), externalId);
+        return local;
+      case DELETED:
+        logger.infof("imported user %s was deleted in the backend", externalId);
+        return null;
+      default:
+        // keep the imported user, if the backend is not available
+        return local;
+    }
+  }
+
+  /**
+   * @param user federated or imported user
+   * @return the id of the user in the backend
+   */
+  private String externalId(UserModel user) {
+    if (!StorageId.isLocalStorage(user)) {
+      return StorageId.externalId(user.getId());
+    }
+    final String id = user.getFirstAttribute(HTTPConstants.ATTRIBUTE_ID);
+    return id != null ? id : user.getUsername();
   }
 
   // UserQueryProvider methods
@@ -111,34 +350,35 @@ public class HTTPUserStorageProvider
   /** {@inheritDoc} */
   @Override
   public int getUsersCount(RealmModel realm) {
-    logger.info("getUsersCount()");
-    return httpConnector
-        .getUsersCount(realm.getId())
-        .orElseThrow(() -> new RuntimeException("No users count could be retrieved"));
+    logger.debug("getUsersCount()");
+    return traced(
+        HTTPTrace.Method.COUNT,
+        realm,
+        "",
+        () ->
+            httpConnector
+                .getUsersCount(realm.getId())
+                .orElseThrow(() -> new RuntimeException("No users count could be retrieved")),
+        Integer::intValue);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> getUsers(RealmModel realm) {
-    logger.info("getUsers()");
-    return httpConnector.getUsers(realm.getId(), 0, Integer.MAX_VALUE).stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    logger.debug("getUsers()");
+    return getUsers(realm, 0, Integer.MAX_VALUE);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> getUsers(RealmModel realm, int offset, int limit) {
-    logger.infof("getUsers(%d,%d)", offset, limit);
-    return httpConnector.getUsers(realm.getId(), offset, limit).stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    logger.debugf("getUsers(%d,%d)", offset, limit);
+    return traced(
+        HTTPTrace.Method.LIST,
+        realm,
+        "",
+        () -> toUserModels(realm, httpConnector.getUsers(realm.getId(), offset, limit)),
+        List::size);
   }
 
   // UserQueryProvider method implementations
@@ -146,26 +386,28 @@ public class HTTPUserStorageProvider
   /** {@inheritDoc} */
   @Override
   public List<UserModel> searchForUser(String search, RealmModel realm) {
-    logger.infof("searchForUser(s:'%s')", search);
+    logger.debugf("searchForUser(s:'%s')", search);
     return searchForUser(search, realm, 0, Integer.MAX_VALUE);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> searchForUser(String search, RealmModel realm, int offset, int limit) {
-    logger.infof("searchForUser(s:'%s',%d,%d)", search, offset, limit);
-    return httpConnector.searchForUser(realm.getId(), search, offset, limit).stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    logger.debugf("searchForUser(s:'%s',%d,%d)", search, offset, limit);
+    return traced(
+        HTTPTrace.Method.SEARCH,
+        realm,
+        search,
+        () ->
+            toUserModels(
+                realm, httpConnector.searchForUser(realm.getId(), search, offset, limit)),
+        List::size);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
-    logger.infof("searchForUser(p:'%s')", params);
+    logger.debugf("searchForUser(p:'%s')", params);
     return searchForUser(params, realm, 0, Integer.MAX_VALUE);
   }
 
@@ -173,56 +415,46 @@ public class HTTPUserStorageProvider
   @Override
   public List<UserModel> searchForUser(
       Map<String, String> params, RealmModel realm, int offset, int limit) {
-    logger.infof("searchForUser(p:'%s',%d,%d)", params, offset, +limit);
-    return httpConnector.searchForUserByParams(realm.getId(), params, offset, limit).stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    logger.debugf("searchForUser(p:'%s',%d,%d)", params, offset, +limit);
+    return searchForUserByParams(realm, params, offset, limit);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> getGroupMembers(
       RealmModel realm, GroupModel group, int offset, int limit) {
-    logger.infof("getGroupMembers(g:'%s',%d,%d)", group, offset, limit);
+    logger.debugf("getGroupMembers(g:'%s',%d,%d)", group, offset, limit);
     final Map<String, String> singleParam = Collections.singletonMap("group", group.getName());
-    return httpConnector.searchForUserByParams(realm.getId(), singleParam, offset, limit).stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    return searchForUserByParams(realm, singleParam, offset, limit);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group) {
-    logger.info("getGroupMembers()");
+    logger.debug("getGroupMembers()");
     final Map<String, String> singleParam = Collections.singletonMap("group", group.getName());
-    return httpConnector.searchForUserByParams(realm.getId(), singleParam, 0, Integer.MAX_VALUE)
-        .stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    return searchForUserByParams(realm, singleParam, 0, Integer.MAX_VALUE);
   }
 
   /** {@inheritDoc} */
   @Override
   public List<UserModel> searchForUserByUserAttribute(
       String attrName, String attrValue, RealmModel realm) {
-    logger.infof("searchForUserByUserAttribute(%s,%s)", attrName, attrValue);
+    logger.debugf("searchForUserByUserAttribute(%s,%s)", attrName, attrValue);
     final Map<String, String> singleParam = Collections.singletonMap(attrName, attrValue);
-    return httpConnector.searchForUserByParams(realm.getId(), singleParam, 0, Integer.MAX_VALUE)
-        .stream()
-        .map(
-            user ->
-                HTTPUserModelDelegate.createForExistingUser(
-                    session, realm, model, user, httpConnector))
-        .collect(Collectors.toList());
+    return searchForUserByParams(realm, singleParam, 0, Integer.MAX_VALUE);
+  }
+
+  private List<UserModel> searchForUserByParams(
+      RealmModel realm, Map<String, String> params, int offset, int limit) {
+    return traced(
+        HTTPTrace.Method.SEARCH_BY_PARAMS,
+        realm,
+        String.valueOf(params),
+        () ->
+            toUserModels(
+                realm, httpConnector.searchForUserByParams(realm.getId(), params, offset, limit)),
+        List::size);
   }
 
   // CredentialInputValidator methods
@@ -234,7 +466,7 @@ public class HTTPUserStorageProvider
       return false;
     }
     return httpConnector
-        .isConfiguredPasswordForExternalId(realm.getId(), StorageId.externalId(user.getId()))
+        .isConfiguredPasswordForExternalId(realm.getId(), externalId(user))
         .orElseThrow(
             () ->
                 new RuntimeException(
@@ -250,10 +482,18 @@ public class HTTPUserStorageProvider
   /** {@inheritDoc} */
   @Override
   public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
-    logger.infof("isValid(username=%s)", user.getUsername());
+    logger.debugf("isValid(username=%s)", user.getUsername());
+    return traced(
+        HTTPTrace.Method.VALIDATE_PASSWORD,
+        realm,
+        user.getUsername(),
+        () -> validatePassword(realm, user, input),
+        valid -> valid ? 1 : 0);
+  }
 
+  private boolean validatePassword(RealmModel realm, UserModel user, CredentialInput input) {
     if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) {
-      logger.info("credentialtype unknown or not correct model");
+      logger.debug("credentialtype unknown or not correct model");
       return false;
     }
     UserCredentialModel cred = (UserCredentialModel) input;
@@ -261,36 +501,107 @@ public class HTTPUserStorageProvider
     Optional<HTTPUserModelDelegate> freshlyCreatedUserById =
         freshlyCreatedUsers.getFreshlyCreatedUserById(user.getId());
     if (freshlyCreatedUserById.isPresent()) {
-      logger.info("user was freshly installed");
+      logger.debug("user was freshly installed");
       throw new RuntimeException();
     }
-    boolean result =
-        httpConnector.verifyPassword(
-            realm.getId(), StorageId.externalId(user.getId()), rawPassword);
-    logger.infof("password valid: %b", result);
-
+    // a remembered verification is not throttled, a mismatch removes it
+    final String externalId = externalId(user);
+    final HTTPVerifierCache verifierCache = component.getVerifierCache();
+    if (verifierCache.verify(realm.getId(), externalId, rawPassword)) {
+      logger.debug("password valid: true (verified locally)");
+      return true;
+    }
+    // an attempt is taken from both buckets before the backend is asked, so parallel attempts
+    // cannot exceed the limit; only failed verifications are charged, others are given back
+    final String userKey = realm.getId() + "/" + user.getUsername();
+    final String clientAddress = clientAddress();
+    final HTTPThrottle userThrottle = component.getUserThrottle();
+    final HTTPThrottle ipThrottle = component.getIpThrottle();
+    if (!userThrottle.tryAcquire(userKey)) {
+      throw throttled(user);
+    }
+    if (!ipThrottle.tryAcquire(clientAddress)) {
+      userThrottle.release(userKey);
+      throw throttled(user);
+    }
+    final boolean result;
+    try {
+      result = verifyPassword(realm, externalId, rawPassword);
+    } catch (RuntimeException e) {
+      userThrottle.release(userKey);
+      ipThrottle.release(clientAddress);
+      throw e;
+    }
+    logger.debugf("password valid: %b", result);
+
+    if (result) {
+      userThrottle.release(userKey);
+      ipThrottle.release(clientAddress);
+      verifierCache.put(realm.getId(), externalId, rawPassword);
+    } else {
+      verifierCache.invalidate(realm.getId(), externalId);
+    }
     return result;
   }
 
+  private static ModelException throttled(UserModel user) {
+    logger.debugf("password verification of %s throttled", user.getUsername());
+    return new ModelException("Too many failed password verifications, please try again later");
+  }
+
+  /** @return true, if the backend accepted the password */
+  private boolean verifyPassword(RealmModel realm, String externalId, String rawPassword) {
+    if (authenticate) {
+      final HTTPConnector.Authentication authentication =
+          component
+              .getVerificationLane()
+              .execute(() -> httpConnector.authenticate(realm.getId(), externalId, rawPassword));
+      if (!importEnabled) {
+        authentication.getUser().ifPresent(authenticated -> rememberInSession(realm, authenticated));
+      }
+      return authentication.isValid();
+    }
+    return component
+        .getVerificationLane()
+        .execute(() -> httpConnector.verifyPassword(realm.getId(), externalId, rawPassword));
+  }
+
+  /**
+   * @return IP address of the client of the current request or null
+   */
+  private String clientAddress() {
+    final ClientConnection connection = session.getContext().getConnection();
+    return connection == null ? null : connection.getRemoteAddr();
+  }
+
   // CredentialInputUpdater methods
 
   /** {@inheritDoc} */
   @Override
   public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
-    logger.infof("updateCredential(%s,%s)", user, input);
+    logger.debugf("updateCredential(%s, %s)", user.getUsername(), input.getType());
     if (!(input instanceof UserCredentialModel)) {
       return false;
     }
     if (!PasswordCredentialModel.TYPE.equals(input.getType())) {
       return false;
     }
+    UserCredentialModel cred = (UserCredentialModel) input;
+    component.getVerifierCache().invalidate(realm.getId(), externalId(user));
+    if (importEnabled && StorageId.isLocalStorage(user)) {
+      // imported users are not written to the backend, only the password
+      HTTPUserModel changed = new HTTPUserModel(externalId(user));
+      changed.setPassword(cred.getChallengeResponse());
+      HTTPUserChanges changes = new HTTPUserChanges();
+      changes.field(HTTPUserChanges.PASSWORD);
+      httpConnector.updateUser(realm.getId(), changed, changes, UUID.randomUUID().toString());
+      return true;
+    }
     if (!(user instanceof HTTPUserModelDelegate)) {
       throw new RuntimeException();
     }
-    UserCredentialModel cred = (UserCredentialModel) input;
     HTTPUserModelDelegate delegate = (HTTPUserModelDelegate) user;
-    delegate.getDelegatedUserModel().setPassword(cred.getChallengeResponse());
-    delegate.ensureTransactionEnlisted();
+    delegate.updatePassword(cred.getChallengeResponse());
     return true;
   }
 
@@ -308,9 +619,12 @@ public class HTTPUserStorageProvider
     return Collections.emptySet();
   }
 
-  /** {@inheritDoc} */
+  /** Releases the component, acquired by the factory for this session. */
   @Override
   public void close() {
-    // noop
+    if (!closed) {
+      closed = true;
+      component.release();
+    }
   }
 }
@@ -1,24 +1,45 @@
 package http.keycloak.userstorage;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
 public class HTTPUserStorageProviderFactory
-    implements UserStorageProviderFactory<HTTPUserStorageProvider> {
+    implements UserStorageProviderFactory<HTTPUserStorageProvider>, ImportSynchronization {
   private static final Logger logger = Logger.getLogger(HTTPUserStorageProviderFactory.class);
 
+  /** a http header name, see RFC 7230 token */
+  private static final Pattern HEADER_NAME = Pattern.compile("[!#$%&'*+.^_`|~0-9A-Za-z-]+");
+
   private List<ProviderConfigProperty> configProperties = null;
 
+  /** shared resources by component id */
+  private final Map<String, HTTPComponent> components = new ConcurrentHashMap<>();
+
   @Override
   public String getId() {
     return HTTPConstants.PROVIDER_NAME;
@@ -38,7 +59,107 @@ public class HTTPUserStorageProviderFactory
           .helpText(HTTPConstants.CONFIG_USERNAME_HELP).label(HTTPConstants.CONFIG_USERNAME_LABEL)
           .type(ProviderConfigProperty.STRING_TYPE).add().property().name(HTTPConstants.CONFIG_PASSWORD)
           .helpText(HTTPConstants.CONFIG_PASSWORD_HELP).label(HTTPConstants.CONFIG_PASSWORD_LABEL)
-          .type(ProviderConfigProperty.PASSWORD).secret(true).add().build();
+          .type(ProviderConfigProperty.PASSWORD).secret(true).add().property()
+          .name(HTTPConstants.CONFIG_HIERARCHY_TTL).helpText(HTTPConstants.CONFIG_HIERARCHY_TTL_HELP)
+          .label(HTTPConstants.CONFIG_HIERARCHY_TTL_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_HIERARCHY_TTL)).add().property()
+          .name(HTTPConstants.CONFIG_CACHE_TTL).helpText(HTTPConstants.CONFIG_CACHE_TTL_HELP)
+          .label(HTTPConstants.CONFIG_CACHE_TTL_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_CACHE_TTL)).add().property()
+          .name(HTTPConstants.CONFIG_CACHE_SIZE).helpText(HTTPConstants.CONFIG_CACHE_SIZE_HELP)
+          .label(HTTPConstants.CONFIG_CACHE_SIZE_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_CACHE_SIZE)).add().property()
+          .name(HTTPConstants.CONFIG_PROJECTION).helpText(HTTPConstants.CONFIG_PROJECTION_HELP)
+          .label(HTTPConstants.CONFIG_PROJECTION_LABEL).type(ProviderConfigProperty.BOOLEAN_TYPE)
+          .defaultValue("false").add().property()
+          .name(HTTPConstants.CONFIG_WRITE_BATCH_SIZE).helpText(HTTPConstants.CONFIG_WRITE_BATCH_SIZE_HELP)
+          .label(HTTPConstants.CONFIG_WRITE_BATCH_SIZE_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_WRITE_BATCH_SIZE)).add().property()
+          .name(HTTPConstants.CONFIG_WRITE_PARALLELISM).helpText(HTTPConstants.CONFIG_WRITE_PARALLELISM_HELP)
+          .label(HTTPConstants.CONFIG_WRITE_PARALLELISM_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_WRITE_PARALLELISM)).add().property()
+          .name(HTTPConstants.CONFIG_SYNC_BATCH_SIZE).helpText(HTTPConstants.CONFIG_SYNC_BATCH_SIZE_HELP)
+          .label(HTTPConstants.CONFIG_SYNC_BATCH_SIZE_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_SYNC_BATCH_SIZE)).add().property()
+          .name(HTTPConstants.CONFIG_SYNC_PARALLELISM).helpText(HTTPConstants.CONFIG_SYNC_PARALLELISM_HELP)
+          .label(HTTPConstants.CONFIG_SYNC_PARALLELISM_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_SYNC_PARALLELISM)).add().property()
+          .name(HTTPConstants.CONFIG_VERIFY_CONCURRENCY).helpText(HTTPConstants.CONFIG_VERIFY_CONCURRENCY_HELP)
+          .label(HTTPConstants.CONFIG_VERIFY_CONCURRENCY_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_VERIFY_CONCURRENCY)).add().property()
+          .name(HTTPConstants.CONFIG_VERIFY_QUEUE_SIZE).helpText(HTTPConstants.CONFIG_VERIFY_QUEUE_SIZE_HELP)
+          .label(HTTPConstants.CONFIG_VERIFY_QUEUE_SIZE_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_VERIFY_QUEUE_SIZE)).add().property()
+          .name(HTTPConstants.CONFIG_VERIFY_QUEUE_TIMEOUT).helpText(HTTPConstants.CONFIG_VERIFY_QUEUE_TIMEOUT_HELP)
+          .label(HTTPConstants.CONFIG_VERIFY_QUEUE_TIMEOUT_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_VERIFY_QUEUE_TIMEOUT)).add().property()
+          .name(HTTPConstants.CONFIG_LOGIN_CONCURRENCY).helpText(HTTPConstants.CONFIG_LOGIN_CONCURRENCY_HELP)
+          .label(HTTPConstants.CONFIG_LOGIN_CONCURRENCY_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_LOGIN_CONCURRENCY)).add().property()
+          .name(HTTPConstants.CONFIG_LOGIN_TIMEOUT).helpText(HTTPConstants.CONFIG_LOGIN_TIMEOUT_HELP)
+          .label(HTTPConstants.CONFIG_LOGIN_TIMEOUT_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_LOGIN_TIMEOUT)).add().property()
+          .name(HTTPConstants.CONFIG_ADMIN_CONCURRENCY).helpText(HTTPConstants.CONFIG_ADMIN_CONCURRENCY_HELP)
+          .label(HTTPConstants.CONFIG_ADMIN_CONCURRENCY_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_ADMIN_CONCURRENCY)).add().property()
+          .name(HTTPConstants.CONFIG_ADMIN_TIMEOUT).helpText(HTTPConstants.CONFIG_ADMIN_TIMEOUT_HELP)
+          .label(HTTPConstants.CONFIG_ADMIN_TIMEOUT_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_ADMIN_TIMEOUT)).add().property()
+          .name(HTTPConstants.CONFIG_BACKGROUND_CONCURRENCY).helpText(HTTPConstants.CONFIG_BACKGROUND_CONCURRENCY_HELP)
+          .label(HTTPConstants.CONFIG_BACKGROUND_CONCURRENCY_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_BACKGROUND_CONCURRENCY)).add().property()
+          .name(HTTPConstants.CONFIG_BACKGROUND_TIMEOUT).helpText(HTTPConstants.CONFIG_BACKGROUND_TIMEOUT_HELP)
+          .label(HTTPConstants.CONFIG_BACKGROUND_TIMEOUT_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_BACKGROUND_TIMEOUT)).add().property()
+          .name(HTTPConstants.CONFIG_CORRELATION_HEADER).helpText(HTTPConstants.CONFIG_CORRELATION_HEADER_HELP)
+          .label(HTTPConstants.CONFIG_CORRELATION_HEADER_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(HTTPConstants.DEFAULT_CORRELATION_HEADER).add().property()
+          .name(HTTPConstants.CONFIG_SLOW_CALL_THRESHOLD).helpText(HTTPConstants.CONFIG_SLOW_CALL_THRESHOLD_HELP)
+          .label(HTTPConstants.CONFIG_SLOW_CALL_THRESHOLD_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_SLOW_CALL_THRESHOLD)).add().property()
+          .name(HTTPConstants.CONFIG_LOG_SUMMARY_INTERVAL).helpText(HTTPConstants.CONFIG_LOG_SUMMARY_INTERVAL_HELP)
+          .label(HTTPConstants.CONFIG_LOG_SUMMARY_INTERVAL_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_LOG_SUMMARY_INTERVAL)).add().property()
+          .name(HTTPConstants.CONFIG_TRACE).helpText(HTTPConstants.CONFIG_TRACE_HELP)
+          .label(HTTPConstants.CONFIG_TRACE_LABEL).type(ProviderConfigProperty.BOOLEAN_TYPE)
+          .defaultValue("false").add().property()
+          .name(HTTPConstants.CONFIG_TRACE_DIRECTORY).helpText(HTTPConstants.CONFIG_TRACE_DIRECTORY_HELP)
+          .label(HTTPConstants.CONFIG_TRACE_DIRECTORY_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(HTTPConstants.DEFAULT_TRACE_DIRECTORY).add().property()
+          .name(HTTPConstants.CONFIG_HEALTH_INTERVAL).helpText(HTTPConstants.CONFIG_HEALTH_INTERVAL_HELP)
+          .label(HTTPConstants.CONFIG_HEALTH_INTERVAL_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_HEALTH_INTERVAL)).add().property()
+          .name(HTTPConstants.CONFIG_HEALTH_FAILURES).helpText(HTTPConstants.CONFIG_HEALTH_FAILURES_HELP)
+          .label(HTTPConstants.CONFIG_HEALTH_FAILURES_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_HEALTH_FAILURES)).add().property()
+          .name(HTTPConstants.CONFIG_AUTHENTICATE).helpText(HTTPConstants.CONFIG_AUTHENTICATE_HELP)
+          .label(HTTPConstants.CONFIG_AUTHENTICATE_LABEL).type(ProviderConfigProperty.BOOLEAN_TYPE)
+          .defaultValue("false").add().property()
+          .name(HTTPConstants.CONFIG_THROTTLE_USER).helpText(HTTPConstants.CONFIG_THROTTLE_USER_HELP)
+          .label(HTTPConstants.CONFIG_THROTTLE_USER_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_THROTTLE_USER)).add().property()
+          .name(HTTPConstants.CONFIG_THROTTLE_IP).helpText(HTTPConstants.CONFIG_THROTTLE_IP_HELP)
+          .label(HTTPConstants.CONFIG_THROTTLE_IP_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_THROTTLE_IP)).add().property()
+          .name(HTTPConstants.CONFIG_VERIFIER_CACHE_TTL).helpText(HTTPConstants.CONFIG_VERIFIER_CACHE_TTL_HELP)
+          .label(HTTPConstants.CONFIG_VERIFIER_CACHE_TTL_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_VERIFIER_CACHE_TTL)).add().property()
+          .name(HTTPConstants.CONFIG_VERIFIER_CACHE_COST).helpText(HTTPConstants.CONFIG_VERIFIER_CACHE_COST_HELP)
+          .label(HTTPConstants.CONFIG_VERIFIER_CACHE_COST_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_VERIFIER_CACHE_COST)).add().property()
+          .name(HTTPConstants.CONFIG_IMPORT).helpText(HTTPConstants.CONFIG_IMPORT_HELP)
+          .label(HTTPConstants.CONFIG_IMPORT_LABEL).type(ProviderConfigProperty.BOOLEAN_TYPE)
+          .defaultValue("false").add().property()
+          .name(HTTPConstants.CONFIG_IMPORT_VALIDATION_INTERVAL)
+          .helpText(HTTPConstants.CONFIG_IMPORT_VALIDATION_INTERVAL_HELP)
+          .label(HTTPConstants.CONFIG_IMPORT_VALIDATION_INTERVAL_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(String.valueOf(HTTPConstants.DEFAULT_IMPORT_VALIDATION_INTERVAL)).add().property()
+          .name(HTTPConstants.CONFIG_WRITE_BEHIND).helpText(HTTPConstants.CONFIG_WRITE_BEHIND_HELP)
+          .label(HTTPConstants.CONFIG_WRITE_BEHIND_LABEL).type(ProviderConfigProperty.BOOLEAN_TYPE)
+          .defaultValue("false").add().property()
+          .name(HTTPConstants.CONFIG_JOURNAL_DIRECTORY).helpText(HTTPConstants.CONFIG_JOURNAL_DIRECTORY_HELP)
+          .label(HTTPConstants.CONFIG_JOURNAL_DIRECTORY_LABEL).type(ProviderConfigProperty.STRING_TYPE)
+          .defaultValue(HTTPConstants.DEFAULT_JOURNAL_DIRECTORY).add().build();
     }
     return configProperties;
   }
@@ -62,11 +183,212 @@ public class HTTPUserStorageProviderFactory
     if (cfg.getPassword() == null || cfg.getPassword().trim().length() == 0) {
       throw new ComponentValidationException("HTTPErrorPasswordNotSet");
     }
+    if (cfg.getHierarchyTtl() < 0) {
+      throw new ComponentValidationException("HTTPErrorHierarchyTTLNotCorrect");
+    }
+    if (cfg.getCacheTtl() < 0 || cfg.getCacheSize() < 0) {
+      throw new ComponentValidationException("HTTPErrorCacheNotCorrect");
+    }
+    if (cfg.getWriteBatchSize() < 1 || cfg.getWriteParallelism() < 1) {
+      throw new ComponentValidationException("HTTPErrorWriteNotCorrect");
+    }
+    if (cfg.getBatchSizeForSync() < 1 || cfg.getSyncParallelism() < 1) {
+      throw new ComponentValidationException("HTTPErrorSyncNotCorrect");
+    }
+    if (cfg.getVerifyConcurrency() < 1
+        || cfg.getVerifyQueueSize() < 0
+        || cfg.getVerifyQueueTimeout() < 0) {
+      throw new ComponentValidationException("HTTPErrorVerifyNotCorrect");
+    }
+    if (cfg.getLoginConcurrency() < 1
+        || cfg.getLoginTimeout() < 1
+        || cfg.getAdminConcurrency() < 1
+        || cfg.getAdminTimeout() < 1
+        || cfg.getBackgroundConcurrency() < 1
+        || cfg.getBackgroundTimeout() < 1) {
+      throw new ComponentValidationException("HTTPErrorPoolNotCorrect");
+    }
+    if (cfg.getSlowCallThreshold() < 0
+        || !HEADER_NAME.matcher(cfg.getCorrelationHeader()).matches()) {
+      throw new ComponentValidationException("HTTPErrorCorrelationNotCorrect");
+    }
+    if (cfg.getLogSummaryInterval() < 0) {
+      throw new ComponentValidationException("HTTPErrorLogSummaryIntervalNotCorrect");
+    }
+    if (cfg.getThrottleUser() < 0 || cfg.getThrottleIp() < 0) {
+      throw new ComponentValidationException("HTTPErrorThrottleNotCorrect");
+    }
+    if (cfg.getVerifierCacheTtl() < 0
+        || cfg.getVerifierCacheCost() < HTTPVerifierCache.MIN_COST
+        || cfg.getVerifierCacheCost() > HTTPVerifierCache.MAX_COST) {
+      throw new ComponentValidationException("HTTPErrorVerifierCacheNotCorrect");
+    }
+    if (cfg.getImportValidationInterval() < 0) {
+      throw new ComponentValidationException("HTTPErrorImportValidationIntervalNotCorrect");
+    }
+    if (cfg.isWriteBehind()) {
+      checkWritable(cfg.getJournalDirectory(), "HTTPErrorJournalDirectoryNotWritable");
+    }
+    if (cfg.isTrace()) {
+      checkWritable(cfg.getTraceDirectory(), "HTTPErrorTraceDirectoryNotWritable");
+    }
+    if (cfg.getHealthInterval() < 0 || cfg.getHealthFailures() < 1) {
+      throw new ComponentValidationException("HTTPErrorHealthNotCorrect");
+    }
+    if (cfg.getHealthInterval() > 0 && isBackendChanged(realm, model, cfg)) {
+      checkBackend(cfg);
+    }
+  }
+
+  /**
+   * @return true for a new component or a changed URL, username or password, but not e.g. for the
+   *     updates of Keycloak storing the time of the last sync
+   */
+  private static boolean isBackendChanged(RealmModel realm, ComponentModel model, HTTPConfig cfg) {
+    ComponentModel stored = model.getId() == null ? null : realm.getComponent(model.getId());
+    if (stored == null) return true;
+    HTTPConfig previous = new HTTPConfig(stored.getConfig());
+    return !Objects.equals(cfg.getUrl(), previous.getUrl())
+        || !Objects.equals(cfg.getUsername(), previous.getUsername())
+        || !Objects.equals(cfg.getPassword(), previous.getPassword());
+  }
+
+  /**
+   * Sends a health probe to the backend, so wrong credentials are found when the provider is saved.
+   * An unreachable, slow or failing backend may be a passing outage and is only logged, the health
+   * probes of the component show it in the admin console.
+   */
+  private static void checkBackend(HTTPConfig cfg) {
+    HTTPHealth.Probe probe = HTTPHealth.probeOnce(cfg);
+    if (probe.getStatus() == 401 || probe.getStatus() == 403) {
+      throw new ComponentValidationException(
+          "HTTPErrorBackendUnauthorized", String.valueOf(probe.getStatus()));
+    }
+    if (probe.isSuccessful()) {
+      logger.infof("health probe of %s: %s", cfg.getUrl(), probe);
+    } else {
+      logger.warnf("health probe of %s has failed, saved anyway: %s", cfg.getUrl(), probe);
+    }
+  }
+
+  private static void checkWritable(String directory, String error) {
+    try {
+      Path path = Paths.get(directory);
+      Files.createDirectories(path);
+      if (!Files.isWritable(path)) {
+        throw new ComponentValidationException(error);
+      }
+    } catch (IOException | InvalidPathException e) {
+      throw new ComponentValidationException(error);
+    }
   }
 
+  /**
+   * Creates the provider of a session, it acquires the component and releases it, when the session
+   * closes it.
+   */
   @Override
   public HTTPUserStorageProvider create(KeycloakSession session, ComponentModel model) {
     HTTPConfig cfg = new HTTPConfig(model.getConfig());
-    return new HTTPUserStorageProvider(cfg, session, model);
+    return new HTTPUserStorageProvider(cfg, session, model, acquireComponent(model.getId(), cfg));
+  }
+
+  /**
+   * @param componentId id of the component
+   * @return the shared resources of the component, if it was used since the start or last change
+   */
+  Optional<HTTPComponent> findComponent(String componentId) {
+    return Optional.ofNullable(components.get(componentId));
+  }
+
+  /**
+   * Acquires the shared resources of a component, they must be released after use. They are
+   * replaced, when the config of the provider changed, the replaced component is retired and
+   * closed by its last user.
+   *
+   * @param componentId id of the storage provider component
+   * @param cfg current config of the component
+   * @return the acquired component
+   */
+  private HTTPComponent acquireComponent(String componentId, HTTPConfig cfg) {
+    while (true) {
+      HTTPComponent component = components.get(componentId);
+      if (component == null || !component.getConfig().equals(cfg)) {
+        synchronized (components) {
+          component = components.get(componentId);
+          if (component == null || !component.getConfig().equals(cfg)) {
+            final HTTPComponent previous = component;
+            component = new HTTPComponent(componentId, cfg, previous);
+            components.put(componentId, component);
+            if (previous != null) {
+              previous.retire();
+              // the config may point to another backend, the role dictionary is kept, as the
+              // users cached by the previous component still use its ids
+              HTTPHierarchy.remove(componentId);
+            }
+          }
+        }
+      }
+      // a component retired in the meantime is no longer in the map
+      if (component.acquire()) return component;
+    }
+  }
+
+  @Override
+  public SynchronizationResult sync(
+      KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+    HTTPConfig cfg = new HTTPConfig(model.getConfig());
+    HTTPComponent component = acquireComponent(model.getId(), cfg);
+    try {
+      HTTPConnector httpConnector = component.getConnector(HTTPClientPools.Priority.BACKGROUND);
+      return new HTTPUserSynchronizer(sessionFactory, realmId, model, cfg, httpConnector).sync();
+    } finally {
+      component.release();
+    }
+  }
+
+  @Override
+  public SynchronizationResult syncSince(
+      Date lastSync,
+      KeycloakSessionFactory sessionFactory,
+      String realmId,
+      UserStorageProviderModel model) {
+    HTTPConfig cfg = new HTTPConfig(model.getConfig());
+    HTTPComponent component = acquireComponent(model.getId(), cfg);
+    try {
+      HTTPConnector httpConnector = component.getConnector(HTTPClientPools.Priority.BACKGROUND);
+      return new HTTPUserSynchronizer(sessionFactory, realmId, model, cfg, httpConnector)
+          .syncSince(lastSync);
+    } finally {
+      component.release();
+    }
+  }
+
+  /**
+   * Nothing to do: Keycloak also updates the component after every sync to store lastSync, and a
+   * changed config of the provider replaces the component at its next use.
+   */
+  @Override
+  public void onUpdate(
+      KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {}
+
+  @Override
+  public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+    HTTPComponent component = components.remove(model.getId());
+    if (component != null) component.retire();
+    HTTPHierarchy.remove(model.getId());
+    HTTPRoleDictionary.remove(model.getId());
+    new HTTPSyncWatermark(new HTTPConfig(model.getConfig()), model.getId()).remove();
+  }
+
+  @Override
+  public void close() {
+    // shutdown, the components are closed also if sessions still hold them
+    for (String componentId : components.keySet()) {
+      HTTPComponent component = components.remove(componentId);
+      if (component != null) component.close();
+      HTTPHierarchy.remove(componentId);
+      HTTPRoleDictionary.remove(componentId);
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,399 @@
+package http.keycloak.userstorage;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Imports the users of the backend into the local Keycloak store.
+ *
+ * The users are read in pages of the configured sync batch size, several pages are fetched in
+ * parallel while the previous page is imported. Every page is imported in its own transaction, so
+ * a sync of many users never holds one large transaction.
+ *
+ * The changed users sync only reads the users changed or deleted since the watermark of the last
+ * sync. The watermark is stored per component in a {@link HTTPSyncWatermark} file. A full sync
+ * reads the current watermark of the backend before the first page, so the next changed users
+ * sync also finds the users changed during the full sync.
+ *
+ * A page, that cannot be read, stops the sync after the pages already requested and counts a
+ * batch of failed users, as its users are unknown. The sync returns the counts so far and keeps
+ * the previous watermark, so the next sync reads the missed users again.
+ */
+public class HTTPUserSynchronizer {
+
+  private static final Logger logger = Logger.getLogger(HTTPUserSynchronizer.class);
+
+  /** interval of the progress log messages */
+  private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+  private final KeycloakSessionFactory sessionFactory;
+
+  private final String realmId;
+
+  private final UserStorageProviderModel model;
+
+  private final HTTPConnector httpConnector;
+
+  private final int batchSize;
+
+  private final int parallelism;
+
+  private final HTTPSyncWatermark syncWatermark;
+
+  public HTTPUserSynchronizer(
+      KeycloakSessionFactory sessionFactory,
+      String realmId,
+      UserStorageProviderModel model,
+      HTTPConfig cfg,
+      HTTPConnector httpConnector) {
+    this.sessionFactory = sessionFactory;
+    this.realmId = realmId;
+    this.model = model;
+    this.httpConnector = httpConnector;
+    this.batchSize = Math.max(1, cfg.getBatchSizeForSync());
+    this.parallelism = Math.max(1, cfg.getSyncParallelism());
+    this.syncWatermark = new HTTPSyncWatermark(cfg, model.getId());
+  }
+
+  /**
+   * Imports all users of the backend.
+   *
+   * @return number of added, updated and failed users, also of a sync stopped by a failed page
+   */
+  public SynchronizationResult sync() {
+    final SynchronizationResult result = new SynchronizationResult();
+    final long start = System.currentTimeMillis();
+    long lastProgress = start;
+    int synced = 0;
+    logger.infof("starting full sync of realm %s (%s)", realmId, model.getName());
+    final String watermark = currentWatermark();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      final Deque<Future<List<HTTPUserModel>>> pages = new ArrayDeque<>();
+      int nextOffset = 0;
+      for (int i = 0; i < parallelism; i++) {
+        pages.add(fetch(executor, nextOffset));
+        nextOffset += batchSize;
+      }
+
+      boolean fetching = true;
+      while (!pages.isEmpty()) {
+        final int offset = nextOffset - pages.size() * batchSize;
+        final List<HTTPUserModel> page = await(pages.poll(), offset);
+        if (page == null) {
+          failBatch(result);
+          if (Thread.currentThread().isInterrupted()) {
+            pages.forEach(future -> future.cancel(true));
+            pages.clear();
+          }
+          // the end of the users is unknown, only the pages already requested are imported
+          fetching = false;
+          continue;
+        }
+        if (page.size() < batchSize) {
+          // last page, all pages after it are empty
+          pages.forEach(future -> future.cancel(true));
+          pages.clear();
+        } else if (fetching) {
+          pages.add(fetch(executor, nextOffset));
+          nextOffset += batchSize;
+        }
+
+        importPage(page, Collections.emptyList(), result);
+        synced += page.size();
+
+        final long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL) {
+          lastProgress = now;
+          logger.infof(
+              "sync of realm %s: %d users, %s, %d users/s",
+              realmId, synced, result.getStatus(), perSecond(synced, now - start));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (watermark != null && result.getFailed() == 0) {
+      syncWatermark.store(watermark);
+    }
+    final long duration = System.currentTimeMillis() - start;
+    logger.infof(
+        "finished full sync of realm %s: %d users in %d s, %s, %d users/s",
+        realmId,
+        synced,
+        TimeUnit.MILLISECONDS.toSeconds(duration),
+        result.getStatus(),
+        perSecond(synced, duration));
+    return result;
+  }
+
+  /**
+   * Imports the users changed since the last sync and removes the deleted users. Falls back to a
+   * full sync, if no watermark is stored yet or the backend does not support the query.
+   *
+   * @param lastSync time of the last sync by the clock of Keycloak, not used, the watermark comes
+   *     from the backend
+   * @return number of added, updated, removed and failed users
+   */
+  public SynchronizationResult syncSince(Date lastSync) {
+    final String watermark = syncWatermark.load();
+    if (watermark == null) {
+      logger.infof("no sync watermark of %s stored, running a full sync", model.getName());
+      return sync();
+    }
+
+    final SynchronizationResult result = new SynchronizationResult();
+    final long start = System.currentTimeMillis();
+    String nextWatermark = watermark;
+    String cursor = null;
+    int synced = 0;
+    do {
+      final Optional<HTTPChangedUsers> changes;
+      try {
+        changes = httpConnector.getChangedUsers(realmId, watermark, cursor, batchSize);
+      } catch (RuntimeException e) {
+        logger.errorf(
+            "reading the changed users of realm %s has failed, the sync stops: %s", realmId, e);
+        failBatch(result);
+        break;
+      }
+      if (!changes.isPresent()) {
+        logger.infof("backend does not report changed users, running a full sync of %s", realmId);
+        result.add(sync());
+        return result;
+      }
+      final HTTPChangedUsers page = changes.get();
+      importPage(page.getUsers(), page.getDeleted(), result);
+      synced += page.getUsers().size() + page.getDeleted().size();
+      if (page.getWatermark() != null) nextWatermark = page.getWatermark();
+      cursor = page.getCursor();
+    } while (cursor != null);
+
+    if (result.getFailed() == 0 && !nextWatermark.equals(watermark)) {
+      syncWatermark.store(nextWatermark);
+    }
+    logger.infof(
+        "finished changed users sync of realm %s since %s: %d changes in %d ms, %s",
+        realmId, watermark, synced, System.currentTimeMillis() - start, result.getStatus());
+    return result;
+  }
+
+  /** @return the current watermark of the backend or null, if it does not report changed users */
+  private String currentWatermark() {
+    try {
+      return httpConnector.getWatermark(realmId).orElse(null);
+    } catch (RuntimeException e) {
+      logger.warnf("reading the sync watermark of realm %s has failed: %s", realmId, e);
+      return null;
+    }
+  }
+
+  private static long perSecond(int count, long millis) {
+    return millis == 0 ? count : count * 1000L / millis;
+  }
+
+  private Future<List<HTTPUserModel>> fetch(ExecutorService executor, int offset) {
+    return executor.submit(() -> httpConnector.getUsersPage(realmId, offset, batchSize));
+  }
+
+  /** @return the users of the page or null, if reading it has failed or the sync was interrupted */
+  private List<HTTPUserModel> await(Future<List<HTTPUserModel>> page, int offset) {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warnf("sync of realm %s was interrupted at offset %d", realmId, offset);
+      return null;
+    } catch (ExecutionException e) {
+      logger.errorf(
+          "reading the users of realm %s at offset %d has failed, the sync stops: %s",
+          realmId, offset, e.getCause());
+      return null;
+    }
+  }
+
+  /** Counts the users of a page, that could not be read, as a batch of failed users. */
+  private void failBatch(SynchronizationResult result) {
+    for (int i = 0; i < batchSize; i++) {
+      result.increaseFailed();
+    }
+  }
+
+  /**
+   * Imports one page of users and removes deleted users in a new transaction.
+   *
+   * @param users the new or changed users
+   * @param deleted ids of deleted users
+   * @param result collects the number of added, updated, removed and failed users
+   */
+  void importPage(List<HTTPUserModel> users, List<String> deleted, SynchronizationResult result) {
+    if (users.isEmpty() && deleted.isEmpty()) return;
+    users.forEach(user -> httpConnector.invalidate(realmId, user.getId()));
+    deleted.forEach(id -> httpConnector.invalidate(realmId, id));
+
+    final SynchronizationResult pageResult = new SynchronizationResult();
+    try {
+      KeycloakModelUtils.runJobInTransaction(
+          sessionFactory,
+          session -> {
+            final RealmModel realm = session.realms().getRealm(realmId);
+            importUsers(session, realm, users, pageResult);
+            removeUsers(session, realm, deleted, pageResult);
+          });
+      result.add(pageResult);
+    } catch (RuntimeException e) {
+      logger.errorf(e, "import of %d users into realm %s has failed", users.size(), realmId);
+      for (int i = 0; i < users.size() + deleted.size(); i++) {
+        result.increaseFailed();
+      }
+    }
+  }
+
+  private void removeUsers(
+      KeycloakSession session, RealmModel realm, List<String> ids, SynchronizationResult result) {
+    for (String id : ids) {
+      final UserModel local = findLinked(session, realm, id, null);
+      if (local != null) {
+        session.userLocalStorage().removeUser(realm, local);
+        result.increaseRemoved();
+      }
+    }
+  }
+
+  private void importUsers(
+      KeycloakSession session,
+      RealmModel realm,
+      List<HTTPUserModel> users,
+      SynchronizationResult result) {
+    for (HTTPUserModel user : users) {
+      UserModel local = findLinked(session, realm, user.getId(), user.getUsername());
+      if (local == null) {
+        if (session.userLocalStorage().getUserByUsername(user.getUsername(), realm) != null) {
+          logger.warnf(
+              "user %s exists in realm %s and is not linked to this user of %s, skipped",
+              user.getUsername(), realmId, model.getName());
+          result.increaseFailed();
+          continue;
+        }
+        local = session.userLocalStorage().addUser(realm, user.getUsername());
+        local.setFederationLink(model.getId());
+        copy(user, local);
+        result.increaseAdded();
+      } else if (!user.getUsername().equalsIgnoreCase(local.getUsername())) {
+        // renamed in the backend, Keycloak stores usernames in lower case
+        if (session.userLocalStorage().getUserByUsername(user.getUsername(), realm) != null) {
+          logger.warnf(
+              "user %s of realm %s cannot be renamed to the existing username %s, skipped",
+              local.getUsername(), realmId, user.getUsername());
+          result.increaseFailed();
+          continue;
+        }
+        local.setUsername(user.getUsername());
+        copy(user, local);
+        result.increaseUpdated();
+      } else if (copy(user, local)) {
+        result.increaseUpdated();
+      }
+    }
+  }
+
+  /**
+   * Finds the local user linked to a backend user by the id stored in {@link
+   * HTTPConstants#ATTRIBUTE_ID}. A linked user without stored id, e.g. imported by an older
+   * version, is found by its username.
+   *
+   * @param id id of the user in the backend
+   * @param username username of the user in the backend or null to look up the id as username
+   * @return the local user linked to this provider or null
+   */
+  private UserModel findLinked(
+      KeycloakSession session, RealmModel realm, String id, String username) {
+    if (id == null) return null;
+    final List<UserModel> linked =
+        session
+            .userLocalStorage()
+            .searchForUserByUserAttribute(HTTPConstants.ATTRIBUTE_ID, id, realm);
+    for (UserModel local : linked) {
+      if (model.getId().equals(local.getFederationLink())) return local;
+    }
+    final UserModel local =
+        session.userLocalStorage().getUserByUsername(username == null ? id : username, realm);
+    if (local != null
+        && model.getId().equals(local.getFederationLink())
+        && local.getFirstAttribute(HTTPConstants.ATTRIBUTE_ID) == null) {
+      return local;
+    }
+    return null;
+  }
+
+  /**
+   * Copies the id, fields and attributes of a backend user to a local user. Unchanged values are not
+   * set, so the local store is only written, when the user has changed.
+   *
+   * @param from user of the backend
+   * @param to local user
+   * @return true, if something has changed
+   */
+  static boolean copy(HTTPUserModel from, UserModel to) {
+    boolean changed = false;
+    if (!Objects.equals(from.getId(), to.getFirstAttribute(HTTPConstants.ATTRIBUTE_ID))) {
+      to.setSingleAttribute(HTTPConstants.ATTRIBUTE_ID, from.getId());
+      changed = true;
+    }
+    if (!Objects.equals(from.getEmail(), to.getEmail())) {
+      to.setEmail(from.getEmail());
+      changed = true;
+    }
+    if (!Objects.equals(from.getFirstName(), to.getFirstName())) {
+      to.setFirstName(from.getFirstName());
+      changed = true;
+    }
+    if (!Objects.equals(from.getLastName(), to.getLastName())) {
+      to.setLastName(from.getLastName());
+      changed = true;
+    }
+    if (from.isEnabled() != to.isEnabled()) {
+      to.setEnabled(from.isEnabled());
+      changed = true;
+    }
+    if (from.isEmailVerified() != to.isEmailVerified()) {
+      to.setEmailVerified(from.isEmailVerified());
+      changed = true;
+    }
+    if (from.getCreatedTimestamp() != null
+        && !from.getCreatedTimestamp().equals(to.getCreatedTimestamp())) {
+      to.setCreatedTimestamp(from.getCreatedTimestamp());
+      changed = true;
+    }
+    if (from.getAttributes() != null) {
+      for (Map.Entry<String, List<String>> attribute : from.getAttributes().entrySet()) {
+        if (!Objects.equals(attribute.getValue(), to.getAttribute(attribute.getKey()))) {
+          to.setAttribute(attribute.getKey(), attribute.getValue());
+          changed = true;
+        }
+      }
+    }
+    return changed;
+  }
+}
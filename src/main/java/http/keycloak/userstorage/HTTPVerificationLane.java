@@ -0,0 +1,142 @@
+package http.keycloak.userstorage;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+/**
+ * Limits the number of password verifications sent to the backend at the same time. It is shared
+ * by all sessions of a component.
+ *
+ * A verification takes a free slot at once. Without one, it waits at most the configured queue
+ * timeout and only, if not too many verifications are already waiting. Otherwise the verification
+ * is rejected with a {@link ModelException} without calling the backend, so a login storm is
+ * smoothed to the configured concurrency and the excess is shed instead of being forwarded to the
+ * backend.
+ *
+ * The verification runs on the calling request thread, the lane only hands out the slots.
+ */
+public class HTTPVerificationLane {
+
+  private static final Logger logger = Logger.getLogger(HTTPVerificationLane.class);
+
+  /** interval of the statistics log messages */
+  private static final long SUMMARY_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+  private final Semaphore slots;
+
+  private final int maxWaiting;
+
+  private final long queueTimeout;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  private final LongAdder verified = new LongAdder();
+
+  private final LongAdder shed = new LongAdder();
+
+  private final LongAdder queueNanos = new LongAdder();
+
+  private final LongAdder serviceNanos = new LongAdder();
+
+  private final AtomicLong lastSummary = new AtomicLong(System.nanoTime());
+
+  public HTTPVerificationLane(HTTPConfig cfg) {
+    this.slots = new Semaphore(Math.max(1, cfg.getVerifyConcurrency()), true);
+    this.maxWaiting = cfg.getVerifyQueueSize();
+    this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(cfg.getVerifyQueueTimeout());
+  }
+
+  /**
+   * Runs a verification, when a slot is free.
+   *
+   * @param verification the call to the backend
+   * @return the result of the verification
+   * @throws ModelException if the verification was shed
+   */
+  public <T> T execute(Supplier<T> verification) {
+    final long enqueued = System.nanoTime();
+    if (!acquire()) {
+      shed.increment();
+      logger.debugf("password verification rejected, %d verifications waiting", waiting.get());
+      throw new ModelException("Too many password verifications, please try again later");
+    }
+
+    final long started = System.nanoTime();
+    queueNanos.add(started - enqueued);
+    try {
+      return verification.get();
+    } finally {
+      slots.release();
+      final long finished = System.nanoTime();
+      serviceNanos.add(finished - started);
+      verified.increment();
+      logSummary(finished);
+    }
+  }
+
+  private boolean acquire() {
+    // a free slot is taken at once, only the verifications that have to wait count as waiting
+    if (slots.tryAcquire()) return true;
+    if (waiting.incrementAndGet() > maxWaiting) {
+      waiting.decrementAndGet();
+      return false;
+    }
+    try {
+      return slots.tryAcquire(queueTimeout, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  private void logSummary(long now) {
+    final long last = lastSummary.get();
+    if (now - last < SUMMARY_INTERVAL || !lastSummary.compareAndSet(last, now)) return;
+    logger.infof("password verifications: %s", this);
+  }
+
+  /** @return number of verifications sent to the backend */
+  public long getVerified() {
+    return verified.sum();
+  }
+
+  /** @return number of rejected verifications */
+  public long getShed() {
+    return shed.sum();
+  }
+
+  /** @return number of verifications waiting for a slot right now */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /** @return total nanoseconds the verifications have waited for a slot */
+  public long getQueueNanos() {
+    return queueNanos.sum();
+  }
+
+  /** @return total nanoseconds the verifications have taken in the backend */
+  public long getServiceNanos() {
+    return serviceNanos.sum();
+  }
+
+  @Override
+  public String toString() {
+    final long count = Math.max(1, getVerified());
+    return String.format(
+        "verified=%d, shed=%d, waiting=%d, avg queue=%.1f ms, avg service=%.1f ms",
+        getVerified(),
+        getShed(),
+        getWaiting(),
+        getQueueNanos() / 1e6 / count,
+        getServiceNanos() / 1e6 / count);
+  }
+}
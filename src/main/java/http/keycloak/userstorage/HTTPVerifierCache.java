@@ -0,0 +1,138 @@
+package http.keycloak.userstorage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.crypto.generators.SCrypt;
+
+/**
+ * Remembers successful password verifications for a short time, so repeated logins of the same
+ * user (e.g. direct grants every few seconds) are verified locally instead of by the backend.
+ *
+ * Only a salted scrypt hash of the password is kept, never the password. The cost of the hash is
+ * configurable, it is paid on every local verification and on every remembered verification. An
+ * entry is removed, when it expires, when the user or its password is changed and after a failed
+ * attempt. A time to live of 0 disables the cache.
+ */
+public class HTTPVerifierCache {
+
+  public static final int MIN_COST = 10;
+
+  public static final int MAX_COST = 20;
+
+  /** maximum number of cached verifiers, further verifiers evict other verifiers */
+  private static final int MAX_ENTRIES = 10_000;
+
+  private static final int SALT_LENGTH = 16;
+
+  private static final int HASH_LENGTH = 32;
+
+  /** scrypt block size and parallelization */
+  private static final int BLOCK_SIZE = 8;
+
+  private static final int PARALLELIZATION = 1;
+
+  private final SecureRandom random = new SecureRandom();
+
+  private final long ttl;
+
+  private final int cost;
+
+  private final Map<String, Verifier> verifiers = new ConcurrentHashMap<>();
+
+  public HTTPVerifierCache(HTTPConfig cfg) {
+    this.ttl = TimeUnit.SECONDS.toMillis(cfg.getVerifierCacheTtl());
+    this.cost = 1 << Math.max(MIN_COST, Math.min(MAX_COST, cfg.getVerifierCacheCost()));
+  }
+
+  private static String key(String realmId, String externalId) {
+    return realmId + "/" + externalId;
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * Verifies a password against the remembered verification of the user. A password, that does
+   * not match, removes the verifier, so the next attempt is verified by the backend.
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   * @param password the password to check
+   * @return true, if a verification of the same password is remembered and not expired
+   */
+  public boolean verify(String realmId, String externalId, String password) {
+    if (!isEnabled() || externalId == null) return false;
+
+    final String key = key(realmId, externalId);
+    final Verifier verifier = verifiers.get(key);
+    if (verifier == null) return false;
+    if (verifier.expiresAt <= System.currentTimeMillis()) {
+      verifiers.remove(key, verifier);
+      return false;
+    }
+    if (MessageDigest.isEqual(verifier.hash, hash(password, verifier.salt))) return true;
+
+    verifiers.remove(key, verifier);
+    return false;
+  }
+
+  /**
+   * Remembers a password, that was verified by the backend.
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   * @param password the verified password
+   */
+  public void put(String realmId, String externalId, String password) {
+    if (!isEnabled() || externalId == null) return;
+
+    final byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    final Verifier verifier =
+        new Verifier(salt, hash(password, salt), System.currentTimeMillis() + ttl);
+    if (verifiers.size() >= MAX_ENTRIES) evict();
+    verifiers.put(key(realmId, externalId), verifier);
+  }
+
+  /**
+   * Removes the verifier of a user, e.g. after it was changed or a password check has failed.
+   *
+   * @param realmId realm within which the user exists
+   * @param externalId external id of the user
+   */
+  public void invalidate(String realmId, String externalId) {
+    if (externalId != null) verifiers.remove(key(realmId, externalId));
+  }
+
+  private byte[] hash(String password, byte[] salt) {
+    return SCrypt.generate(
+        password.getBytes(StandardCharsets.UTF_8),
+        salt,
+        cost,
+        BLOCK_SIZE,
+        PARALLELIZATION,
+        HASH_LENGTH);
+  }
+
+  private void evict() {
+    final long now = System.currentTimeMillis();
+    HTTPEviction.evict(verifiers, MAX_ENTRIES, verifier -> verifier.expiresAt <= now);
+  }
+
+  private static class Verifier {
+    private final byte[] salt;
+    private final byte[] hash;
+    private final long expiresAt;
+
+    private Verifier(byte[] salt, byte[] hash, long expiresAt) {
+      this.salt = salt;
+      this.hash = hash;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,473 @@
+package http.keycloak.userstorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import org.jboss.logging.Logger;
+
+/**
+ * Write-behind journal for user updates. Committed changes are appended to a local journal file
+ * and the commit returns as soon as the journal is synced to disk. A background sender drains the
+ * journal in order and sends the updates to the backend, retrying until the backend accepts them.
+ *
+ * The journal consists of three files per component in the journal directory:
+ *
+ * - {componentId}.journal - append-only records (length, crc32, JSON)
+ * - {componentId}.ack - offset up to which all records were acknowledged by the backend
+ * - {componentId}.failed - updates permanently rejected by the backend (4xx), one JSON per line
+ *
+ * Passwords are sent directly by the transaction and never appended. As a safeguard a password in a
+ * patch is removed before the patch is written to the journal or the failed file.
+ *
+ * Each record of a batch is done, when the backend accepted or permanently rejected it; only the
+ * records with a retryable result are sent again. The acknowledged offset advances over the done
+ * records in journal order, done records after a pending one are kept in memory until then.
+ *
+ * After a restart the sender continues with the first record after the acknowledged offset. An
+ * update may be sent twice after a crash, the backend can detect that by its idempotency key.
+ */
+public class HTTPWriteJournal implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(HTTPWriteJournal.class);
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** length and crc32 of a record */
+  private static final int HEADER_SIZE = 8;
+
+  /** a completely acknowledged journal is truncated, when it is larger than this */
+  private static final long COMPACT_SIZE = 1024 * 1024;
+
+  private static final long MIN_BACKOFF = 500;
+
+  private static final long MAX_BACKOFF = 60_000;
+
+  /** the connector of the sender, replaced when the journal is handed over to a new component */
+  private volatile HTTPConnector httpConnector;
+
+  private volatile int batchSize;
+
+  private final FileChannel journal;
+
+  private final FileChannel ack;
+
+  private final Path failedFile;
+
+  /** guards writePosition and the truncation of the journal */
+  private final Object writeLock = new Object();
+
+  private long writePosition;
+
+  /** guards syncedPosition, held while the journal is forced to disk */
+  private final Object syncLock = new Object();
+
+  private volatile long syncedPosition;
+
+  private volatile long ackedPosition;
+
+  /** start to end of the done records after the acknowledged offset, used by the sender only */
+  private final Map<Long, Long> done = new HashMap<>();
+
+  private final Thread sender;
+
+  private volatile boolean closed = false;
+
+  /** number of batches sent again */
+  private final LongAdder retries = new LongAdder();
+
+  /**
+   * A single update to append to the journal
+   */
+  public static class Entry {
+    private final String realmId;
+    private final HTTPBulkUpdate update;
+
+    public Entry(String realmId, HTTPBulkUpdate update) {
+      this.realmId = realmId;
+      this.update = update;
+    }
+  }
+
+  /** An update read from the journal */
+  private static class Record {
+    private final String realmId;
+    private final HTTPBulkUpdate update;
+    private final long start;
+    private final long end;
+
+    private Record(String realmId, HTTPBulkUpdate update, long start, long end) {
+      this.realmId = realmId;
+      this.update = update;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * Opens or creates the journal of a component and starts the sender.
+   *
+   * @param componentId id of the storage provider component
+   * @param cfg config of the component
+   * @param httpConnector connector used by the sender
+   * @throws IOException if the journal can't be opened
+   */
+  public HTTPWriteJournal(String componentId, HTTPConfig cfg, HTTPConnector httpConnector)
+      throws IOException {
+    this.httpConnector = httpConnector;
+    this.batchSize = Math.max(1, cfg.getWriteBatchSize());
+
+    Path directory = Paths.get(cfg.getJournalDirectory());
+    Files.createDirectories(directory);
+    this.failedFile = directory.resolve(componentId + ".failed");
+    this.journal =
+        FileChannel.open(
+            directory.resolve(componentId + ".journal"),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    this.ack =
+        FileChannel.open(
+            directory.resolve(componentId + ".ack"),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+
+    this.ackedPosition = Math.min(readAck(), journal.size());
+    this.writePosition = recover(ackedPosition);
+    this.syncedPosition = writePosition;
+    logger.infof(
+        "opened write journal %s, %d bytes pending", componentId, writePosition - ackedPosition);
+
+    this.sender = new Thread(this::drain, "http-write-journal-" + componentId);
+    this.sender.setDaemon(true);
+    this.sender.start();
+  }
+
+  /**
+   * Sends the journal with the connector and batch size of the component, that took the journal
+   * over from a replaced component.
+   *
+   * @param cfg config of the new component
+   * @param httpConnector connector of the new component
+   */
+  public void reconnect(HTTPConfig cfg, HTTPConnector httpConnector) {
+    this.batchSize = Math.max(1, cfg.getWriteBatchSize());
+    this.httpConnector = httpConnector;
+  }
+
+  private long readAck() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    if (ack.read(buffer, 0) < Long.BYTES) return 0;
+    buffer.flip();
+    return buffer.getLong();
+  }
+
+  private void writeAck(long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    buffer.putLong(position).flip();
+    ack.write(buffer, 0);
+    ack.force(false);
+  }
+
+  /**
+   * Checks all records after the acknowledged offset and cuts off a partially written tail.
+   *
+   * @return the end of the last complete record
+   */
+  private long recover(long from) throws IOException {
+    long position = from;
+    while (true) {
+      Record record = read(position);
+      if (record == null) break;
+      position = record.end;
+    }
+    if (position < journal.size()) {
+      logger.warnf("truncating %d bytes of incomplete journal records", journal.size() - position);
+      journal.truncate(position);
+    }
+    return position;
+  }
+
+  /**
+   * Appends updates to the journal and returns, when they are synced to disk. Concurrent appends
+   * share one sync.
+   *
+   * @param entries the updates
+   */
+  public void append(List<Entry> entries) {
+    long end;
+    try {
+      synchronized (writeLock) {
+        for (Entry entry : entries) {
+          ByteBuffer record = encode(entry);
+          while (record.hasRemaining()) {
+            writePosition += journal.write(record, writePosition);
+          }
+        }
+        end = writePosition;
+      }
+      sync(end);
+    } catch (IOException e) {
+      throw new RuntimeException("Writing to the write journal has failed", e);
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  private void sync(long position) throws IOException {
+    synchronized (syncLock) {
+      if (syncedPosition >= position) return;
+      long target;
+      synchronized (writeLock) {
+        target = writePosition;
+      }
+      journal.force(false);
+      syncedPosition = target;
+    }
+  }
+
+  private static ByteBuffer encode(Entry entry) throws IOException {
+    ObjectNode node = OBJECT_MAPPER.createObjectNode();
+    node.put("realmId", entry.realmId);
+    node.put("id", entry.update.getId());
+    node.put("idempotencyKey", entry.update.getIdempotencyKey());
+    node.set("patch", withoutPassword(entry.update.getPatch()));
+    byte[] json = OBJECT_MAPPER.writeValueAsBytes(node);
+
+    CRC32 crc = new CRC32();
+    crc.update(json);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + json.length);
+    buffer.putInt(json.length).putInt((int) crc.getValue()).put(json).flip();
+    return buffer;
+  }
+
+  /**
+   * @return the record at the given position or null, if there is no complete record
+   */
+  private Record read(long position) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    if (!readFully(header, position)) return null;
+    header.flip();
+    int length = header.getInt();
+    int checksum = header.getInt();
+    if (length <= 0) return null;
+
+    ByteBuffer json = ByteBuffer.allocate(length);
+    if (!readFully(json, position + HEADER_SIZE)) return null;
+    CRC32 crc = new CRC32();
+    crc.update(json.array());
+    if ((int) crc.getValue() != checksum) return null;
+
+    JsonNode node = OBJECT_MAPPER.readTree(json.array());
+    HTTPBulkUpdate update =
+        new HTTPBulkUpdate(
+            node.path("id").asText(),
+            node.path("idempotencyKey").asText(),
+            (ObjectNode) node.get("patch"));
+    return new Record(
+        node.path("realmId").asText(), update, position, position + HEADER_SIZE + length);
+  }
+
+  private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = journal.read(buffer, position + buffer.position());
+      if (read < 0) return false;
+    }
+    return true;
+  }
+
+  /** @return number of batches, that were sent again after a failure */
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  /** @return bytes of the journal, that are not yet accepted by the backend */
+  public long getPendingBytes() {
+    return Math.max(0, syncedPosition - ackedPosition);
+  }
+
+  /**
+   * @return true, if all appended updates were accepted by the backend
+   */
+  public boolean isDrained() {
+    return ackedPosition >= syncedPosition;
+  }
+
+  /** Sender loop */
+  private void drain() {
+    long backoff = MIN_BACKOFF;
+    while (!closed) {
+      try {
+        List<Record> batch = nextBatch();
+        if (batch.isEmpty()) {
+          compact();
+          synchronized (this) {
+            if (ackedPosition >= syncedPosition && !closed) wait(1000);
+          }
+          continue;
+        }
+        final boolean complete = send(batch);
+        acknowledge();
+        if (complete) {
+          backoff = MIN_BACKOFF;
+        } else {
+          retries.increment();
+          Thread.sleep(backoff);
+          backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        logger.warnf("sending the write journal has failed, retrying in %d ms: %s", backoff, e);
+        retries.increment();
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+      }
+    }
+  }
+
+  /** Advances the acknowledged offset over the done records following it. */
+  private void acknowledge() throws IOException {
+    final long before = ackedPosition;
+    Long end;
+    while ((end = done.remove(ackedPosition)) != null) {
+      ackedPosition = end;
+    }
+    if (ackedPosition != before) writeAck(ackedPosition);
+  }
+
+  /**
+   * Reads the next synced records of one realm, that are not done, at most one record per user, so
+   * the order of the updates of each user is kept.
+   */
+  private List<Record> nextBatch() throws IOException {
+    List<Record> batch = new ArrayList<>();
+    Set<String> users = new HashSet<>();
+    long position = ackedPosition;
+    while (batch.size() < batchSize && position < syncedPosition) {
+      Long end = done.get(position);
+      if (end != null) {
+        position = end;
+        continue;
+      }
+      Record record = read(position);
+      if (record == null) break;
+      if (!batch.isEmpty() && !batch.get(0).realmId.equals(record.realmId)) break;
+      if (!users.add(record.update.getId())) break;
+      batch.add(record);
+      position = record.end;
+    }
+    return batch;
+  }
+
+  /**
+   * Sends a batch and marks the accepted and the permanently rejected records as done. Updates
+   * rejected with a client error are written to the failed file.
+   *
+   * @return true, if all records are done, false if some must be retried later
+   */
+  private boolean send(List<Record> batch) throws IOException {
+    List<HTTPBulkUpdate> updates = new ArrayList<>(batch.size());
+    batch.forEach(record -> updates.add(record.update));
+    List<HTTPBulkUpdate.Result> results = httpConnector.bulkUpdate(batch.get(0).realmId, updates);
+
+    boolean complete = true;
+    for (int i = 0; i < batch.size(); i++) {
+      Record record = batch.get(i);
+      HTTPBulkUpdate.Result result = i < results.size() ? results.get(i) : null;
+      if (result == null || isRetryable(result)) {
+        complete = false;
+        continue;
+      }
+      if (!result.isSuccessful()) {
+        logger.errorf("update rejected by backend, moved to %s: %s", failedFile, result);
+        Files.write(
+            failedFile,
+            (encodeFailed(record, result) + "\n").getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND);
+      }
+      done.put(record.start, record.end);
+    }
+    return complete;
+  }
+
+  private static boolean isRetryable(HTTPBulkUpdate.Result result) {
+    return result.getStatus() == 0 || result.getStatus() == 429 || result.getStatus() >= 500;
+  }
+
+  private static String encodeFailed(Record record, HTTPBulkUpdate.Result result)
+      throws IOException {
+    ObjectNode node = OBJECT_MAPPER.createObjectNode();
+    node.put("realmId", record.realmId);
+    node.put("id", record.update.getId());
+    node.put("idempotencyKey", record.update.getIdempotencyKey());
+    node.put("status", result.getStatus());
+    node.put("error", result.getError());
+    node.set("patch", withoutPassword(record.update.getPatch()));
+    return OBJECT_MAPPER.writeValueAsString(node);
+  }
+
+  /** @return the patch or a copy without the password, credentials are never written to disk */
+  private static ObjectNode withoutPassword(ObjectNode patch) {
+    if (!patch.has(HTTPUserChanges.PASSWORD)) return patch;
+    final ObjectNode copy = patch.deepCopy();
+    copy.remove(HTTPUserChanges.PASSWORD);
+    return copy;
+  }
+
+  /** Truncates the journal, if all records were acknowledged */
+  private void compact() throws IOException {
+    if (ackedPosition < COMPACT_SIZE) return;
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        if (ackedPosition != writePosition) return;
+        journal.truncate(0);
+        journal.force(true);
+        writePosition = 0;
+        syncedPosition = 0;
+        ackedPosition = 0;
+        done.clear();
+        writeAck(0);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    sender.interrupt();
+    try {
+      sender.join(5000);
+      journal.close();
+      ack.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.error("closing the write journal has failed", e);
+    }
+  }
+}
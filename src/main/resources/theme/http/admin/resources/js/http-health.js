@@ -0,0 +1,90 @@
+/*
+ * Shows the backend health of an http storage provider on its page in the admin console: status,
+ * latency of the last probe, average latency and availability of the last probes. The health is
+ * polled from /realms/{realm}/http-userstorage/health/{componentId} while the page is open, with
+ * $http of the admin console, that sends the token of the administrator.
+ */
+(function () {
+    'use strict';
+
+    var PROVIDER = 'http';
+    var REFRESH_MILLIS = 10000;
+    var ELEMENT_ID = 'http-health';
+
+    var FALLBACK = {
+        'HTTP-Health': 'Backend health',
+        'HTTP-Health-Available': 'available',
+        'HTTP-Health-Unavailable': 'unavailable, lookups fail at once',
+        'HTTP-Health-Idle': 'not probed yet, the provider was not used since the start of the server',
+        'HTTP-Health-Latency': 'latency',
+        'HTTP-Health-Average': 'average',
+        'HTTP-Health-Availability': 'of the last probes answered'
+    };
+
+    angular.module('keycloak').run(['$rootScope', '$route', '$http', '$injector', function ($rootScope, $route, $http, $injector) {
+        var timer = null;
+
+        function translate(key) {
+            if ($injector.has('$translate')) {
+                var text = $injector.get('$translate').instant(key);
+                if (text && text !== key) {
+                    return text;
+                }
+            }
+            return FALLBACK[key];
+        }
+
+        function millis(value) {
+            return value < 0 ? '-' : value.toFixed(1) + ' ms';
+        }
+
+        function render(text, level) {
+            var element = document.getElementById(ELEMENT_ID);
+            if (!element) {
+                var view = document.getElementById('view') || document.querySelector('[data-ng-view], [ng-view]');
+                var form = view && view.querySelector('form');
+                if (!form) {
+                    return;
+                }
+                element = document.createElement('div');
+                element.id = ELEMENT_ID;
+                form.parentNode.insertBefore(element, form);
+            }
+            element.className = 'alert alert-' + level;
+            element.textContent = translate('HTTP-Health') + ': ' + text;
+        }
+
+        function poll(realm, componentId) {
+            $http.get(authUrl + '/realms/' + encodeURIComponent(realm) + '/http-userstorage/health/'
+                + encodeURIComponent(componentId)).then(function (response) {
+                if (response.status === 204 || !response.data) {
+                    render(translate('HTTP-Health-Idle'), 'info');
+                    return;
+                }
+                var health = response.data;
+                var text = translate(health.available ? 'HTTP-Health-Available' : 'HTTP-Health-Unavailable')
+                    + ', ' + translate('HTTP-Health-Latency') + ' ' + millis(health.latencyMillis)
+                    + ', ' + translate('HTTP-Health-Average') + ' ' + millis(health.averageLatencyMillis)
+                    + ', ' + health.availability.toFixed(0) + '% ' + translate('HTTP-Health-Availability')
+                    + ' (' + health.probes + ')'
+                    + (health.lastError ? ', ' + health.lastError : '');
+                render(text, !health.available ? 'danger' : health.availability < 100 ? 'warning' : 'success');
+            });
+        }
+
+        $rootScope.$on('$routeChangeSuccess', function () {
+            if (timer) {
+                clearInterval(timer);
+                timer = null;
+            }
+            var params = $route.current && $route.current.params;
+            if (!params || params.provider !== PROVIDER || !params.componentId) {
+                return;
+            }
+            poll(params.realm, params.componentId);
+            timer = setInterval(function () {
+                poll(params.realm, params.componentId);
+            }, REFRESH_MILLIS);
+        });
+    }]);
+})();
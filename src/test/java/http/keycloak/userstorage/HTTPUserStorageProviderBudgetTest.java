@@ -0,0 +1,176 @@
+package http.keycloak.userstorage;
+
+import static org.junit.Assert.assertTrue;
+
+import http.keycloak.userstorage.stub.StubBackend;
+import http.keycloak.userstorage.stub.Stubs;
+import http.keycloak.userstorage.stub.Users;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import org.jboss.logging.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Budgets of the bytes allocated by the calling thread and of the backend requests per operation,
+ * measured against the stub backend after a warmup. Most regressions of the provider were
+ * allocations and round trips, e.g. a client per session, role sets rebuilt on every check or
+ * logged lists, that these budgets catch.
+ *
+ * <p>Every operation uses another user, so neither the user cache nor the session finds it. A
+ * budget is about twice the measured value, raise it only together with the change, that needs
+ * the memory or requests. The measured values are logged at debug level.
+ */
+public class HTTPUserStorageProviderBudgetTest {
+
+  private static final Logger logger = Logger.getLogger(HTTPUserStorageProviderBudgetTest.class);
+
+  private static final int WARMUP = 500;
+
+  private static final int MEASURED = 200;
+
+  private static final int PAGE_SIZE = 20;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static final RealmModel REALM = Stubs.realm("budget");
+
+  private static StubBackend backend;
+
+  private static HTTPUserStorageProviderFactory factory;
+
+  private static ComponentModel component;
+
+  private static int nextUser;
+
+  /** The bytes and requests per operation. */
+  private static class Usage {
+
+    private final long bytes;
+
+    private final double requests;
+
+    private Usage(long bytes, double requests) {
+      this.bytes = bytes;
+      this.requests = requests;
+    }
+  }
+
+  @BeforeClass
+  public static void start() throws Exception {
+    backend = new StubBackend().users(100_000).start();
+    factory = new HTTPUserStorageProviderFactory();
+    final Map<String, String> config = new HashMap<>();
+    config.put(HTTPConstants.CONFIG_URL, backend.getUrl());
+    config.put(HTTPConstants.CONFIG_USERNAME, "budget");
+    config.put(HTTPConstants.CONFIG_PASSWORD, "budget");
+    // the requests of the health probe are no requests of the measured operations
+    config.put(HTTPConstants.CONFIG_HEALTH_INTERVAL, "0");
+    component = Stubs.component(config);
+  }
+
+  @AfterClass
+  public static void stop() {
+    factory.close();
+    backend.stop();
+  }
+
+  @Test
+  public void login() {
+    final Usage usage =
+        measure(
+            () -> {
+              final HTTPUserStorageProvider provider = provider("/realms/budget/login-actions");
+              final UserModel user = provider.getUserByUsername("user" + nextUser++, REALM);
+              assertTrue(
+                  provider.isValid(
+                      REALM, user, UserCredentialModel.password(StubBackend.PASSWORD)));
+            });
+    assertBudget("login", usage, 100_000, 2);
+  }
+
+  @Test
+  public void lookupById() {
+    final Usage usage =
+        measure(
+            () -> {
+              final String id = "f:" + component.getId() + ":" + Users.id(nextUser++);
+              assertTrue(provider("/realms/budget/protocol").getUserById(id, REALM) != null);
+            });
+    assertBudget("lookup by id", usage, 60_000, 1);
+  }
+
+  @Test
+  public void adminListPage() {
+    final Usage usage =
+        measure(
+            () -> {
+              final int offset = nextUser;
+              nextUser += PAGE_SIZE;
+              assertTrue(
+                  provider("/admin/realms/budget/users").getUsers(REALM, offset, PAGE_SIZE).size()
+                      == PAGE_SIZE);
+            });
+    assertBudget("admin list page", usage, 200_000, 1);
+  }
+
+  @Test
+  public void roleCheck() {
+    final UserModel user =
+        provider("/realms/budget/protocol").getUserByUsername("user" + nextUser++, REALM);
+    final RoleModel granted = user.getRoleMappings().iterator().next();
+    final RoleModel missing = Stubs.role("missing", REALM);
+    final Usage usage =
+        measure(
+            () -> {
+              assertTrue(user.hasRole(granted));
+              assertTrue(!user.hasRole(missing));
+            });
+    assertBudget("role check", usage, 512, 0);
+  }
+
+  private HTTPUserStorageProvider provider(String path) {
+    final KeycloakSession session = Stubs.session(path, "10.0.0.1");
+    return factory.create(session, component);
+  }
+
+  private static Usage measure(Runnable operation) {
+    for (int i = 0; i < WARMUP; i++) {
+      operation.run();
+    }
+    final long thread = Thread.currentThread().getId();
+    final long requests = backend.getRequests();
+    final long bytes = THREADS.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < MEASURED; i++) {
+      operation.run();
+    }
+    return new Usage(
+        (THREADS.getThreadAllocatedBytes(thread) - bytes) / MEASURED,
+        (backend.getRequests() - requests) / (double) MEASURED);
+  }
+
+  private static void assertBudget(String operation, Usage usage, long bytes, int requests) {
+    logger.debugf(
+        "%s: %d bytes and %.2f backend requests per operation",
+        operation, usage.bytes, usage.requests);
+    assertTrue(
+        String.format(
+            "%s allocated %d bytes per operation, the budget is %d",
+            operation, usage.bytes, bytes),
+        usage.bytes <= bytes);
+    assertTrue(
+        String.format(
+            "%s sent %.2f backend requests per operation, the budget is %d",
+            operation, usage.requests, requests),
+        usage.requests <= requests);
+  }
+}
@@ -0,0 +1,520 @@
+package http.keycloak.userstorage.stub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stub of the backend API on the http server of the JDK, for load tests and budget tests of the
+ * provider. The directory contains the users {@code user0} to {@code user<size-1>} of {@link
+ * Users} with the password {@link #PASSWORD}. Every response waits for a latency drawn from the
+ * configured distribution and fails with 503 at the configured error rate. Injected {@link Fault
+ * faults} make the backend sick instead of down: latency tails, connections closed in the middle of
+ * the body, slowly trickled bodies, bursts of 503 and truncated JSON.
+ *
+ * <pre>
+ * StubBackend backend = new StubBackend().users(10_000).latency(Latency.logNormal(5, 50)).start();
+ * ... backend.getUrl() ...
+ * backend.stop();
+ * </pre>
+ */
+public class StubBackend {
+
+  /** the password of all users */
+  public static final String PASSWORD = "secret";
+
+  /** the requests of the backend API */
+  public enum Endpoint {
+    /** GET /user */
+    USERS,
+    /** GET /user/{username}, also used with the id */
+    USER,
+    /** GET /user/mail/{mail} */
+    USER_BY_MAIL,
+    /** POST /user/validate/{username} */
+    VALIDATE,
+    /** POST /user/authenticate/{username} */
+    AUTHENTICATE,
+    /** all other requests, answered with 404 */
+    OTHER
+  }
+
+  static {
+    // headers and body are written separately, without TCP_NODELAY every response of the server of
+    // the JDK waits 40ms for the delayed ACK of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final Map<Endpoint, LongAdder> requests = new EnumMap<>(Endpoint.class);
+
+  private int users = 1000;
+
+  private Latency latency = Latency.fixed(0);
+
+  private double errorRate;
+
+  private final List<Fault> faults = new ArrayList<>();
+
+  private long startNanos;
+
+  private HttpServer server;
+
+  private ExecutorService executor;
+
+  public StubBackend() {
+    for (Endpoint endpoint : Endpoint.values()) {
+      requests.put(endpoint, new LongAdder());
+    }
+  }
+
+  /**
+   * @param users number of users in the directory
+   * @return this backend
+   */
+  public StubBackend users(int users) {
+    this.users = users;
+    return this;
+  }
+
+  /**
+   * @param latency distribution of the latency of each response
+   * @return this backend
+   */
+  public StubBackend latency(Latency latency) {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * @param errorRate share of the requests answered with 503, between 0 and 1
+   * @return this backend
+   */
+  public StubBackend errorRate(double errorRate) {
+    this.errorRate = errorRate;
+    return this;
+  }
+
+  /**
+   * @param fault a fault to inject, in addition to the faults added before
+   * @return this backend
+   */
+  public StubBackend fault(Fault fault) {
+    faults.add(fault);
+    return this;
+  }
+
+  /**
+   * Starts the backend on a free port of the loopback interface.
+   *
+   * @return this backend
+   * @throws IOException if the server cannot be started
+   */
+  public StubBackend start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    // a thread per request, so the latency of one response never delays another
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+    startNanos = System.nanoTime();
+    return this;
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** @return base URL of the backend for the config of the provider */
+  public String getUrl() {
+    return "http://"
+        + server.getAddress().getAddress().getHostAddress()
+        + ":"
+        + server.getAddress().getPort();
+  }
+
+  /**
+   * @param endpoint the endpoint
+   * @return number of requests received since the start or the last reset
+   */
+  public long getRequests(Endpoint endpoint) {
+    return requests.get(endpoint).sum();
+  }
+
+  /** @return number of all requests received since the start or the last reset */
+  public long getRequests() {
+    long sum = 0;
+    for (LongAdder count : requests.values()) {
+      sum += count.sum();
+    }
+    return sum;
+  }
+
+  /** Sets the request counts to 0. */
+  public void resetRequests() {
+    requests.values().forEach(LongAdder::reset);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (InputStream body = exchange.getRequestBody()) {
+      final String path = exchange.getRequestURI().getRawPath();
+      final Endpoint endpoint = endpoint(exchange.getRequestMethod(), path);
+      requests.get(endpoint).increment();
+      final byte[] request = body.readAllBytes();
+
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      long delay = latency.nextMillis(random);
+      boolean unavailable = errorRate > 0 && random.nextDouble() < errorRate;
+      for (Fault fault : faults) {
+        if (fault.kind == Fault.Kind.LATENCY_TAIL && fault.hits(random)) delay += fault.millis;
+        if (fault.kind == Fault.Kind.BURST_503) unavailable |= fault.inBurst(startNanos);
+      }
+      if (delay > 0) TimeUnit.MILLISECONDS.sleep(delay);
+      if (unavailable) {
+        send(exchange, 503, null);
+        return;
+      }
+
+      switch (endpoint) {
+        case USERS:
+          send(exchange, 200, list(query(exchange.getRequestURI().getRawQuery())));
+          break;
+        case USER:
+          sendUser(exchange, index(decode(path.substring("/user/".length()))));
+          break;
+        case USER_BY_MAIL:
+          sendUser(exchange, indexOfMail(decode(path.substring("/user/mail/".length()))));
+          break;
+        case VALIDATE:
+          final int validated = index(decode(path.substring("/user/validate/".length())));
+          send(exchange, validated >= 0 && isPassword(request) ? 200 : 401, null);
+          break;
+        case AUTHENTICATE:
+          final int authenticated = index(decode(path.substring("/user/authenticate/".length())));
+          if (authenticated >= 0 && isPassword(request)) {
+            sendUser(exchange, authenticated);
+          } else {
+            send(exchange, 401, null);
+          }
+          break;
+        default:
+          send(exchange, 404, null);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static Endpoint endpoint(String method, String path) {
+    if ("GET".equals(method)) {
+      if ("/user".equals(path)) return Endpoint.USERS;
+      if (path.startsWith("/user/mail/")) return Endpoint.USER_BY_MAIL;
+      if (path.startsWith("/user/") && path.indexOf('/', 6) < 0) return Endpoint.USER;
+    } else if ("POST".equals(method)) {
+      if (path.startsWith("/user/validate/")) return Endpoint.VALIDATE;
+      if (path.startsWith("/user/authenticate/")) return Endpoint.AUTHENTICATE;
+    }
+    return Endpoint.OTHER;
+  }
+
+  /** the password is sent as JSON string or as plain text */
+  private static boolean isPassword(byte[] body) {
+    final String password = new String(body, StandardCharsets.UTF_8).trim();
+    return PASSWORD.equals(password) || ("\"" + PASSWORD + "\"").equals(password);
+  }
+
+  /** @return index of the user with the username or id, -1 if there is none */
+  private int index(String usernameOrId) {
+    int index = -1;
+    if (usernameOrId.startsWith("user")) {
+      index = parse(usernameOrId.substring(4));
+    } else if (usernameOrId.startsWith(Users.ID_PREFIX)) {
+      index = parse(usernameOrId.substring(Users.ID_PREFIX.length()));
+    }
+    return index < users ? index : -1;
+  }
+
+  private int indexOfMail(String mail) {
+    return mail.endsWith("@example.com") ? index(mail.substring(0, mail.indexOf('@'))) : -1;
+  }
+
+  private static int parse(String number) {
+    try {
+      return Integer.parseInt(number);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void sendUser(HttpExchange exchange, int index)
+      throws IOException, InterruptedException {
+    if (index < 0) {
+      send(exchange, 404, null);
+    } else {
+      send(exchange, 200, Users.user(index));
+    }
+  }
+
+  /** the page of offset and limit, filtered by search as part of the username */
+  private String list(Map<String, String> query) {
+    final int offset = Math.max(0, parse(query.getOrDefault("offset", "0")));
+    final int limit = query.containsKey("limit") ? parse(query.get("limit")) : users;
+    final String search = query.get("search");
+    final StringBuilder json = new StringBuilder("[");
+    int skipped = 0;
+    int added = 0;
+    for (int i = 0; i < users && added < limit; i++) {
+      if (search != null && !search.equals("*") && !("user" + i).contains(search)) continue;
+      if (skipped++ < offset) continue;
+      if (added++ > 0) json.append(',');
+      json.append(Users.user(i));
+    }
+    return json.append(']').toString();
+  }
+
+  private static Map<String, String> query(String rawQuery) {
+    final Map<String, String> query = new HashMap<>();
+    if (rawQuery == null) return query;
+    for (String parameter : rawQuery.split("&")) {
+      final int equals = parameter.indexOf('=');
+      if (equals > 0) {
+        query.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+      }
+    }
+    return query;
+  }
+
+  private static String decode(String value) {
+    return URLDecoder.decode(value, StandardCharsets.UTF_8);
+  }
+
+  private void send(HttpExchange exchange, int status, String json)
+      throws IOException, InterruptedException {
+    if (json == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    Fault bodyFault = null;
+    for (Fault fault : faults) {
+      if (fault.kind.isBodyFault() && fault.hits(ThreadLocalRandom.current())) bodyFault = fault;
+    }
+    if (bodyFault != null && bodyFault.kind == Fault.Kind.TRUNCATED) {
+      // a complete response, but the JSON ends in the middle
+      body = Arrays.copyOf(body, body.length / 2);
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    if (bodyFault != null && bodyFault.kind == Fault.Kind.RESET) {
+      // the announced length is never reached, closing the exchange closes the connection
+      out.write(body, 0, body.length / 2);
+      out.flush();
+      return;
+    }
+    if (bodyFault != null && bodyFault.kind == Fault.Kind.TRICKLE) {
+      for (int offset = 0; offset < body.length; offset += bodyFault.chunk) {
+        out.write(body, offset, Math.min(bodyFault.chunk, body.length - offset));
+        out.flush();
+        TimeUnit.MILLISECONDS.sleep(bodyFault.millis);
+      }
+    } else {
+      out.write(body);
+    }
+    out.close();
+  }
+
+  /** A fault of the backend, injected into a share of the responses. */
+  public static final class Fault {
+
+    enum Kind {
+      LATENCY_TAIL,
+      RESET,
+      TRICKLE,
+      BURST_503,
+      TRUNCATED;
+
+      boolean isBodyFault() {
+        return this == RESET || this == TRICKLE || this == TRUNCATED;
+      }
+    }
+
+    private final Kind kind;
+
+    private final double rate;
+
+    private final long millis;
+
+    private final int chunk;
+
+    private final long period;
+
+    private Fault(Kind kind, double rate, long millis, int chunk, long period) {
+      this.kind = kind;
+      this.rate = rate;
+      this.millis = millis;
+      this.chunk = chunk;
+      this.period = period;
+    }
+
+    /**
+     * @param rate share of the responses, between 0 and 1
+     * @param millis added latency
+     * @return responses delayed by the added latency
+     */
+    public static Fault latencyTail(double rate, long millis) {
+      return new Fault(Kind.LATENCY_TAIL, rate, millis, 0, 0);
+    }
+
+    /**
+     * @param rate share of the responses with body, between 0 and 1
+     * @return responses, whose connection is closed after half of the body
+     */
+    public static Fault reset(double rate) {
+      return new Fault(Kind.RESET, rate, 0, 0, 0);
+    }
+
+    /**
+     * @param rate share of the responses with body, between 0 and 1
+     * @param chunk bytes written at once
+     * @param millis pause after every chunk
+     * @return responses, whose body is written slowly in chunks
+     */
+    public static Fault trickle(double rate, int chunk, long millis) {
+      return new Fault(Kind.TRICKLE, rate, millis, Math.max(1, chunk), 0);
+    }
+
+    /**
+     * @param period milliseconds from the start of one burst to the start of the next
+     * @param millis length of a burst
+     * @return all requests answered with 503 during bursts, starting with the start of the backend
+     */
+    public static Fault burst503(long period, long millis) {
+      return new Fault(Kind.BURST_503, 1, millis, 0, Math.max(period, 1));
+    }
+
+    /**
+     * @param rate share of the responses with body, between 0 and 1
+     * @return complete responses with status 200 and the first half of the JSON
+     */
+    public static Fault truncated(double rate) {
+      return new Fault(Kind.TRUNCATED, rate, 0, 0, 0);
+    }
+
+    /**
+     * Parses a fault: {@code tail:<rate>:<ms>}, {@code reset:<rate>}, {@code
+     * trickle:<rate>:<bytes>:<ms>}, {@code burst:<period ms>:<ms>} or {@code truncated:<rate>}.
+     *
+     * @param spec the fault
+     * @return the fault
+     */
+    public static Fault parse(String spec) {
+      final String[] parts = spec.split(":");
+      switch (parts[0]) {
+        case "tail":
+          return latencyTail(Double.parseDouble(parts[1]), Long.parseLong(parts[2]));
+        case "reset":
+          return reset(Double.parseDouble(parts[1]));
+        case "trickle":
+          return trickle(
+              Double.parseDouble(parts[1]), Integer.parseInt(parts[2]), Long.parseLong(parts[3]));
+        case "burst":
+          return burst503(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        case "truncated":
+          return truncated(Double.parseDouble(parts[1]));
+        default:
+          throw new IllegalArgumentException("unknown fault " + spec);
+      }
+    }
+
+    private boolean hits(Random random) {
+      return rate >= 1 || random.nextDouble() < rate;
+    }
+
+    private boolean inBurst(long startNanos) {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) % period < millis;
+    }
+  }
+
+  /** A distribution of response latencies. */
+  public interface Latency {
+
+    /**
+     * @param random source of randomness
+     * @return the next latency in milliseconds
+     */
+    long nextMillis(Random random);
+
+    /**
+     * @param millis the latency
+     * @return a constant latency
+     */
+    static Latency fixed(long millis) {
+      return random -> millis;
+    }
+
+    /**
+     * @param min shortest latency in milliseconds
+     * @param max longest latency in milliseconds
+     * @return latencies uniformly distributed between min and max
+     */
+    static Latency uniform(long min, long max) {
+      return random -> min + (long) (random.nextDouble() * (max - min));
+    }
+
+    /**
+     * Returns a log-normal distribution, the typical shape of service latencies: most responses
+     * close to the median and a long tail.
+     *
+     * @param median median latency in milliseconds
+     * @param p99 99th percentile in milliseconds, at least the median
+     * @return the distribution
+     */
+    static Latency logNormal(double median, double p99) {
+      // the 99th percentile of the standard normal distribution
+      final double sigma = Math.log(Math.max(p99, median) / median) / 2.326;
+      return random -> Math.round(median * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    /**
+     * Parses a distribution: {@code fixed:<ms>}, {@code uniform:<min>:<max>} or {@code
+     * lognormal:<median>:<p99>}.
+     *
+     * @param spec the distribution
+     * @return the distribution
+     */
+    static Latency parse(String spec) {
+      final String[] parts = spec.split(":");
+      switch (parts[0]) {
+        case "fixed":
+          return fixed(Long.parseLong(parts[1]));
+        case "uniform":
+          return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        case "lognormal":
+          return logNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+        default:
+          throw new IllegalArgumentException("unknown latency distribution " + spec);
+      }
+    }
+  }
+}
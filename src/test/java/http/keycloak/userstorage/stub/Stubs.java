@@ -0,0 +1,187 @@
+package http.keycloak.userstorage.stub;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.UriInfo;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.keycloak.urls.HostnameProvider;
+import org.keycloak.urls.UrlType;
+
+/**
+ * Stubs of the Keycloak types used by the provider. The stubs are dynamic proxies: a method
+ * answers with the given value, if there is one for its name, otherwise with an empty collection,
+ * false, 0 or null. The proxies only cost a map lookup, so they do not distort the benchmarks.
+ */
+public final class Stubs {
+
+  private Stubs() {}
+
+  /**
+   * @param type the interface to stub
+   * @param answers return values by method name
+   * @return the stub
+   */
+  public static <T> T stub(Class<T> type, Map<String, Object> answers) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            Stubs.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              if (answers.containsKey(method.getName())) return answers.get(method.getName());
+              switch (method.getName()) {
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return type.getSimpleName() + "Stub";
+                default:
+                  return empty(method.getReturnType());
+              }
+            }));
+  }
+
+  private static Object empty(Class<?> type) {
+    if (type == Set.class) return Collections.emptySet();
+    if (type == List.class) return Collections.emptyList();
+    if (type == Map.class) return Collections.emptyMap();
+    if (type == Stream.class) return Stream.empty();
+    if (type == Optional.class) return Optional.empty();
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    return null;
+  }
+
+  /**
+   * @param id id of the realm
+   * @return a realm without default roles and clients
+   */
+  public static RealmModel realm(String id) {
+    final Map<String, Object> answers = new HashMap<>();
+    answers.put("getId", id);
+    answers.put("getName", id);
+    return stub(RealmModel.class, answers);
+  }
+
+  /**
+   * @param name name of the role
+   * @param realm realm of the role
+   * @return a realm role
+   */
+  public static RoleModel role(String name, RealmModel realm) {
+    final Map<String, Object> answers = new HashMap<>();
+    answers.put("getId", name);
+    answers.put("getName", name);
+    answers.put("isClientRole", false);
+    answers.put("getContainerId", realm.getId());
+    answers.put("getContainer", realm);
+    return stub(RoleModel.class, answers);
+  }
+
+  /**
+   * Returns a session without http request, like the sessions of background tasks, with working
+   * session attributes, e.g. for {@code FreshlyCreatedUsers}, and a federated storage without role
+   * mappings, groups and required actions.
+   *
+   * @return the session
+   */
+  public static KeycloakSession session() {
+    return session(null, null);
+  }
+
+  /**
+   * Returns the session of a http request, see {@link #session()}.
+   *
+   * @param path path of the request, e.g. /admin/realms/test/users for the admin console, or null
+   *     for a session without request
+   * @param clientAddress IP address of the client
+   * @return the session
+   */
+  public static KeycloakSession session(String path, String clientAddress) {
+    final Map<String, Object> attributes = new HashMap<>();
+    final UserFederatedStorageProvider federatedStorage =
+        stub(UserFederatedStorageProvider.class, Collections.emptyMap());
+    final KeycloakContext[] context = {null};
+    return (KeycloakSession)
+        Proxy.newProxyInstance(
+            Stubs.class.getClassLoader(),
+            new Class<?>[] {KeycloakSession.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "userFederatedStorage":
+                  return federatedStorage;
+                case "getContext":
+                  if (context[0] == null) {
+                    context[0] = context((KeycloakSession) proxy, path, clientAddress);
+                  }
+                  return context[0];
+                case "getProvider":
+                  return args[0] == HostnameProvider.class
+                      ? stub(HostnameProvider.class, Collections.emptyMap())
+                      : null;
+                case "getAttribute":
+                  final Object value = attributes.get(args[0]);
+                  return args.length == 2 ? ((Class<?>) args[1]).cast(value) : value;
+                case "setAttribute":
+                  attributes.put((String) args[0], args[1]);
+                  return null;
+                case "removeAttribute":
+                  return attributes.remove(args[0]);
+                case "getAttributes":
+                  return attributes;
+                default:
+                  return empty(method.getReturnType());
+              }
+            });
+  }
+
+  private static KeycloakContext context(
+      KeycloakSession session, String path, String clientAddress) {
+    final Map<String, Object> answers = new HashMap<>();
+    answers.put("getRequestHeaders", stub(HttpHeaders.class, Collections.emptyMap()));
+    if (path != null) {
+      answers.put(
+          "getConnection",
+          stub(ClientConnection.class, Collections.singletonMap("getRemoteAddr", clientAddress)));
+      final UriInfo uriInfo = stub(UriInfo.class, Collections.singletonMap("getPath", path));
+      answers.put("getUri", new KeycloakUriInfo(session, UrlType.FRONTEND, uriInfo));
+    }
+    return stub(KeycloakContext.class, answers);
+  }
+
+  /** @return a component of the http storage without config */
+  public static ComponentModel component() {
+    return component(Collections.emptyMap());
+  }
+
+  /**
+   * @param config config of the component, see {@code HTTPConstants}
+   * @return a component of the http storage
+   */
+  public static ComponentModel component(Map<String, String> config) {
+    final ComponentModel model = new ComponentModel();
+    model.setId("stub-component");
+    model.setName("stub");
+    model.setProviderId("http");
+    model.setProviderType(UserStorageProvider.class.getName());
+    model.setParentId("stub-realm");
+    config.forEach(model::put);
+    return model;
+  }
+}
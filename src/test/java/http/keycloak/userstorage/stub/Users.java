@@ -0,0 +1,118 @@
+package http.keycloak.userstorage.stub;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import http.keycloak.userstorage.HTTPHierarchy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backend responses of realistic size: users with a few attributes and groups, each granting a
+ * few roles of a realm with composite roles and nested groups.
+ */
+public final class Users {
+
+  /** groups of the realm */
+  public static final int GROUPS = 20;
+
+  /** roles of the realm */
+  public static final int ROLES = 60;
+
+  /** the ids of all users start with this prefix, followed by the index */
+  public static final String ID_PREFIX = "00000000-0000-0000-0000-";
+
+  /** configured like the object mapper of the connector */
+  public static final ObjectMapper MAPPER =
+      new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  private Users() {}
+
+  /**
+   * @param index number of the user
+   * @return the JSON of a complete user as returned by GET /user/{username}
+   */
+  public static String user(int index) {
+    final StringBuilder json = new StringBuilder();
+    json.append("{\"id\":\"").append(id(index)).append('"');
+    json.append(",\"username\":\"user").append(index).append('"');
+    json.append(",\"email\":\"user").append(index).append("@example.com\"");
+    json.append(",\"firstName\":\"First").append(index).append('"');
+    json.append(",\"lastName\":\"Last").append(index).append('"');
+    json.append(",\"enabled\":true,\"emailVerified\":true,\"createdTimestamp\":1600000000000");
+    json.append(",\"attributes\":{");
+    json.append("\"phone\":[\"+49 30 ").append(1_000_000 + index).append("\"]");
+    json.append(",\"department\":[\"department").append(index % 12).append("\"]");
+    json.append(",\"locale\":[\"de\"]");
+    json.append(",\"costCenter\":[\"").append(4000 + index % 50).append("\"]");
+    json.append(",\"aliases\":[\"u").append(index).append("\",\"user-").append(index).append("\"]");
+    json.append("},\"groupsAndRoles\":{");
+    for (int g = 0; g < 3; g++) {
+      final int group = (index + g * 7) % GROUPS;
+      if (g > 0) json.append(',');
+      json.append("\"group").append(group).append("\":[");
+      for (int r = 0; r < 4; r++) {
+        if (r > 0) json.append(',');
+        json.append("\"role").append((group * 3 + r) % ROLES).append('"');
+      }
+      json.append(']');
+    }
+    json.append("}}");
+    return json.toString();
+  }
+
+  /**
+   * @param size number of users
+   * @return the JSON of a user list as returned by GET /user
+   */
+  public static String list(int size) {
+    final StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) json.append(',');
+      json.append(user(i));
+    }
+    return json.append(']').toString();
+  }
+
+  /**
+   * @param index number of the user
+   * @return external id of the user
+   */
+  public static String id(int index) {
+    return String.format(ID_PREFIX + "%012d", index);
+  }
+
+  /**
+   * @return the hierarchy of the realm: every tenth role is composite, every group but the first
+   *     four has a parent and grants one role to all members
+   */
+  public static HTTPHierarchy hierarchy() {
+    final HTTPHierarchy hierarchy = new HTTPHierarchy();
+    final Map<String, List<String>> roles = new HashMap<>();
+    for (int r = 0; r < ROLES; r += 10) {
+      roles.put("role" + r, Arrays.asList("role" + (r + 1), "role" + (r + 2)));
+    }
+    final Map<String, String> groups = new HashMap<>();
+    final Map<String, List<String>> groupRoles = new HashMap<>();
+    for (int g = 4; g < GROUPS; g++) {
+      groups.put("group" + g, "group" + (g % 4));
+      groupRoles.put("group" + g, Collections.singletonList("role" + (ROLES - 1 - g)));
+    }
+    hierarchy.setRoles(roles);
+    hierarchy.setGroups(groups);
+    hierarchy.setGroupRoles(groupRoles);
+    return hierarchy;
+  }
+
+  /** @return names of all roles of the realm */
+  public static List<String> roleNames() {
+    final List<String> names = new ArrayList<>(ROLES);
+    for (int r = 0; r < ROLES; r++) {
+      names.add("role" + r);
+    }
+    return names;
+  }
+}